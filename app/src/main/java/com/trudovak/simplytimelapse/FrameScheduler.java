@@ -0,0 +1,212 @@
+package com.trudovak.simplytimelapse;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Computes frame trigger times on a fixed grid measured with the monotonic
+ * clock ({@link System#nanoTime()}). Frame n is due at origin + n * interval,
+ * so late frames do not accumulate drift. The scheduler measures the time from
+ * trigger to camera response and triggers that much earlier, so the camera
+ * response lands on the grid. When a frame overruns its slot the configured
+ * {@link OverrunPolicy} decides when the next frame is taken.
+ */
+public class FrameScheduler {
+
+    /**
+     * What to do when a frame completes after the next one was due.
+     */
+    public enum OverrunPolicy {
+        /** Drop the missed slots and continue on the original grid. */
+        SKIP,
+        /** Take the next frame now and move the whole grid by the overrun. */
+        SHIFT,
+        /** Take the next frame now and keep the original grid for the rest. */
+        COMPRESS
+    }
+
+    // Weight of the newest latency sample in the moving average
+    private static final double LATENCY_SMOOTHING = 0.25;
+    // Frames later than this fraction of the interval are overruns
+    private static final int OVERRUN_TOLERANCE_DIVISOR = 10;
+
+    private final long intervalNanos;
+    private final OverrunPolicy policy;
+
+    private long originNanos;
+    private long slot;
+    private long triggerNanos;
+    private long latencyNanos = -1;
+    private long lastLatencyNanos;
+    private int skippedSlots;
+    private int overruns;
+
+    /**
+     * Constructor.
+     *
+     * @param interval time between frames
+     * @param unit unit of the interval
+     * @param policy how to recover from a frame overrunning its slot
+     */
+    public FrameScheduler(long interval, TimeUnit unit, OverrunPolicy policy) {
+        this.intervalNanos = unit.toNanos(interval);
+        this.policy = policy;
+    }
+
+    /**
+     * Starts the grid with the first frame due now.
+     *
+     * @param nowNanos current monotonic time
+     */
+    public void start(long nowNanos) {
+        start(nowNanos, 0);
+    }
+
+    /**
+     * Starts the grid at the indicated origin, with the indicated slot due
+     * next.
+     *
+     * @param originNanos monotonic time slot 0 was due
+     * @param slot index of the next slot
+     */
+    public void start(long originNanos, long slot) {
+        this.originNanos = originNanos;
+        this.slot = slot;
+    }
+
+    /**
+     * Returns the time in nanoseconds to wait before triggering the next
+     * frame.
+     *
+     * @param nowNanos current monotonic time
+     */
+    public long getDelayNanos(long nowNanos) {
+        return Math.max(0, getTriggerNanos() - nowNanos);
+    }
+
+    /**
+     * Returns the monotonic time the next frame is due on the grid.
+     */
+    public long getDeadlineNanos() {
+        return originNanos + slot * intervalNanos;
+    }
+
+    /**
+     * Returns the monotonic time the next frame should be triggered, i.e.
+     * the deadline minus the latency compensation.
+     */
+    public long getTriggerNanos() {
+        return getDeadlineNanos() - getCompensationNanos();
+    }
+
+    /**
+     * Returns the time between frames in nanoseconds.
+     */
+    public long getIntervalNanos() {
+        return intervalNanos;
+    }
+
+    /**
+     * Returns the index of the next slot on the grid.
+     */
+    public long getSlot() {
+        return slot;
+    }
+
+    /**
+     * Returns the monotonic time of slot 0.
+     */
+    public long getOriginNanos() {
+        return originNanos;
+    }
+
+    /**
+     * Marks the trigger of the current frame.
+     *
+     * @param nowNanos current monotonic time
+     */
+    public void frameTriggered(long nowNanos) {
+        triggerNanos = nowNanos;
+    }
+
+    /**
+     * Marks the camera response of the current frame and advances to the next
+     * slot, applying the overrun policy if the next slot is already due.
+     *
+     * @param nowNanos current monotonic time
+     */
+    public void frameCompleted(long nowNanos) {
+        lastLatencyNanos = nowNanos - triggerNanos;
+        if (latencyNanos < 0) {
+            latencyNanos = lastLatencyNanos;
+        } else {
+            latencyNanos += (long) (LATENCY_SMOOTHING * (lastLatencyNanos - latencyNanos));
+        }
+
+        advance(nowNanos);
+    }
+
+    /**
+     * Gives the current frame up and advances to the next slot, applying the
+     * overrun policy if the next slot is already due. The latency
+     * compensation is left as it was.
+     *
+     * @param nowNanos current monotonic time
+     */
+    public void frameLost(long nowNanos) {
+        advance(nowNanos);
+    }
+
+    private void advance(long nowNanos) {
+        slot++;
+        long late = nowNanos - getTriggerNanos();
+        if (late <= intervalNanos / OVERRUN_TOLERANCE_DIVISOR) {
+            // On time or slightly late: trigger as soon as possible.
+            return;
+        }
+        overruns++;
+        switch (policy) {
+            case SKIP:
+                long missed = (late + intervalNanos - 1) / intervalNanos;
+                slot += missed;
+                skippedSlots += missed;
+                break;
+            case SHIFT:
+                originNanos += late;
+                break;
+            case COMPRESS:
+                // Trigger immediately, the grid stays where it was.
+                break;
+        }
+    }
+
+    /**
+     * Returns the latency compensation applied to the trigger times. It is
+     * capped at half the interval.
+     */
+    public long getCompensationNanos() {
+        return latencyNanos < 0 ? 0 : Math.min(latencyNanos, intervalNanos / 2);
+    }
+
+    /**
+     * Returns the trigger to response latency of the last frame.
+     */
+    public long getLastLatencyNanos() {
+        return lastLatencyNanos;
+    }
+
+    /**
+     * Returns the number of slots dropped by the {@link OverrunPolicy#SKIP}
+     * policy.
+     */
+    public int getSkippedSlots() {
+        return skippedSlots;
+    }
+
+    /**
+     * Returns the number of frames that completed after the next frame was
+     * due.
+     */
+    public int getOverruns() {
+        return overruns;
+    }
+}
@@ -1,9 +1,15 @@
 package com.trudovak.simplytimelapse;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 import android.app.Activity;
+import android.app.AlertDialog;
 import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.graphics.Bitmap;
@@ -11,14 +17,21 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.support.v4.content.LocalBroadcastManager;
 import android.support.v4.content.WakefulBroadcastReceiver;
+import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.Menu;
 import android.view.View;
 import android.widget.Button;
+import android.widget.CheckBox;
 import android.widget.ImageView;
+import android.widget.SeekBar;
 import android.widget.TextView;
 import android.widget.Toast;
+import android.widget.ToggleButton;
 
+import com.trudovak.simplytimelapse.camera.CameraRegistry;
+import com.trudovak.simplytimelapse.preview.PreviewReel;
+import com.trudovak.simplytimelapse.preview.ReelScrubber;
 import com.trudovak.simplytimelapse.service.CameraLocatorService;
 import com.trudovak.simplytimelapse.service.TimelapseService;
 import com.trudovak.simplytimelapse.utils.Logger;
@@ -32,6 +45,8 @@ public class MainActivity extends Activity {
 	private Button scanButton;
 	private Button startTimelapseButton;
 	private Button stopTimelapseButton;
+	private ToggleButton framingButton;
+	private CheckBox archiveCheck;
 
 	private TextView status;
 	private TextView framesText;
@@ -39,10 +54,56 @@ public class MainActivity extends Activity {
 	private TextView timelapseStatus;
 
 	private ImageView preview;
+	private SeekBar reelSeek;
+
+	// Frames of the preview reel picked with the seek bar
+	private ReelScrubber scrubber;
+	private Bitmap reelFrame;
 
 	private final OnCompleteReceiver completionReceiver = new OnCompleteReceiver();
 	private final ProgressReceiver progressReceiver = new ProgressReceiver();
+	private final LiveviewReceiver liveviewReceiver = new LiveviewReceiver();
 	private final CameraLocatorReceiver cameraLocatorReceiver = new CameraLocatorReceiver();
+	private final CameraPresenceListener cameraPresenceListener = new CameraPresenceListener();
+
+	// Looks for the camera as soon as one announces itself, e.g. after a
+	// battery swap, while none is connected.
+	private static class CameraPresenceListener implements CameraRegistry.Listener {
+
+		private volatile MainActivity activity;
+
+		@Override
+		public void OnCameraAppeared(CameraRegistry.Presence presence) {
+			final MainActivity activity = this.activity;
+			if (activity == null) {
+				return;
+			}
+			activity.handler.post(new Runnable() {
+				@Override
+				public void run() {
+					TimelapseApp app = (TimelapseApp) activity.getApplication();
+					String cameraUrl = app.getCameraUrl();
+					if ((cameraUrl == null || cameraUrl.length() == 0)
+							&& !app.isTimelapseActive()) {
+						activity.onScan();
+					}
+				}
+			});
+		}
+
+		@Override
+		public void OnCameraLost(CameraRegistry.Presence presence) {
+			logger.debug("Camera left: {0}", presence);
+		}
+
+		public void attach(MainActivity activity) {
+			this.activity = activity;
+		}
+
+		public void detach() {
+			this.activity = null;
+		}
+	}
 
 	private static class CameraLocatorReceiver extends BroadcastReceiver {
 
@@ -56,14 +117,28 @@ public class MainActivity extends Activity {
 			if (CameraLocatorService.CAMERA_SEARCH_FAILED.equals(intent.getAction())) {
 				app.setCameraUrl("");
 				app.setCameraName("");
+				app.setFoundCameras(Collections.<String> emptyList(),
+						Collections.<String> emptyList());
 				Toast.makeText(activity,
 						activity.getText(R.string.msg_error_connection),
 						Toast.LENGTH_LONG).show();
 			} else if (CameraLocatorService.CAMERA_FOUND.equals(intent.getAction()) ) {
-				app.setCameraName(intent
-						.getStringExtra(CameraLocatorService.CAMERA_NAME));
-				app.setCameraUrl(intent
-						.getStringExtra(CameraLocatorService.CAMERA_URL));
+				// Cameras are reported as they are found, the first one
+				// stays the main camera. Which ones shoot is picked on start.
+				String[] urls = intent
+						.getStringArrayExtra(CameraLocatorService.CAMERA_URLS);
+				String[] names = intent
+						.getStringArrayExtra(CameraLocatorService.CAMERA_NAMES);
+				if (urls == null || urls.length <= 1) {
+					app.setCameraName(intent
+							.getStringExtra(CameraLocatorService.CAMERA_NAME));
+					app.setCameraUrl(intent
+							.getStringExtra(CameraLocatorService.CAMERA_URL));
+				}
+				if (urls != null && names != null) {
+					app.setFoundCameras(Arrays.asList(urls),
+							Arrays.asList(names));
+				}
 			}
 			activity.setUiState();
 		}
@@ -134,6 +209,30 @@ public class MainActivity extends Activity {
 
 	}
 
+	// Shows the liveview frames without refreshing the rest of the screen
+	private static class LiveviewReceiver extends BroadcastReceiver {
+
+		private MainActivity activity;
+
+		@Override
+		public void onReceive(Context context, Intent intent) {
+			TimelapseApp app = (TimelapseApp) activity.getApplication();
+			Bitmap img = app.getPictureReference().get();
+			if (img != null) {
+				activity.showPicture(img);
+			}
+		}
+
+		public void attach(MainActivity activity) {
+			this.activity = activity;
+		}
+
+		public void detach() {
+			this.activity = null;
+		}
+
+	}
+
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
 		logger.debug("onCreate start.");
@@ -147,9 +246,22 @@ public class MainActivity extends Activity {
 		timelapseStatus = (TextView) findViewById(R.id.timelapseStatus);
 
 		preview = (ImageView) findViewById(R.id.preview);
+		reelSeek = (SeekBar) findViewById(R.id.reelSeek);
+
+		DisplayMetrics metrics = getResources().getDisplayMetrics();
+		scrubber = new ReelScrubber(TimelapseService.getReelDirectory(this),
+				new ReelScrubber.Listener() {
+					@Override
+					public void OnReelFrame(Bitmap frame, int frameNumber) {
+						showPicture(frame);
+						reelFrame = frame;
+					}
+				}, metrics.widthPixels, metrics.heightPixels);
 
 		startTimelapseButton = (Button) findViewById(R.id.btnStart);
 		stopTimelapseButton = (Button) findViewById(R.id.btnStop);
+		framingButton = (ToggleButton) findViewById(R.id.btnFraming);
+		archiveCheck = (CheckBox) findViewById(R.id.chkArchive);
 		framesText = (TextView) findViewById(R.id.frames);
 		intervalText = (TextView) findViewById(R.id.interval);
 
@@ -161,15 +273,26 @@ public class MainActivity extends Activity {
 	protected void onStop() {
 		logger.trace("onStop called");
 		super.onStop();
+		// Previews are reused once replaced, do not hold on to one while hidden
+		showPicture(null);
+		scrubber.stop();
+		((TimelapseApp) getApplication()).removePreviewObserver();
 		LocalBroadcastManager.getInstance(this).unregisterReceiver(
 				completionReceiver);
 		completionReceiver.detach();
 		LocalBroadcastManager.getInstance(this).unregisterReceiver(
 				progressReceiver);
 		progressReceiver.detach();
+		LocalBroadcastManager.getInstance(this).unregisterReceiver(
+				liveviewReceiver);
+		liveviewReceiver.detach();
 		LocalBroadcastManager.getInstance(this).unregisterReceiver(
 				cameraLocatorReceiver);
 		cameraLocatorReceiver.detach();
+		TimelapseApp app = (TimelapseApp) getApplication();
+		app.getCameraRegistry().removeListener(cameraPresenceListener);
+		cameraPresenceListener.detach();
+		app.stopPresenceTracking();
 	}
 	
 	@Override
@@ -192,6 +315,12 @@ public class MainActivity extends Activity {
 		LocalBroadcastManager.getInstance(this).registerReceiver(
 				progressReceiver, filter);
 
+		liveviewReceiver.attach(this);
+		filter = new IntentFilter();
+		filter.addAction(TimelapseService.LIVEVIEW_FRAME_BROADCAST);
+		LocalBroadcastManager.getInstance(this).registerReceiver(
+				liveviewReceiver, filter);
+
 		cameraLocatorReceiver.attach(this, (TimelapseApp) getApplication());
 		filter = new IntentFilter();
 		filter.addAction(CameraLocatorService.CAMERA_FOUND);
@@ -199,6 +328,13 @@ public class MainActivity extends Activity {
 		LocalBroadcastManager.getInstance(this).registerReceiver(
 				cameraLocatorReceiver, filter);
 
+		TimelapseApp app = (TimelapseApp) getApplication();
+		cameraPresenceListener.attach(this);
+		app.getCameraRegistry().addListener(cameraPresenceListener);
+		app.startPresenceTracking();
+
+		app.addPreviewObserver();
+		scrubber.start();
 	}
 
 	@Override
@@ -228,6 +364,31 @@ public class MainActivity extends Activity {
 			}
 		});
 
+		framingButton.setOnClickListener(new View.OnClickListener() {
+			@Override
+			public void onClick(View v) {
+				OnToggleFraming(framingButton.isChecked());
+			}
+		});
+
+		reelSeek.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
+			@Override
+			public void onProgressChanged(SeekBar seekBar, int progress,
+					boolean fromUser) {
+				if (fromUser) {
+					scrubber.show(progress);
+				}
+			}
+
+			@Override
+			public void onStartTrackingTouch(SeekBar seekBar) {
+			}
+
+			@Override
+			public void onStopTrackingTouch(SeekBar seekBar) {
+			}
+		});
+
 		setUiState();
 
 		logger.debug("onResume complete.");
@@ -235,6 +396,11 @@ public class MainActivity extends Activity {
 
 	private void setUiState() {
 		TimelapseApp app = (TimelapseApp) getApplication();
+		// The reel grows with each frame and is kept after the timelapse
+		int reelFrames = PreviewReel.getFrameCount(TimelapseService
+				.getReelDirectory(this));
+		reelSeek.setMax(Math.max(reelFrames - 1, 0));
+		reelSeek.setEnabled(reelFrames > 1);
 		String cameraUrl = app.getCameraUrl();
 		if (cameraUrl != null && cameraUrl.length() > 0) {
 			status.setText(String.format(getText(R.string.msg_connected_to)
@@ -244,6 +410,10 @@ public class MainActivity extends Activity {
 				scanButton.setEnabled(false);
 				startTimelapseButton.setEnabled(false);
 				stopTimelapseButton.setEnabled(true);
+				// Framing follows a single camera
+				framingButton.setEnabled(app.getCameraUrls().size() <= 1);
+				framingButton.setChecked(app.isFramingActive());
+				archiveCheck.setEnabled(false);
 				int remainingFrames = app.getRemainingFrames();
 				float interval = app.getInterval();
 				timelapseStatus.setText(String.format(
@@ -251,7 +421,7 @@ public class MainActivity extends Activity {
 						remainingFrames, interval));
 				Bitmap img = app.getPictureReference().get();
 				if (img != null) {
-					preview.setImageBitmap(img);
+					showPicture(img);
 				}
 				
 				framesText.setText( Integer.toString(app.getDesiredFrames()));
@@ -262,6 +432,10 @@ public class MainActivity extends Activity {
 				scanButton.setEnabled(true);
 				startTimelapseButton.setEnabled(true);
 				stopTimelapseButton.setEnabled(false);
+				framingButton.setEnabled(false);
+				framingButton.setChecked(false);
+				// Archiving follows a single camera
+				archiveCheck.setEnabled(app.getFoundCameraUrls().size() <= 1);
 				timelapseStatus.setText("");
 			}
 		} else {
@@ -271,9 +445,19 @@ public class MainActivity extends Activity {
 			scanButton.setEnabled(true);
 			startTimelapseButton.setEnabled(false);
 			stopTimelapseButton.setEnabled(false);
+			framingButton.setEnabled(false);
+			framingButton.setChecked(false);
+			archiveCheck.setEnabled(false);
 		}
 	}
 
+	// Replaces the picture on screen, handing the replaced reel frame back
+	private void showPicture(Bitmap picture) {
+		preview.setImageBitmap(picture);
+		scrubber.release(reelFrame);
+		reelFrame = null;
+	}
+
 	@Override
 	public boolean onCreateOptionsMenu(Menu menu) {
 		// Inflate the menu; this adds items to the action bar if it is present.
@@ -320,23 +504,97 @@ public class MainActivity extends Activity {
 		app.setDesiredFrames(frames);
 		app.setDesiredInterval(interval);
 		
-		
+		if (app.getFoundCameraUrls().size() > 1) {
+			chooseCameras(interval, frames);
+		} else {
+			startTimelapse(Collections.singletonList(app.getCameraUrl()),
+					interval, frames);
+		}
+	}
+
+	// Several cameras answered the scan, some may be other people's: only
+	// the ones the user ticks are taken over
+	private void chooseCameras(final int interval, final int frames) {
+		TimelapseApp app = (TimelapseApp) getApplication();
+		final List<String> urls = app.getFoundCameraUrls();
+		final List<String> names = app.getFoundCameraNames();
+		final boolean[] checked = new boolean[urls.size()];
+		new AlertDialog.Builder(this)
+				.setTitle(R.string.title_choose_cameras)
+				.setMultiChoiceItems(
+						names.toArray(new CharSequence[names.size()]),
+						checked,
+						new DialogInterface.OnMultiChoiceClickListener() {
+							@Override
+							public void onClick(DialogInterface dialog,
+									int which, boolean isChecked) {
+								checked[which] = isChecked;
+							}
+						})
+				.setPositiveButton(android.R.string.ok,
+						new DialogInterface.OnClickListener() {
+							@Override
+							public void onClick(DialogInterface dialog,
+									int which) {
+								List<String> picked = new ArrayList<String>();
+								String mainName = null;
+								for (int i = 0; i < checked.length; i++) {
+									if (checked[i]) {
+										if (picked.isEmpty()) {
+											mainName = names.get(i);
+										}
+										picked.add(urls.get(i));
+									}
+								}
+								if (picked.isEmpty()) {
+									Toast.makeText(MainActivity.this,
+											getText(R.string.msg_no_camera_chosen),
+											Toast.LENGTH_LONG).show();
+									return;
+								}
+								TimelapseApp app = (TimelapseApp) getApplication();
+								app.setCameraUrl(picked.get(0));
+								app.setCameraName(mainName);
+								startTimelapse(picked, interval, frames);
+							}
+						})
+				.setNegativeButton(android.R.string.cancel, null)
+				.show();
+	}
+
+	private void startTimelapse(List<String> cameraUrls, int interval,
+			int frames) {
+		TimelapseApp app = (TimelapseApp) getApplication();
+		app.setCameraUrls(cameraUrls);
 		// Create intent and start background job
 		Intent intent = new Intent(this, TimelapseService.class);
 		intent.setAction(TimelapseService.START_TIMELAPSE);
 		intent.putExtra(TimelapseService.INTERVAL_PARAM, interval);
 		intent.putExtra(TimelapseService.FRAMES_PARAM, frames);
-		intent.putExtra(TimelapseService.CAMERA_URL_PARAM,
-				((TimelapseApp) getApplication()).getCameraUrl());
+		intent.putExtra(TimelapseService.ARCHIVE_PARAM,
+				archiveCheck.isChecked());
+		intent.putExtra(TimelapseService.CAMERA_URL_PARAM, cameraUrls.get(0));
+		if (cameraUrls.size() > 1) {
+			intent.putExtra(TimelapseService.CAMERA_URLS_PARAM,
+					cameraUrls.toArray(new String[cameraUrls.size()]));
+		}
 		WakefulBroadcastReceiver.startWakefulService(this, intent);
 
 		// Disable the start & scan button
 		startTimelapseButton.setEnabled(false);
 		scanButton.setEnabled(false);
+		archiveCheck.setEnabled(false);
 		// Enable the stop button
 		stopTimelapseButton.setEnabled(true);
 	}
 
+	private void OnToggleFraming(boolean on) {
+		Intent intent = new Intent(this, TimelapseService.class);
+		intent.setAction(on ? TimelapseService.START_FRAMING
+				: TimelapseService.STOP_FRAMING);
+		startService(intent);
+	}
+
 	private void OnStopTimelapse() {
 		Intent intent = new Intent(this, TimelapseService.class);
 		intent.setAction(TimelapseService.STOP_TIMELAPSE);
@@ -0,0 +1,373 @@
+package com.trudovak.simplytimelapse;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.trudovak.simplytimelapse.FrameScheduler.OverrunPolicy;
+import com.trudovak.simplytimelapse.TimelapseRunner.TimelapseListener;
+import com.trudovak.simplytimelapse.camera.AsyncRemoteApi;
+import com.trudovak.simplytimelapse.camera.AsyncRemoteApi.RemoteCall;
+import com.trudovak.simplytimelapse.camera.JsonRpcResponse;
+import com.trudovak.simplytimelapse.camera.SimpleRemoteApi;
+import com.trudovak.simplytimelapse.preview.PreviewPipeline;
+import com.trudovak.simplytimelapse.utils.Logger;
+
+/**
+ * Runs one timelapse on several cameras at once. The cameras share a single
+ * frame grid. Shortly before each slot the shutter calls are armed on the I/O
+ * threads, one per camera, and released together at the trigger time, so the
+ * skew between the cameras depends on thread wake-up rather than on call
+ * setup. A frame is complete when every camera answered. A camera that fails
+ * a frame counts it as missed and the timelapse goes on with the others.
+ * Stopping cancels the calls in flight, so an armed shutter is not released
+ * after the stop.
+ */
+public class MultiCameraCoordinator implements Runnable {
+
+    private static final Logger logger = new Logger(MultiCameraCoordinator.class);
+
+    protected static final int SOCKET_TIMEOUT_MS = TimelapseRunner.SOCKET_TIMEOUT_MS;
+
+    // Error code of actTakePicture and awaitTakePicture while a long exposure is in progress
+    private static final int ERROR_LONG_SHOOTING = 40403;
+
+    // How long before the trigger time the shutter calls are handed to the
+    // I/O threads
+    private static final long ARM_LEAD_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    /**
+     * Trigger skew and missed frames of one camera. The skew is the time from
+     * the common trigger time to the moment the camera's request was sent.
+     */
+    public static class CameraStats {
+        private final String name;
+        private final AtomicInteger frames = new AtomicInteger();
+        private final AtomicInteger missed = new AtomicInteger();
+        private final AtomicLong totalSkewNanos = new AtomicLong();
+        private volatile long lastSkewNanos;
+        private volatile long maxSkewNanos;
+
+        CameraStats(String name) {
+            this.name = name;
+        }
+
+        void recordSkew(long skewNanos) {
+            totalSkewNanos.addAndGet(skewNanos);
+            lastSkewNanos = skewNanos;
+            if (skewNanos > maxSkewNanos) {
+                maxSkewNanos = skewNanos;
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /** Returns the number of frames taken. */
+        public int getFrames() {
+            return frames.get();
+        }
+
+        /** Returns the number of frames that failed. */
+        public int getMissed() {
+            return missed.get();
+        }
+
+        public long getLastSkewMicros() {
+            return TimeUnit.NANOSECONDS.toMicros(lastSkewNanos);
+        }
+
+        public long getMaxSkewMicros() {
+            return TimeUnit.NANOSECONDS.toMicros(maxSkewNanos);
+        }
+
+        public long getAverageSkewMicros() {
+            int triggered = frames.get() + missed.get();
+            return triggered == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalSkewNanos.get() / triggered);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: frames %d, missed %d, skew last %dus, avg %dus, max %dus", name, getFrames(),
+                    getMissed(), getLastSkewMicros(), getAverageSkewMicros(), getMaxSkewMicros());
+        }
+    }
+
+    // One camera of the timelapse. At most one call is in flight per camera.
+    private class Camera implements AsyncRemoteApi.Callback<JsonRpcResponse> {
+        final AsyncRemoteApi api;
+        final CameraStats stats;
+        final JsonRpcResponse response = new JsonRpcResponse();
+        // When the request of the current frame was sent, 0 if it was not
+        volatile long sentNanos;
+        volatile RemoteCall<JsonRpcResponse> call;
+
+        Camera(AsyncRemoteApi api, String name) {
+            this.api = api;
+            this.stats = new CameraStats(name);
+        }
+
+        void trigger(final long triggerNanos) {
+            sentNanos = 0;
+            long deadline = triggerNanos - System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SOCKET_TIMEOUT_MS);
+            AsyncRemoteApi.Operation<JsonRpcResponse> shutter = new AsyncRemoteApi.Operation<JsonRpcResponse>() {
+                @Override
+                public JsonRpcResponse execute(SimpleRemoteApi remoteApi, int timeout) throws IOException {
+                    waitUntil(triggerNanos);
+                    if (!running) {
+                        throw new InterruptedIOException("Timelapse stopped before the trigger time");
+                    }
+                    sentNanos = System.nanoTime();
+                    stats.recordSkew(sentNanos - triggerNanos);
+                    return remoteApi.actTakePicture(timeout, response);
+                }
+            };
+            call = api.call("actTakePicture", deadline, TimeUnit.NANOSECONDS, shutter, this);
+        }
+
+        void cancel() {
+            RemoteCall<JsonRpcResponse> call = this.call;
+            if (call != null) {
+                call.cancel(true);
+            }
+        }
+
+        @Override
+        public void OnSuccess(JsonRpcResponse result) {
+            if (result.getErrorCode() == ERROR_LONG_SHOOTING) {
+                call = api.awaitTakePicture(SOCKET_TIMEOUT_MS, response, this);
+                return;
+            }
+            if (result.isError()) {
+                logger.error("Camera {0} error taking frame: {1} {2}", stats.getName(), result.getErrorCode(),
+                        result.getErrorMessage());
+                cameraDone(this, null, false);
+            } else {
+                cameraDone(this, result.getFirstResult(), true);
+            }
+        }
+
+        @Override
+        public void OnFailure(IOException e) {
+            logger.warn(e, "Camera {0} failed to take frame", stats.getName());
+            cameraDone(this, null, false);
+        }
+    }
+
+    private final ScheduledExecutorService scheduledExecutorService;
+    private final List<Camera> cameras;
+    private final TimelapseListener listener;
+    private final OverrunPolicy overrunPolicy;
+    private final PreviewPipeline previewPipeline;
+
+    private volatile int remainingFrames;
+    private FrameScheduler scheduler;
+    private ScheduledFuture<?> handle;
+    private volatile boolean running = false;
+    private long frameStart;
+
+    // State of the frame in progress
+    private final AtomicInteger pendingCameras = new AtomicInteger();
+    private final AtomicInteger succeededCameras = new AtomicInteger();
+    private volatile String postviewUrl;
+    private volatile long maxSpreadNanos;
+
+    /**
+     * Constructor.
+     *
+     * @param scheduledExecutorService runs the frame clock
+     * @param ioExecutor runs the camera calls. Needs a thread per camera so
+     *            the shutter calls can be released together.
+     * @param remoteApis the cameras. The postviews of the first one are
+     *            previewed.
+     * @param names names of the cameras used in logs and statistics
+     * @param listener notified of the progress
+     * @param overrunPolicy how to recover from a frame overrunning its slot
+     * @param previewPipeline receives the postview URL of every frame, may be
+     *            null
+     */
+    public MultiCameraCoordinator(ScheduledExecutorService scheduledExecutorService, ExecutorService ioExecutor,
+            List<SimpleRemoteApi> remoteApis, List<String> names, TimelapseListener listener,
+            OverrunPolicy overrunPolicy, PreviewPipeline previewPipeline) {
+        this.scheduledExecutorService = scheduledExecutorService;
+        List<Camera> cameras = new ArrayList<Camera>(remoteApis.size());
+        for (int i = 0; i < remoteApis.size(); i++) {
+            cameras.add(new Camera(new AsyncRemoteApi(remoteApis.get(i), ioExecutor), names.get(i)));
+        }
+        this.cameras = Collections.unmodifiableList(cameras);
+        this.listener = listener;
+        this.overrunPolicy = overrunPolicy;
+        this.previewPipeline = previewPipeline;
+    }
+
+    public synchronized void startTimelapse(int frames, int interval, TimeUnit unit) {
+        if (TimeUnit.MILLISECONDS.convert(interval, unit) < 1000) {
+            throw new IllegalArgumentException("Cannot run timelapse at faster rate than 1 seconds per frame");
+        }
+        if (running) {
+            throw new IllegalStateException("MultiCameraCoordinator is already running.");
+        }
+        this.remainingFrames = frames;
+        running = true;
+        scheduler = new FrameScheduler(interval, unit, overrunPolicy);
+        frameStart = System.nanoTime();
+        scheduler.start(frameStart + ARM_LEAD_NANOS);
+        handle = scheduledExecutorService.schedule(this, 0, TimeUnit.NANOSECONDS);
+    }
+
+    public synchronized void stopTimelapse() {
+        if (running) {
+            handle.cancel(false);
+            running = false;
+            for (Camera camera : cameras) {
+                camera.cancel();
+            }
+            listener.OnComplete();
+            logger.info("Multi camera timelapse stopped. Max spread {0}us. {1}",
+                    TimeUnit.NANOSECONDS.toMicros(maxSpreadNanos), cameras);
+        }
+    }
+
+    public synchronized boolean isRunning() {
+        return this.running;
+    }
+
+    public synchronized long getRemainingFrames() {
+        return running ? remainingFrames : 0;
+    }
+
+    /**
+     * Returns the statistics of each camera, in the order the cameras were
+     * given.
+     */
+    public List<CameraStats> getCameraStats() {
+        List<CameraStats> stats = new ArrayList<CameraStats>(cameras.size());
+        for (Camera camera : cameras) {
+            stats.add(camera.stats);
+        }
+        return stats;
+    }
+
+    /**
+     * Returns the largest time between the first and the last camera
+     * triggered for the same frame.
+     */
+    public long getMaxSpreadMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(maxSpreadNanos);
+    }
+
+    // Arms the shutter calls of all cameras for the next slot.
+    @Override
+    public void run() {
+        if (!isRunning()) {
+            return;
+        }
+        long triggerNanos = Math.max(scheduler.getTriggerNanos(), System.nanoTime());
+        scheduler.frameTriggered(triggerNanos);
+        postviewUrl = null;
+        succeededCameras.set(0);
+        pendingCameras.set(cameras.size());
+        for (Camera camera : cameras) {
+            camera.trigger(triggerNanos);
+        }
+    }
+
+    private void cameraDone(Camera camera, String uri, boolean succeeded) {
+        if (succeeded) {
+            camera.stats.frames.incrementAndGet();
+            succeededCameras.incrementAndGet();
+            if (camera == cameras.get(0)) {
+                postviewUrl = uri;
+            }
+        } else {
+            camera.stats.missed.incrementAndGet();
+        }
+        if (pendingCameras.decrementAndGet() == 0) {
+            completeFrame();
+        }
+    }
+
+    // Called on the I/O thread of the camera answering last.
+    private void completeFrame() {
+        final long now = System.nanoTime();
+        final long interval = TimeUnit.NANOSECONDS.toMillis(now - frameStart);
+        frameStart = now;
+
+        long first = Long.MAX_VALUE;
+        long last = Long.MIN_VALUE;
+        for (Camera camera : cameras) {
+            long sentNanos = camera.sentNanos;
+            if (sentNanos != 0) {
+                first = Math.min(first, sentNanos);
+                last = Math.max(last, sentNanos);
+            }
+        }
+        // Cameras that failed before sending do not count
+        long spread = first <= last ? last - first : 0;
+        if (spread > maxSpreadNanos) {
+            maxSpreadNanos = spread;
+        }
+
+        if (succeededCameras.get() == 0) {
+            failTimelapse("No camera took the frame");
+            return;
+        }
+
+        scheduler.frameCompleted(now);
+        logger.debug("Frame latency {0}ms, spread {1}us, overruns {2}, skipped slots {3}",
+                TimeUnit.NANOSECONDS.toMillis(scheduler.getLastLatencyNanos()), TimeUnit.NANOSECONDS.toMicros(spread),
+                scheduler.getOverruns(), scheduler.getSkippedSlots());
+
+        final int remainingFrames;
+        synchronized (this) {
+            remainingFrames = --this.remainingFrames;
+            if (running && remainingFrames > 0) {
+                long delay = Math.max(0, scheduler.getDelayNanos(System.nanoTime()) - ARM_LEAD_NANOS);
+                handle = scheduledExecutorService.schedule(this, delay, TimeUnit.NANOSECONDS);
+            }
+        }
+        listener.OnFrame(remainingFrames, interval, TimeUnit.MILLISECONDS);
+        String uri = postviewUrl;
+        if (uri != null && remainingFrames > 0 && previewPipeline != null) {
+            previewPipeline.submit(uri);
+        }
+
+        if (remainingFrames <= 0) {
+            stopTimelapse();
+        }
+    }
+
+    private void failTimelapse(String msg) {
+        logger.error("{0}. Stopping timelapse", msg);
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            handle.cancel(false);
+            running = false;
+        }
+        listener.OnError(msg);
+    }
+
+    // Parks the calling thread until the indicated monotonic time. Fails if
+    // the call is cancelled meanwhile.
+    private static void waitUntil(long nanos) throws InterruptedIOException {
+        long delay;
+        while ((delay = nanos - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(delay);
+            if (Thread.interrupted()) {
+                throw new InterruptedIOException("Cancelled before the trigger time");
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.trudovak.simplytimelapse;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exponential backoff for retrying a frame after a transient camera error.
+ * The retries of a frame are budgeted by a deadline, normally the next frame
+ * due on the grid: a retry is only made if it can still complete before it,
+ * so a flaky link costs single frames instead of delaying the whole grid.
+ */
+public class RetryBudget {
+
+    private final long initialBackoffNanos;
+    private final long maxBackoffNanos;
+
+    private long deadlineNanos;
+    private long backoffNanos;
+    private int attempts;
+
+    /**
+     * Constructor.
+     *
+     * @param initialBackoff wait before the first retry, doubled for every
+     *            further retry
+     * @param maxBackoff longest wait between retries
+     * @param unit unit of the waits
+     */
+    public RetryBudget(long initialBackoff, long maxBackoff, TimeUnit unit) {
+        this.initialBackoffNanos = unit.toNanos(initialBackoff);
+        this.maxBackoffNanos = unit.toNanos(maxBackoff);
+    }
+
+    /**
+     * Starts the budget of a new frame.
+     *
+     * @param deadlineNanos monotonic time the retries must be complete by
+     */
+    public void reset(long deadlineNanos) {
+        this.deadlineNanos = deadlineNanos;
+        this.backoffNanos = initialBackoffNanos;
+        this.attempts = 0;
+    }
+
+    /**
+     * Returns the time to wait before retrying, and counts the retry.
+     *
+     * @param nowNanos current monotonic time
+     * @param latencyNanos time the camera is expected to take to answer
+     * @return the wait in nanoseconds, or -1 if the retry would not complete
+     *         before the deadline
+     */
+    public long nextDelayNanos(long nowNanos, long latencyNanos) {
+        long delay = backoffNanos;
+        if (nowNanos + delay + latencyNanos >= deadlineNanos) {
+            return -1;
+        }
+        backoffNanos = Math.min(backoffNanos * 2, maxBackoffNanos);
+        attempts++;
+        return delay;
+    }
+
+    /**
+     * Returns the number of retries of the current frame.
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+}
@@ -1,13 +1,29 @@
 package com.trudovak.simplytimelapse;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
 import android.app.Application;
+import android.content.Context;
 import android.graphics.Bitmap;
 
+import com.trudovak.simplytimelapse.camera.CameraRegistry;
+import com.trudovak.simplytimelapse.camera.DeviceCache;
+import com.trudovak.simplytimelapse.service.SsdpNotifyListener;
+
 public class TimelapseApp extends Application {
+	/**
+	 * Notified when the number of visible preview observers changes.
+	 */
+	public interface PreviewObserverListener {
+		void OnPreviewObserversChanged(int observers);
+	}
+
 	private final AtomicInteger desiredInterval = new AtomicInteger(0);
 	private final AtomicInteger desiredFrames = new AtomicInteger(0);
 	// Store float in int as described in JDK docs
@@ -17,15 +33,88 @@ public class TimelapseApp extends Application {
 	private final AtomicInteger total = new AtomicInteger(0);
 	private final AtomicReference<Bitmap> pictureReference = new AtomicReference<Bitmap>();
 	private final AtomicBoolean timelapseActive = new AtomicBoolean();
+	private final AtomicBoolean framingActive = new AtomicBoolean();
 	private final AtomicReference<String> cameraUrl = new AtomicReference<String>(
 			null);
 	private final AtomicReference<String> cameraName = new AtomicReference<String>(
 			null);
+	// All cameras taking part in the timelapse, the first is the one above
+	private final List<String> cameraUrls = new CopyOnWriteArrayList<String>();
+	// All cameras answering the last scan, the user picks from them
+	private List<String> foundCameraUrls = Collections.emptyList();
+	private List<String> foundCameraNames = Collections.emptyList();
+	private final AtomicInteger previewObservers = new AtomicInteger(0);
+	private final AtomicReference<PreviewObserverListener> previewObserverListener = new AtomicReference<PreviewObserverListener>();
+	private DeviceCache deviceCache;
+	private final CameraRegistry cameraRegistry = new CameraRegistry();
+	private int presenceTrackers;
+	private SsdpNotifyListener notifyListener;
+
+	/**
+	 * Returns the cache of known cameras shared by the services.
+	 */
+	public synchronized DeviceCache getDeviceCache() {
+		if (deviceCache == null) {
+			deviceCache = new DeviceCache(getSharedPreferences(
+					DeviceCache.PREFERENCES_NAME, Context.MODE_PRIVATE));
+		}
+		return deviceCache;
+	}
+
+	/**
+	 * Returns the cameras currently announcing themselves. Only updated
+	 * while presence tracking is on.
+	 */
+	public CameraRegistry getCameraRegistry() {
+		return cameraRegistry;
+	}
+
+	/**
+	 * Starts listening for camera announcements. Calls are counted, tracking
+	 * stops when every caller stopped it.
+	 */
+	public synchronized void startPresenceTracking() {
+		if (presenceTrackers++ == 0) {
+			notifyListener = new SsdpNotifyListener(this, cameraRegistry,
+					getDeviceCache());
+			notifyListener.start();
+		}
+	}
+
+	public synchronized void stopPresenceTracking() {
+		if (presenceTrackers > 0 && --presenceTrackers == 0) {
+			notifyListener.stop();
+			notifyListener = null;
+		}
+	}
 
 	public AtomicReference<Bitmap> getPictureReference() {
 		return pictureReference;
 	}
 
+	public void addPreviewObserver() {
+		notifyPreviewObservers(previewObservers.incrementAndGet());
+	}
+
+	public void removePreviewObserver() {
+		notifyPreviewObservers(previewObservers.decrementAndGet());
+	}
+
+	public boolean hasPreviewObservers() {
+		return previewObservers.get() > 0;
+	}
+
+	public void setPreviewObserverListener(PreviewObserverListener listener) {
+		previewObserverListener.set(listener);
+	}
+
+	private void notifyPreviewObservers(int observers) {
+		PreviewObserverListener listener = previewObserverListener.get();
+		if (listener != null) {
+			listener.OnPreviewObserversChanged(observers);
+		}
+	}
+
 	public boolean isTimelapseActive() {
 		return timelapseActive.get();
 	}
@@ -34,6 +123,14 @@ public class TimelapseApp extends Application {
 		timelapseActive.set(isActive);
 	}
 
+	public boolean isFramingActive() {
+		return framingActive.get();
+	}
+
+	public void setFramingActive(boolean isActive) {
+		framingActive.set(isActive);
+	}
+
 	public String getCameraUrl() {
 		return cameraUrl.get();
 	}
@@ -42,6 +139,32 @@ public class TimelapseApp extends Application {
 		this.cameraUrl.set(cameraUrl);
 	}
 
+	public List<String> getCameraUrls() {
+		return Collections.unmodifiableList(cameraUrls);
+	}
+
+	public void setCameraUrls(List<String> cameraUrls) {
+		this.cameraUrls.clear();
+		this.cameraUrls.addAll(cameraUrls);
+	}
+
+	public synchronized List<String> getFoundCameraUrls() {
+		return foundCameraUrls;
+	}
+
+	/**
+	 * Returns the names of the cameras found, in the order of
+	 * {@link #getFoundCameraUrls()}.
+	 */
+	public synchronized List<String> getFoundCameraNames() {
+		return foundCameraNames;
+	}
+
+	public synchronized void setFoundCameras(List<String> urls, List<String> names) {
+		this.foundCameraUrls = Collections.unmodifiableList(new ArrayList<String>(urls));
+		this.foundCameraNames = Collections.unmodifiableList(new ArrayList<String>(names));
+	}
+
 	public String getCameraName() {
 		return cameraName.get();
 	}
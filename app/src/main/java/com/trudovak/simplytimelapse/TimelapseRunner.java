@@ -1,30 +1,53 @@
 package com.trudovak.simplytimelapse;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.MalformedURLException;
+import java.util.List;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-
+import com.trudovak.simplytimelapse.FrameScheduler.OverrunPolicy;
+import com.trudovak.simplytimelapse.archive.ShotLog;
+import com.trudovak.simplytimelapse.camera.CameraEvent;
+import com.trudovak.simplytimelapse.camera.CameraEventLoop;
+import com.trudovak.simplytimelapse.camera.CameraException;
+import com.trudovak.simplytimelapse.camera.JsonRpcResponse;
 import com.trudovak.simplytimelapse.camera.SimpleRemoteApi;
+import com.trudovak.simplytimelapse.preview.PreviewPipeline;
 import com.trudovak.simplytimelapse.utils.Logger;
 
-public class TimelapseRunner implements Runnable {
+public class TimelapseRunner implements Runnable, CameraEventLoop.Listener {
 
     public interface TimelapseListener {
         void OnComplete();
 
         void OnError(String msg);
 
-        void OnPicture(Bitmap picture, int remainingFrames, long actualInterval, TimeUnit unit);
+        void OnFrame(int remainingFrames, long actualInterval, TimeUnit unit);
+    }
+
+    /**
+     * Notified around each shot, e.g. to keep other traffic off the camera
+     * link. Called on the shutter threads, must not block.
+     */
+    public interface ShutterListener {
+        /** Called right before the picture is taken. */
+        void OnShutterOpening();
+
+        /** Called once the frame is complete, failed or stopped. */
+        void OnShutterClosed();
+    }
+
+    /**
+     * Receives the postview URL of every frame, including the last one.
+     */
+    public interface PostviewListener {
+        /**
+         * @param frame number of the frame, from 1
+         * @param uri postview URL
+         */
+        void OnPostview(int frame, String uri);
     }
 
     // private static String TAG = "TimelapseRunner";
@@ -33,47 +56,179 @@ public class TimelapseRunner implements Runnable {
 
     protected static final int SOCKET_TIMEOUT_MS = 60000;
 
+    // Error code of actTakePicture and awaitTakePicture while a long exposure is in progress
+    private static final int ERROR_LONG_SHOOTING = 40403;
+
+    // How long to wait for the takePicture event before asking the camera
+    private static final int AWAIT_EVENT_TIMEOUT_MS = SOCKET_TIMEOUT_MS;
+
+    // Waits between the retries of a frame after a transient error
+    private static final long RETRY_INITIAL_BACKOFF_MS = 500;
+    private static final long RETRY_MAX_BACKOFF_MS = 16000;
+    private static final int REC_MODE_TIMEOUT_MS = 10000;
+
+    // The timelapse ends once the camera failed for this long
+    private static final long MAX_OUTAGE_NANOS = TimeUnit.MINUTES.toNanos(15);
+
     private final ScheduledExecutorService scheduledExecutorService;
     private final SimpleRemoteApi remoteApi;
     private final TimelapseListener listener;
+    private final OverrunPolicy overrunPolicy;
+    private final PreviewPipeline previewPipeline;
+    private final CameraEventLoop eventLoop;
+    private final JsonRpcResponse response = new JsonRpcResponse();
+    private final JsonRpcResponse awaitResponse = new JsonRpcResponse();
+    private final RetryBudget retryBudget = new RetryBudget(RETRY_INITIAL_BACKOFF_MS, RETRY_MAX_BACKOFF_MS,
+            TimeUnit.MILLISECONDS);
 
-    private int remainingFrames;
+    private volatile int remainingFrames;
     private int interval;
+    private FrameScheduler scheduler;
     private ScheduledFuture<?> handle;
     private volatile boolean running = false;
 
     private long frameStart;
+    private long startNanos;
+    // Grid deadline and trigger time of the frame in progress
+    private long frameDeadline;
+    private long frameTrigger;
+    private volatile int awaitIterations;
+
+    // Set from the first failed attempt until a frame completes
+    private boolean outage;
+    private long outageStart;
+    private volatile boolean recModeLost;
+
+    // Set while a long exposure is waiting for its picture. Whoever clears it
+    // completes the frame.
+    private final AtomicBoolean awaitingPicture = new AtomicBoolean();
+    private volatile long pendingInterval;
+    private ScheduledFuture<?> awaitHandle;
+
+    private volatile ShutterListener shutterListener;
+    private volatile PostviewListener postviewListener;
+    private volatile ShotLog shotLog;
+    private volatile TimelapseSession session;
+    private int totalFrames;
 
     public TimelapseRunner(ScheduledExecutorService scheduledExecutorService, SimpleRemoteApi remoteApi,
             TimelapseListener listener) {
+        this(scheduledExecutorService, remoteApi, listener, OverrunPolicy.SKIP, null);
+    }
+
+    /**
+     * @param previewPipeline receives the postview URL of every frame, may be
+     *            null
+     */
+    public TimelapseRunner(ScheduledExecutorService scheduledExecutorService, SimpleRemoteApi remoteApi,
+            TimelapseListener listener, OverrunPolicy overrunPolicy, PreviewPipeline previewPipeline) {
+        this(scheduledExecutorService, remoteApi, listener, overrunPolicy, previewPipeline, null);
+    }
+
+    /**
+     * @param previewPipeline receives the postview URL of every frame, may be
+     *            null
+     * @param eventLoop camera events completing long exposures without
+     *            holding a thread, may be null. The runner must be added to
+     *            its listeners.
+     */
+    public TimelapseRunner(ScheduledExecutorService scheduledExecutorService, SimpleRemoteApi remoteApi,
+            TimelapseListener listener, OverrunPolicy overrunPolicy, PreviewPipeline previewPipeline,
+            CameraEventLoop eventLoop) {
         super();
         this.scheduledExecutorService = scheduledExecutorService;
         this.remoteApi = remoteApi;
         this.listener = listener;
+        this.overrunPolicy = overrunPolicy;
+        this.previewPipeline = previewPipeline;
+        this.eventLoop = eventLoop;
     }
 
     public synchronized void startTimelapse(int frames, int interval, TimeUnit unit) {
+        long now = System.nanoTime();
+        resumeTimelapse(frames, 0, interval, unit, now, 0, 0);
+    }
+
+    /**
+     * Continues a timelapse on its original frame grid, e.g. after the
+     * process was killed. Frames due while it was not running are handled by
+     * the overrun policy.
+     *
+     * @param frames total number of frames
+     * @param framesTaken frames already taken
+     * @param interval time between frames
+     * @param unit unit of the interval
+     * @param startNanos monotonic time the timelapse started at
+     * @param originOffsetNanos time of grid slot 0 from the start
+     * @param slot grid slot of the next frame
+     */
+    public synchronized void resumeTimelapse(int frames, int framesTaken, int interval, TimeUnit unit,
+            long startNanos, long originOffsetNanos, long slot) {
         if (TimeUnit.MILLISECONDS.convert(interval, unit) < 1000) {
             throw new IllegalArgumentException("Cannot run timelapse at faster rate than 1 seconds per frame");
         }
         if (running) {
             throw new IllegalStateException("TimelapseRunner is already running.");
         }
-        this.remainingFrames = frames;
+        this.remainingFrames = frames - framesTaken;
+        this.totalFrames = frames;
         this.interval = interval;
         running = true;
-        frameStart = System.currentTimeMillis();
-        handle = scheduledExecutorService.scheduleAtFixedRate(this, 0, interval, unit);
+        scheduler = new FrameScheduler(interval, unit, overrunPolicy);
+        this.startNanos = startNanos;
+        scheduler.start(startNanos + originOffsetNanos, slot);
+        frameStart = System.nanoTime();
+        handle = scheduledExecutorService.schedule(this, scheduler.getDelayNanos(frameStart),
+                TimeUnit.NANOSECONDS);
     }
 
     public synchronized void stopTimelapse() {
         if (running) {
             handle.cancel(false);
+            cancelAwait();
+            awaitingPicture.set(false);
+            shutterClosed();
             listener.OnComplete();
             running = false;
         }
     }
 
+    /**
+     * Sets the listener notified around each shot.
+     *
+     * @param shutterListener the listener, or null
+     */
+    public void setShutterListener(ShutterListener shutterListener) {
+        this.shutterListener = shutterListener;
+    }
+
+    /**
+     * Sets the listener receiving the postview URLs.
+     *
+     * @param postviewListener the listener, or null
+     */
+    public void setPostviewListener(PostviewListener postviewListener) {
+        this.postviewListener = postviewListener;
+    }
+
+    /**
+     * Sets the log receiving a record of every frame.
+     *
+     * @param shotLog the log, or null
+     */
+    public void setShotLog(ShotLog shotLog) {
+        this.shotLog = shotLog;
+    }
+
+    /**
+     * Sets the session checkpointed around every frame.
+     *
+     * @param session the session, or null
+     */
+    public void setSession(TimelapseSession session) {
+        this.session = session;
+    }
+
     public synchronized boolean isRunning() {
         return this.running;
     }
@@ -86,92 +241,305 @@ public class TimelapseRunner implements Runnable {
         return running ? this.interval : 1;
     }
 
+    // Takes one frame. The runner lock is not held during the camera calls so
+    // the timelapse can be stopped while a long exposure is in progress.
     @Override
-    public synchronized void run() {
-        JSONObject response;
+    public void run() {
+        if (!isRunning()) {
+            return;
+        }
+        final long now = System.nanoTime();
+        pendingInterval = TimeUnit.NANOSECONDS.toMillis(now - frameStart);
+        frameStart = now;
+        frameDeadline = scheduler.getDeadlineNanos();
+        awaitIterations = 0;
+        // Retries must not push the next frame off the grid
+        retryBudget.reset(frameDeadline + scheduler.getIntervalNanos());
         try {
-            final long interval = System.currentTimeMillis() - frameStart;
-            String uriValue = null;
-            frameStart = System.currentTimeMillis();
-            response = remoteApi.actTakePicture(SOCKET_TIMEOUT_MS);
-
-            // In case of long exposure handle the error and call awaitTakePicture
-            // {
-            // "id": 42,
-            // "error": [
-            // 40403,
-            // "Long shooting"
-            // ]
-            // }
-            // In case of very long exposure awaitTakePicture will return
-            // {
-            // "id": 42,
-            // "error": [
-            // 40403,
-            // "Not Finished"
-            // ]
-            // }
-            // In the end we see
-            // {
-            // "id": 42,
-            // "result": [
-            // [
-            // "http://192.168.122.1:8080/postview/pict20140719_114631_0.JPG"
-            // ]
-            // ]
-            // }
+            takePicture();
+        } catch (IOException e) {
+            handleError(e);
+        }
+    }
+
+    // Retries the frame in progress, putting the camera back in shooting
+    // mode first if it left it.
+    private final Runnable retryTask = new Runnable() {
+        @Override
+        public void run() {
+            if (!isRunning()) {
+                return;
+            }
             try {
-                int errorCode = parseErrorCode(response);
-                while (errorCode == 40403) {
-                    response = remoteApi.awaitTakePicture(SOCKET_TIMEOUT_MS);
-                    errorCode = parseErrorCode(response);
+                if (recModeLost) {
+                    // The list may be stale after the error, ask the camera.
+                    // startRecMode is not offered while it is still in
+                    // shooting mode.
+                    remoteApi.getAvailableApiList(REC_MODE_TIMEOUT_MS);
+                    if (remoteApi.isApiAvailable("startRecMode")) {
+                        logger.debug("Restarting shooting mode");
+                        remoteApi.startRecMode(REC_MODE_TIMEOUT_MS);
+                    }
+                    recModeLost = false;
                 }
+                takePicture();
+            } catch (IOException e) {
+                handleError(e);
+            }
+        }
+    };
 
-                JSONArray result = response.getJSONArray("result");
-                result = result.getJSONArray(0);
-                uriValue = result.getString(0);
-            } catch (JSONException e) {
-                logger.error(e, "JSON error taking frame. Stopping timelapse. JSON is {}", response);
-                // Ignore JSON Errors
+    // One attempt at the frame in progress.
+    private void takePicture() throws IOException {
+        final long now = System.nanoTime();
+        frameTrigger = now;
+        scheduler.frameTriggered(now);
+        // A frame triggered before the process died is not taken again
+        checkpoint(totalFrames - remainingFrames, scheduler.getSlot());
+        ShutterListener shutterListener = this.shutterListener;
+        if (shutterListener != null) {
+            shutterListener.OnShutterOpening();
+        }
+        remoteApi.actTakePicture(SOCKET_TIMEOUT_MS, response);
+
+        // In case of long exposure handle the error and call awaitTakePicture
+        // {
+        // "id": 42,
+        // "error": [
+        // 40403,
+        // "Long shooting"
+        // ]
+        // }
+        // In case of very long exposure awaitTakePicture will return
+        // {
+        // "id": 42,
+        // "error": [
+        // 40403,
+        // "Not Finished"
+        // ]
+        // }
+        // In the end we see
+        // {
+        // "id": 42,
+        // "result": [
+        // [
+        // "http://192.168.122.1:8080/postview/pict20140719_114631_0.JPG"
+        // ]
+        // ]
+        // }
+        if (response.getErrorCode() == ERROR_LONG_SHOOTING && eventLoop != null && eventLoop.isRunning()) {
+            // Release the thread, the takePicture event completes the frame
+            awaitingPicture.set(true);
+            scheduleAwait(AWAIT_EVENT_TIMEOUT_MS);
+            return;
+        }
+        while (response.getErrorCode() == ERROR_LONG_SHOOTING) {
+            awaitIterations++;
+            remoteApi.awaitTakePicture(SOCKET_TIMEOUT_MS, response);
+        }
+        if (response.isError()) {
+            if (CameraException.isTransient(response.getErrorCode())) {
+                throw CameraException.cameraError(response.getErrorCode(), response.getErrorMessage());
             }
-            remainingFrames--;
-            if (uriValue != null && remainingFrames > 0) {
-                final String uri = uriValue;
-                scheduledExecutorService.execute(new Runnable() {
-                    @Override
-                    public void run() {
-                        Bitmap bitmap = null;
-                        InputStream in;
-                        try {
-                            in = new java.net.URL(uri).openStream();
-                            bitmap = BitmapFactory.decodeStream(in);
-                        } catch (MalformedURLException e) {
-                            logger.debug("Cannot load the image from: " + uri);
-                        } catch (IOException e) {
-                            logger.debug("Cannot load image due to I/O error from:" + uri);
-                        }
-                        listener.OnPicture(bitmap, remainingFrames, interval, TimeUnit.MILLISECONDS);
-                    }
-                });
+            logger.error("Camera error taking frame: {0} {1}", response.getErrorCode(),
+                    response.getErrorMessage());
+        }
+        completeFrame(response.getFirstResult(), pendingInterval, response.getErrorCode());
+    }
+
+    // Completes a long exposure from the camera events.
+    @Override
+    public void OnCameraEvent(CameraEvent event) {
+        if (!awaitingPicture.get()) {
+            return;
+        }
+        List<String> urls = event.getTakePictureUrls();
+        if (!urls.isEmpty()) {
+            if (awaitingPicture.compareAndSet(true, false)) {
+                cancelAwait();
+                completeFrame(urls.get(0), pendingInterval, JsonRpcResponse.NO_ERROR);
             }
+        } else if (CameraEvent.STATUS_IDLE.equals(event.getCameraStatus())) {
+            // Done without a takePicture event, collect the result right away
+            scheduleAwait(0);
+        }
+    }
+
+    private synchronized void scheduleAwait(long delayMillis) {
+        if (!running) {
+            return;
+        }
+        cancelAwait();
+        awaitHandle = scheduledExecutorService.schedule(awaitTask, delayMillis, TimeUnit.MILLISECONDS);
+    }
 
-            if (remainingFrames <= 0) {
-                stopTimelapse();
+    private synchronized void cancelAwait() {
+        if (awaitHandle != null) {
+            awaitHandle.cancel(false);
+            awaitHandle = null;
+        }
+    }
+
+    // Fallback when the events do not complete a long exposure in time: asks
+    // the camera directly, once per call.
+    private final Runnable awaitTask = new Runnable() {
+        @Override
+        public void run() {
+            if (!awaitingPicture.get() || !isRunning()) {
+                return;
+            }
+            try {
+                awaitIterations++;
+                remoteApi.awaitTakePicture(SOCKET_TIMEOUT_MS, awaitResponse);
+                if (awaitResponse.getErrorCode() == ERROR_LONG_SHOOTING) {
+                    scheduleAwait(AWAIT_EVENT_TIMEOUT_MS);
+                    return;
+                }
+                if (!awaitingPicture.compareAndSet(true, false)) {
+                    // Completed by an event meanwhile
+                    return;
+                }
+                if (awaitResponse.isError()) {
+                    logger.error("Camera error taking frame: {0} {1}", awaitResponse.getErrorCode(),
+                            awaitResponse.getErrorMessage());
+                }
+                completeFrame(awaitResponse.getFirstResult(), pendingInterval, awaitResponse.getErrorCode());
+            } catch (IOException e) {
+                if (awaitingPicture.compareAndSet(true, false)) {
+                    handleError(e);
+                }
+            }
+        }
+    };
+
+    private void completeFrame(String uriValue, long interval, int errorCode) {
+        long responseTime = System.nanoTime();
+        long triggeredSlot = scheduler.getSlot();
+        scheduler.frameCompleted(responseTime);
+        shutterClosed();
+        logger.debug("Frame latency {0}ms, compensation {1}ms, overruns {2}, skipped slots {3}",
+                TimeUnit.NANOSECONDS.toMillis(scheduler.getLastLatencyNanos()),
+                TimeUnit.NANOSECONDS.toMillis(scheduler.getCompensationNanos()), scheduler.getOverruns(),
+                scheduler.getSkippedSlots());
+
+        final int remainingFrames;
+        synchronized (this) {
+            outage = false;
+            remainingFrames = --this.remainingFrames;
+            checkpoint(totalFrames - remainingFrames, triggeredSlot);
+            if (running && remainingFrames > 0) {
+                handle = scheduledExecutorService.schedule(this, scheduler.getDelayNanos(System.nanoTime()),
+                        TimeUnit.NANOSECONDS);
+            }
+        }
+        logShot(totalFrames - remainingFrames, triggeredSlot, responseTime, uriValue, errorCode);
+        listener.OnFrame(remainingFrames, interval, TimeUnit.MILLISECONDS);
+        PostviewListener postviewListener = this.postviewListener;
+        if (uriValue != null && postviewListener != null) {
+            postviewListener.OnPostview(totalFrames - remainingFrames, uriValue);
+        }
+        if (uriValue != null && remainingFrames > 0 && previewPipeline != null) {
+            previewPipeline.submit(uriValue);
+        }
+
+        if (remainingFrames <= 0) {
+            stopTimelapse();
+        }
+    }
+
+    // Retries the frame after a transient error while its budget allows, then
+    // gives it up and goes on with the next one. A picture may have been
+    // taken if the answer was lost; a spare frame beats a gap. Other errors,
+    // or a camera failing for longer than MAX_OUTAGE_NANOS, end the
+    // timelapse.
+    private void handleError(IOException e) {
+        CameraException error = CameraException.from(e);
+        long now = System.nanoTime();
+        if (!error.isTransient() || isOutageOver(now)) {
+            failFrame(error);
+            return;
+        }
+        if (error.requiresRecMode()) {
+            recModeLost = true;
+        }
+        // No picture, whether the frame is retried or given up
+        logShot(ShotLog.NO_FRAME, scheduler.getSlot(), now, null, getShotError(error));
+        shutterClosed();
+        long delay = retryBudget.nextDelayNanos(now, scheduler.getCompensationNanos());
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            if (delay >= 0) {
+                logger.warn("Frame attempt {0} failed, retrying in {1}ms: {2}", retryBudget.getAttempts(),
+                        TimeUnit.NANOSECONDS.toMillis(delay), error.getMessage());
+                handle = scheduledExecutorService.schedule(retryTask, delay, TimeUnit.NANOSECONDS);
+                return;
+            }
+            logger.warn("Frame lost after {0} retries: {1}", retryBudget.getAttempts(), error.getMessage());
+            long lostSlot = scheduler.getSlot();
+            scheduler.frameLost(now);
+            checkpoint(totalFrames - remainingFrames, lostSlot);
+            handle = scheduledExecutorService.schedule(this, scheduler.getDelayNanos(System.nanoTime()),
+                    TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private synchronized boolean isOutageOver(long now) {
+        if (!outage) {
+            outage = true;
+            outageStart = now;
+        }
+        return now - outageStart > MAX_OUTAGE_NANOS;
+    }
+
+    private void failFrame(CameraException e) {
+        logger.error(e, "Error taking frame. Stopping timelapse");
+        long responseTime = System.nanoTime();
+        synchronized (this) {
+            if (!running) {
+                return;
             }
-        } catch (IOException e) {
-            logger.error(e, "Error taking frame. Stopping timelapse");
             handle.cancel(false);
-            listener.OnError(e.getMessage());
+            cancelAwait();
             running = false;
         }
+        logShot(ShotLog.NO_FRAME, scheduler.getSlot(), responseTime, null, getShotError(e));
+        shutterClosed();
+        listener.OnError(e.getMessage());
+    }
+
+    private static int getShotError(CameraException e) {
+        return e.getKind() == CameraException.Kind.CAMERA_ERROR ? e.getErrorCode() : ShotLog.ERROR_IO;
+    }
+
+    private void checkpoint(int framesTaken, long triggeredSlot) {
+        TimelapseSession session = this.session;
+        if (session != null) {
+            session.checkpoint(framesTaken, scheduler.getSlot(), triggeredSlot,
+                    scheduler.getOriginNanos() - startNanos);
+        }
+    }
 
+    // Times are logged from the start of the timelapse, which stays put when
+    // the grid is shifted
+    private void logShot(int frame, long slot, long responseTime, String uriValue, int errorCode) {
+        ShotLog shotLog = this.shotLog;
+        if (shotLog == null) {
+            return;
+        }
+        try {
+            shotLog.append(new ShotLog.Shot(frame, slot, retryBudget.getAttempts() + 1, frameDeadline - startNanos,
+                    frameTrigger - startNanos, responseTime - startNanos, awaitIterations, uriValue, errorCode));
+        } catch (IOException e) {
+            logger.warn("Cannot log slot {0}: {1}", slot, e.getMessage());
+        }
     }
 
-    private int parseErrorCode(JSONObject response) throws JSONException {
-        if(response.has("error")){
-            JSONArray error = response.getJSONArray("error");
-            return error.getInt(0);
+    private void shutterClosed() {
+        ShutterListener shutterListener = this.shutterListener;
+        if (shutterListener != null) {
+            shutterListener.OnShutterClosed();
         }
-        return 0;
     }
 }
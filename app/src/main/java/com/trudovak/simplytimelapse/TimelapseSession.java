@@ -0,0 +1,270 @@
+package com.trudovak.simplytimelapse;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.os.SystemClock;
+
+import com.trudovak.simplytimelapse.utils.Logger;
+
+/**
+ * Durable state of a running timelapse, so it can be resumed after the
+ * process is killed. The settings are written once when the session is
+ * created. The progress is checkpointed through a memory mapped file before
+ * and after every frame, which costs a few buffer writes and survives the
+ * process dying as soon as it is written. There are two checkpoint slots
+ * written in turn; a sequence number switched after the slot is complete
+ * tells which one is valid, so a checkpoint torn by the kill is ignored.
+ * <p>
+ * The start of the timelapse is kept as {@link SystemClock#elapsedRealtime()},
+ * which keeps counting while the phone sleeps and across processes, so the
+ * frame grid can be rebuilt on the monotonic clock of the new process. The
+ * wall clock time of the start tells the boot it belongs to: after a restart
+ * of the phone the elapsed time comes from the wall clock instead.
+ */
+public class TimelapseSession {
+
+    private static final Logger logger = new Logger(TimelapseSession.class);
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int MAGIC = 0x544c5353; // "TLSS"
+    private static final int VERSION = 1;
+
+    private static final int FILE_SIZE = 4096;
+    private static final int SEQUENCE_OFFSET = 8;
+    // Frames taken, padding, next slot, last triggered slot, grid origin
+    private static final int SLOT_SIZE = 32;
+    private static final int SLOTS_OFFSET = 16;
+    private static final int CONFIG_OFFSET = SLOTS_OFFSET + 2 * SLOT_SIZE;
+    private static final int MAX_CONFIG_LENGTH = FILE_SIZE - CONFIG_OFFSET - 4;
+
+    private static final String START_ELAPSED = "startElapsed";
+    private static final String START_WALL = "startWall";
+
+    // Wall clock jitter tolerated between two estimates of the boot time
+    private static final long BOOT_TOLERANCE_MILLIS = 5000;
+
+    /** No frame was triggered yet. */
+    public static final long NO_SLOT = -1;
+
+    private final File file;
+    private final JSONObject config;
+    private final long startElapsedMillis;
+    private final long startWallMillis;
+    private RandomAccessFile raf;
+    private MappedByteBuffer buffer;
+    private long sequence;
+
+    private TimelapseSession(File file, RandomAccessFile raf, MappedByteBuffer buffer, JSONObject config) {
+        this.file = file;
+        this.raf = raf;
+        this.buffer = buffer;
+        this.config = config;
+        this.startElapsedMillis = config.optLong(START_ELAPSED, 0);
+        this.startWallMillis = config.optLong(START_WALL, 0);
+        this.sequence = buffer.getLong(SEQUENCE_OFFSET);
+    }
+
+    /**
+     * Creates a session starting now, replacing any previous one.
+     *
+     * @param file the session file
+     * @param config settings of the timelapse, needed to resume it
+     * @return the session, with no frame taken
+     * @throws IOException if the file cannot be written
+     */
+    public static TimelapseSession create(File file, JSONObject config) throws IOException {
+        byte[] json;
+        try {
+            config.put(START_ELAPSED, SystemClock.elapsedRealtime());
+            config.put(START_WALL, System.currentTimeMillis());
+            json = config.toString().getBytes(UTF_8);
+        } catch (JSONException e) {
+            throw new IOException("Cannot store session settings: " + e.getMessage());
+        }
+        if (json.length > MAX_CONFIG_LENGTH) {
+            throw new IOException("Session settings too long: " + json.length);
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE);
+            buffer.putInt(0, 0);
+            buffer.putInt(4, VERSION);
+            buffer.putLong(SEQUENCE_OFFSET, 0);
+            writeSlot(buffer, slotOffset(0), 0, 0, NO_SLOT, 0);
+            buffer.putInt(CONFIG_OFFSET, json.length);
+            buffer.position(CONFIG_OFFSET + 4);
+            buffer.put(json);
+            // A session without the magic number is ignored
+            buffer.putInt(0, MAGIC);
+            buffer.force();
+            return new TimelapseSession(file, raf, buffer, config);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens the session left by a killed process.
+     *
+     * @param file the session file
+     * @return the session, or null if there is none
+     */
+    public static TimelapseSession open(File file) {
+        if (file.length() < FILE_SIZE) {
+            return null;
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE);
+            int length = buffer.getInt(CONFIG_OFFSET);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || length < 0
+                    || length > MAX_CONFIG_LENGTH) {
+                logger.warn("Ignoring invalid session {0}", file);
+                raf.close();
+                return null;
+            }
+            byte[] json = new byte[length];
+            buffer.position(CONFIG_OFFSET + 4);
+            buffer.get(json);
+            TimelapseSession session = new TimelapseSession(file, raf, buffer,
+                    new JSONObject(new String(json, UTF_8)));
+            logger.debug("Session {0} opened, {1} frames taken", file, session.getFramesTaken());
+            return session;
+        } catch (IOException e) {
+            logger.warn(e, "Cannot open session {0}", file);
+        } catch (JSONException e) {
+            logger.warn(e, "Ignoring session {0} with invalid settings", file);
+        }
+        if (raf != null) {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                logger.debug("Cannot close session {0}", file);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the settings given to {@link #create(File, JSONObject)}.
+     */
+    public JSONObject getConfig() {
+        return config;
+    }
+
+    /**
+     * Returns the time since the start of the timelapse. Falls back to the
+     * wall clock if the phone was restarted meanwhile.
+     */
+    public long getElapsedNanos() {
+        long nowElapsed = SystemClock.elapsedRealtime();
+        long nowWall = System.currentTimeMillis();
+        long elapsed = nowElapsed - startElapsedMillis;
+        // Wall clock time of the boot, the same all along one boot
+        long bootWall = nowWall - nowElapsed;
+        long startBootWall = startWallMillis - startElapsedMillis;
+        if (elapsed < 0 || Math.abs(bootWall - startBootWall) > BOOT_TOLERANCE_MILLIS) {
+            // Restarted, the realtime clock started over
+            logger.info("Phone restarted since the session started, timing it by the wall clock");
+            elapsed = Math.max(0, nowWall - startWallMillis);
+        }
+        return TimeUnit.MILLISECONDS.toNanos(elapsed);
+    }
+
+    public synchronized int getFramesTaken() {
+        return buffer.getInt(slotOffset(sequence));
+    }
+
+    /**
+     * Returns the grid slot of the next frame.
+     */
+    public synchronized long getNextSlot() {
+        return buffer.getLong(slotOffset(sequence) + 8);
+    }
+
+    /**
+     * Returns the slot of the last frame triggered, or {@link #NO_SLOT}. If
+     * it is not below {@link #getNextSlot()} the process died during the
+     * shot, and the picture may have been taken.
+     */
+    public synchronized long getTriggeredSlot() {
+        return buffer.getLong(slotOffset(sequence) + 16);
+    }
+
+    /**
+     * Returns the time of grid slot 0 from the start of the timelapse, which
+     * moves if the grid is shifted after an overrun.
+     */
+    public synchronized long getOriginOffsetNanos() {
+        return buffer.getLong(slotOffset(sequence) + 24);
+    }
+
+    /**
+     * Records the progress. Returns at once; the data reaches storage when the
+     * system writes the page back, even if the process dies first.
+     *
+     * @param framesTaken frames taken so far
+     * @param nextSlot grid slot of the next frame
+     * @param triggeredSlot slot of the last frame triggered
+     * @param originOffsetNanos time of grid slot 0 from the start
+     */
+    public synchronized void checkpoint(int framesTaken, long nextSlot, long triggeredSlot,
+            long originOffsetNanos) {
+        if (buffer == null) {
+            return;
+        }
+        writeSlot(buffer, slotOffset(sequence + 1), framesTaken, nextSlot, triggeredSlot, originOffsetNanos);
+        buffer.putLong(SEQUENCE_OFFSET, ++sequence);
+    }
+
+    /**
+     * Ends the session and deletes its file, so it is not resumed.
+     */
+    public synchronized void delete() {
+        close();
+        if (!file.delete() && file.exists()) {
+            logger.warn("Cannot delete session {0}", file);
+        }
+    }
+
+    /**
+     * Unmaps the session and keeps its file.
+     */
+    public synchronized void close() {
+        if (raf == null) {
+            return;
+        }
+        buffer = null;
+        try {
+            raf.close();
+        } catch (IOException e) {
+            logger.debug("Cannot close session {0}", file);
+        }
+        raf = null;
+    }
+
+    private static int slotOffset(long sequence) {
+        return SLOTS_OFFSET + (int) (sequence & 1) * SLOT_SIZE;
+    }
+
+    private static void writeSlot(MappedByteBuffer buffer, int offset, int framesTaken, long nextSlot,
+            long triggeredSlot, long originOffsetNanos) {
+        buffer.putInt(offset, framesTaken);
+        buffer.putLong(offset + 8, nextSlot);
+        buffer.putLong(offset + 16, triggeredSlot);
+        buffer.putLong(offset + 24, originOffsetNanos);
+    }
+}
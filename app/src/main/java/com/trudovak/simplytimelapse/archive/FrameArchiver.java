@@ -0,0 +1,358 @@
+package com.trudovak.simplytimelapse.archive;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Locale;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.trudovak.simplytimelapse.utils.Logger;
+
+/**
+ * Keeps a copy of every frame on the phone. The pictures are downloaded one
+ * at a time on a background thread and streamed from the socket into a file
+ * channel, never held in memory whole. While the shutter is released the
+ * download in progress is held between two chunks, its connection left open,
+ * and carries on afterwards; aborting it would restart the picture from the
+ * beginning on cameras ignoring Range requests. Downloads broken by the
+ * network are resumed with a Range request. A picture is written to a ".part"
+ * file and renamed once complete, so every file without the suffix is a whole
+ * picture.
+ */
+public class FrameArchiver implements Runnable {
+
+    private static final Logger logger = new Logger(FrameArchiver.class);
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 64;
+
+    private static final String THREAD_NAME = "frame-archiver";
+    private static final String PART_SUFFIX = ".part";
+
+    private static final int CONNECTION_TIMEOUT = 10000; // [msec]
+    private static final int READ_TIMEOUT = 10000; // [msec]
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long RETRY_DELAY = 1000; // [msec]
+    private static final long MAX_RETRY_DELAY = 30000; // [msec]
+    // Bytes moved per transfer call
+    private static final long TRANSFER_CHUNK = 64 * 1024;
+
+    /**
+     * Notified of every picture stored. Called on the archiver thread.
+     */
+    public interface Listener {
+        /**
+         * @param frame number of the frame, from 1
+         * @param file the complete picture
+         */
+        void OnFrameArchived(int frame, File file);
+    }
+
+    private static class Job {
+        final int frame;
+        final String url;
+        int attempts;
+
+        Job(int frame, String url) {
+            this.frame = frame;
+            this.url = url;
+        }
+    }
+
+    private final File directory;
+    private final BlockingQueue<Job> queue;
+
+    private final Object lock = new Object();
+    private Thread thread;
+    private boolean paused;
+    private boolean finishing;
+    private volatile HttpURLConnection connection;
+
+    private final AtomicInteger archived = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicInteger overflowed = new AtomicInteger();
+    private final AtomicLong bytes = new AtomicLong();
+
+    private volatile Listener listener;
+
+    /**
+     * Constructor.
+     *
+     * @param directory where the pictures are stored, created if needed
+     * @param queueCapacity most pictures waiting for download
+     */
+    public FrameArchiver(File directory, int queueCapacity) {
+        this.directory = directory;
+        this.queue = new LinkedBlockingQueue<Job>(queueCapacity);
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Sets the listener notified of every picture stored.
+     *
+     * @param listener the listener, or null
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Starts downloading. Does nothing if already started.
+     */
+    public void start() {
+        synchronized (lock) {
+            if (thread == null) {
+                finishing = false;
+                thread = new Thread(this, THREAD_NAME);
+                thread.start();
+            }
+        }
+    }
+
+    /**
+     * Lets the pictures already queued be downloaded, then stops.
+     */
+    public void finish() {
+        synchronized (lock) {
+            finishing = true;
+            paused = false;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Stops at once. The picture being downloaded is left as a ".part" file.
+     */
+    public void stop() {
+        Thread t;
+        synchronized (lock) {
+            t = thread;
+            thread = null;
+            lock.notifyAll();
+        }
+        if (t != null) {
+            abort();
+            t.interrupt();
+        }
+    }
+
+    /**
+     * Queues a picture for download. Never blocks.
+     *
+     * @param frame number of the frame, from 1
+     * @param url URL of the picture
+     * @return false if the queue is full and the picture is not archived
+     */
+    public boolean archive(int frame, String url) {
+        if (queue.offer(new Job(frame, url))) {
+            return true;
+        }
+        overflowed.incrementAndGet();
+        logger.warn("Archive queue full, frame {0} not archived", frame);
+        return false;
+    }
+
+    /**
+     * Holds the download in progress after its current chunk and starts no
+     * other one before {@link #resume()}. Returns at once.
+     */
+    public void pause() {
+        synchronized (lock) {
+            if (thread == null || finishing) {
+                return;
+            }
+            paused = true;
+        }
+    }
+
+    /**
+     * Resumes the downloads stopped by {@link #pause()}.
+     */
+    public void resume() {
+        synchronized (lock) {
+            paused = false;
+            lock.notifyAll();
+        }
+    }
+
+    public int getArchived() {
+        return archived.get();
+    }
+
+    public int getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * Returns the number of pictures not archived as the queue was full.
+     */
+    public int getOverflowed() {
+        return overflowed.get();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    @Override
+    public void run() {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            logger.error("Cannot create archive directory {0}", directory);
+            return;
+        }
+        logger.debug("Archiving frames to {0}", directory);
+        try {
+            Job job;
+            while ((job = nextJob()) != null) {
+                process(job);
+            }
+        } catch (InterruptedException e) {
+            // Stopped
+        } finally {
+            logger.info("Archived {0} frames, {1} bytes. Failed {2}, not queued {3}", archived.get(), bytes.get(),
+                    failed.get(), overflowed.get());
+        }
+    }
+
+    // Downloads a picture, retrying until it is complete, it failed too often
+    // or the archiver is stopped.
+    private void process(Job job) throws InterruptedException {
+        while (true) {
+            try {
+                download(job);
+                archived.incrementAndGet();
+                return;
+            } catch (IOException e) {
+                if (++job.attempts >= MAX_ATTEMPTS) {
+                    failed.incrementAndGet();
+                    logger.error(e, "Cannot archive frame {0} from {1}", job.frame, job.url);
+                    return;
+                }
+                long delay = Math.min(MAX_RETRY_DELAY, RETRY_DELAY << (job.attempts - 1));
+                logger.warn("Archiving frame {0} failed, retrying in {1}ms: {2}", job.frame, delay,
+                        e.getMessage());
+                synchronized (lock) {
+                    lock.wait(delay);
+                }
+            }
+        }
+    }
+
+    private void download(Job job) throws IOException, InterruptedException {
+        File file = new File(directory, String.format(Locale.US, "frame_%05d.jpg", job.frame));
+        File part = new File(directory, file.getName() + PART_SUFFIX);
+        long offset = part.length();
+
+        HttpURLConnection httpConn = (HttpURLConnection) new URL(job.url).openConnection();
+        connection = httpConn;
+        RandomAccessFile out = null;
+        InputStream in = null;
+        try {
+            holdForShutter();
+            httpConn.setConnectTimeout(CONNECTION_TIMEOUT);
+            httpConn.setReadTimeout(READ_TIMEOUT);
+            if (offset > 0) {
+                httpConn.setRequestProperty("Range", "bytes=" + offset + "-");
+            }
+            int responseCode = httpConn.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_OK) {
+                // Range not supported, start over
+                offset = 0;
+            } else if (responseCode != HttpURLConnection.HTTP_PARTIAL) {
+                throw new IOException("Response Error:" + responseCode);
+            }
+            long expected = httpConn.getContentLength();
+            in = httpConn.getInputStream();
+            out = new RandomAccessFile(part, "rw");
+            FileChannel channel = out.getChannel();
+            channel.truncate(offset);
+            ReadableByteChannel source = Channels.newChannel(in);
+            long position = offset;
+            long transferred;
+            while ((transferred = channel.transferFrom(source, position, TRANSFER_CHUNK)) > 0) {
+                position += transferred;
+                bytes.addAndGet(transferred);
+                holdForShutter();
+            }
+            if (expected >= 0 && position - offset != expected) {
+                throw new IOException("Download ended after " + (position - offset) + " of " + expected
+                        + " bytes");
+            }
+            // The picture must survive the app being killed
+            channel.force(false);
+        } finally {
+            connection = null;
+            if (out != null) {
+                out.close();
+            }
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    logger.debug("Cannot close download of frame {0}", job.frame);
+                }
+            }
+            httpConn.disconnect();
+        }
+        if (!part.renameTo(file)) {
+            throw new IOException("Cannot rename " + part);
+        }
+        logger.debug("Archived frame {0}", job.frame);
+        Listener listener = this.listener;
+        if (listener != null) {
+            listener.OnFrameArchived(job.frame, file);
+        }
+    }
+
+    // Returns the next picture to download, or null once stopped or finished.
+    private Job nextJob() throws InterruptedException {
+        while (true) {
+            synchronized (lock) {
+                if (thread != Thread.currentThread()) {
+                    return null;
+                }
+                if (finishing && queue.isEmpty()) {
+                    thread = null;
+                    return null;
+                }
+            }
+            Job job = queue.poll(1, TimeUnit.SECONDS);
+            if (job != null) {
+                return job;
+            }
+        }
+    }
+
+    // Waits while paused, leaving the link to the shutter. Throws once stopped.
+    private void holdForShutter() throws InterruptedException {
+        synchronized (lock) {
+            while (thread == Thread.currentThread() && paused) {
+                lock.wait();
+            }
+            if (thread != Thread.currentThread()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    // Breaks the download in progress when stopping, which fails with an
+    // IOException.
+    private void abort() {
+        HttpURLConnection httpConn = connection;
+        if (httpConn != null) {
+            httpConn.disconnect();
+        }
+    }
+}
@@ -0,0 +1,380 @@
+package com.trudovak.simplytimelapse.archive;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.trudovak.simplytimelapse.utils.Logger;
+
+/**
+ * Append-only log of what happened to every frame, for checking the interval
+ * jitter of long timelapses afterwards. Records have a fixed size and are
+ * written through a memory mapped file, one segment at a time, so appending
+ * costs no system call and a record survives the app being killed as soon as
+ * it is written. The record count in the header is updated after the record,
+ * so a torn append is never read back. Records are appended in grid order and
+ * looked up by binary search.
+ * <p>
+ * Every attempt at a frame is logged with its grid slot. Only the attempt
+ * that took the picture carries the frame number, so retries and slots given
+ * up stay apart from the shots.
+ */
+public class ShotLog {
+
+    private static final Logger logger = new Logger(ShotLog.class);
+
+    /** Error code of a frame that failed on the network. */
+    public static final int ERROR_IO = -1;
+
+    /** Frame number of an attempt that took no picture. */
+    public static final int NO_FRAME = 0;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private static final int MAGIC = 0x53484f54; // "SHOT"
+    private static final int VERSION = 2;
+
+    // Magic, version, record size, record count, wall clock of the start
+    private static final int HEADER_SIZE = 32;
+    private static final int COUNT_OFFSET = 12;
+    private static final int START_OFFSET = 16;
+
+    // Frame, error code, deadline, trigger, response, grid slot, await
+    // iterations, attempt, URL length and the URL itself
+    static final int RECORD_SIZE = 128;
+    private static final int URL_OFFSET = 52;
+    private static final int MAX_URL_LENGTH = RECORD_SIZE - URL_OFFSET;
+
+    // Records mapped at a time, 128 KB
+    private static final int SEGMENT_RECORDS = 1024;
+
+    /**
+     * One attempt at a frame. The times are in nanoseconds since the start of
+     * the timelapse.
+     */
+    public static class Shot {
+        private final int frame;
+        private final long slot;
+        private final int attempt;
+        private final long deadlineNanos;
+        private final long triggerNanos;
+        private final long responseNanos;
+        private final int awaitIterations;
+        private final String postviewUrl;
+        private final int errorCode;
+
+        /**
+         * Constructor.
+         *
+         * @param frame number of the frame, from 1, or {@link #NO_FRAME}
+         * @param slot grid slot of the frame
+         * @param attempt attempt at the slot, from 1
+         * @param deadlineNanos time the frame was due on the grid
+         * @param triggerNanos time the picture was requested
+         * @param responseNanos time the camera answered
+         * @param awaitIterations awaitTakePicture calls of a long exposure
+         * @param postviewUrl postview URL, may be null
+         * @param errorCode camera error code, {@link #ERROR_IO} or 0
+         */
+        public Shot(int frame, long slot, int attempt, long deadlineNanos, long triggerNanos, long responseNanos,
+                int awaitIterations, String postviewUrl, int errorCode) {
+            this.frame = frame;
+            this.slot = slot;
+            this.attempt = attempt;
+            this.deadlineNanos = deadlineNanos;
+            this.triggerNanos = triggerNanos;
+            this.responseNanos = responseNanos;
+            this.awaitIterations = awaitIterations;
+            this.postviewUrl = postviewUrl;
+            this.errorCode = errorCode;
+        }
+
+        /**
+         * Returns the number of the frame, or {@link #NO_FRAME} if the attempt
+         * took no picture.
+         */
+        public int getFrame() {
+            return frame;
+        }
+
+        public long getSlot() {
+            return slot;
+        }
+
+        public int getAttempt() {
+            return attempt;
+        }
+
+        public long getDeadlineNanos() {
+            return deadlineNanos;
+        }
+
+        public long getTriggerNanos() {
+            return triggerNanos;
+        }
+
+        public long getResponseNanos() {
+            return responseNanos;
+        }
+
+        public int getAwaitIterations() {
+            return awaitIterations;
+        }
+
+        /**
+         * Returns the postview URL, cut to 76 characters, or null.
+         */
+        public String getPostviewUrl() {
+            return postviewUrl;
+        }
+
+        public int getErrorCode() {
+            return errorCode;
+        }
+
+        /**
+         * Returns how late the camera answered compared to the grid.
+         */
+        public long getJitterNanos() {
+            return responseNanos - deadlineNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "frame " + frame + ", slot " + slot + ", attempt " + attempt + ", deadline " + deadlineNanos + ", trigger " + triggerNanos + ", response "
+                    + responseNanos + ", awaits " + awaitIterations + ", error " + errorCode + ", " + postviewUrl;
+        }
+    }
+
+    private final File file;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private final MappedByteBuffer header;
+    private final List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+    private final byte[] url = new byte[MAX_URL_LENGTH];
+    private int count;
+
+    /**
+     * Opens a log, creating it if needed. Records are appended after the ones
+     * already in the file.
+     *
+     * @param file the log file
+     * @param startMillis wall clock time of the start of the timelapse, kept
+     *            if the log exists
+     * @throws IOException if the file cannot be mapped or is not a log
+     */
+    public ShotLog(File file, long startMillis) throws IOException {
+        this.file = file;
+        raf = new RandomAccessFile(file, "rw");
+        try {
+            channel = raf.getChannel();
+            boolean created = channel.size() < HEADER_SIZE;
+            header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            if (created) {
+                header.putInt(0, MAGIC);
+                header.putInt(4, VERSION);
+                header.putInt(8, RECORD_SIZE);
+                header.putInt(COUNT_OFFSET, 0);
+                header.putLong(START_OFFSET, startMillis);
+            } else if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION
+                    || header.getInt(8) != RECORD_SIZE) {
+                throw new IOException("Not a shot log: " + file);
+            }
+            count = header.getInt(COUNT_OFFSET);
+            for (int i = 0; i <= count / SEGMENT_RECORDS; i++) {
+                mapSegment();
+            }
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+        logger.debug("Shot log {0} opened with {1} frames", file, count);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the wall clock time of the start of the timelapse.
+     */
+    public synchronized long getStartMillis() {
+        return header.getLong(START_OFFSET);
+    }
+
+    /**
+     * Appends an attempt.
+     *
+     * @param shot the attempt
+     * @throws IOException if the log cannot grow
+     */
+    public synchronized void append(Shot shot) throws IOException {
+        if (channel == null) {
+            throw new IOException("Shot log closed: " + file);
+        }
+        if (count / SEGMENT_RECORDS == segments.size()) {
+            mapSegment();
+        }
+        ByteBuffer segment = segments.get(count / SEGMENT_RECORDS);
+        int offset = (count % SEGMENT_RECORDS) * RECORD_SIZE;
+        segment.putInt(offset, shot.frame);
+        segment.putInt(offset + 4, shot.errorCode);
+        segment.putLong(offset + 8, shot.deadlineNanos);
+        segment.putLong(offset + 16, shot.triggerNanos);
+        segment.putLong(offset + 24, shot.responseNanos);
+        segment.putLong(offset + 32, shot.slot);
+        segment.putInt(offset + 40, shot.awaitIterations);
+        segment.putInt(offset + 44, shot.attempt);
+        int urlLength = 0;
+        if (shot.postviewUrl != null) {
+            // URLs are ASCII
+            urlLength = Math.min(shot.postviewUrl.length(), MAX_URL_LENGTH);
+            for (int i = 0; i < urlLength; i++) {
+                url[i] = (byte) shot.postviewUrl.charAt(i);
+            }
+            segment.position(offset + URL_OFFSET);
+            segment.put(url, 0, urlLength);
+        }
+        segment.putShort(offset + 48, (short) urlLength);
+        // Publishes the record
+        header.putInt(COUNT_OFFSET, ++count);
+    }
+
+    /**
+     * Returns the number of attempts logged.
+     */
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     * Returns an attempt by its position in the log.
+     *
+     * @param index position in the log, from zero
+     */
+    public synchronized Shot get(int index) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("record " + index + " of " + count);
+        }
+        ByteBuffer segment = segments.get(index / SEGMENT_RECORDS);
+        int offset = (index % SEGMENT_RECORDS) * RECORD_SIZE;
+        int urlLength = segment.getShort(offset + 48);
+        String postviewUrl = null;
+        if (urlLength > 0) {
+            segment.position(offset + URL_OFFSET);
+            segment.get(url, 0, urlLength);
+            postviewUrl = new String(url, 0, urlLength, ASCII);
+        }
+        return new Shot(segment.getInt(offset), segment.getLong(offset + 32), segment.getInt(offset + 44),
+                segment.getLong(offset + 8), segment.getLong(offset + 16), segment.getLong(offset + 24),
+                segment.getInt(offset + 40), postviewUrl, segment.getInt(offset + 4));
+    }
+
+    /**
+     * Returns the record of a frame.
+     *
+     * @param frame number of the frame, from 1
+     * @return the attempt that took the frame, or null if it is not logged
+     */
+    public synchronized Shot findFrame(int frame) {
+        int index = search(frame, true);
+        while (index < count && frameAt(index) == NO_FRAME) {
+            index++;
+        }
+        if (index == count) {
+            return null;
+        }
+        Shot shot = get(index);
+        return shot.frame == frame ? shot : null;
+    }
+
+    /**
+     * Returns the attempts triggered in a time range.
+     *
+     * @param fromNanos start of the range, included
+     * @param toNanos end of the range, excluded
+     * @return the attempts in log order
+     */
+    public synchronized List<Shot> findByTime(long fromNanos, long toNanos) {
+        List<Shot> shots = new ArrayList<Shot>();
+        for (int i = search(fromNanos, false); i < count; i++) {
+            Shot shot = get(i);
+            if (shot.triggerNanos >= toNanos) {
+                break;
+            }
+            shots.add(shot);
+        }
+        return shots;
+    }
+
+    /**
+     * Writes the log to storage and unmaps it. Reading and appending fail
+     * afterwards.
+     */
+    public synchronized void close() {
+        if (channel == null) {
+            return;
+        }
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+        header.force();
+        segments.clear();
+        channel = null;
+        try {
+            raf.close();
+        } catch (IOException e) {
+            logger.warn(e, "Cannot close shot log {0}", file);
+        }
+        raf = null;
+    }
+
+    // Index of the first record whose frame, or trigger time, is not below
+    // the key. Both grow with the position in the log. By frame, the records
+    // of no picture are skipped, the index may land on one of them.
+    private int search(long key, boolean byFrame) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            long value;
+            if (byFrame) {
+                int picture = mid;
+                while (picture < high && frameAt(picture) == NO_FRAME) {
+                    picture++;
+                }
+                if (picture == high) {
+                    high = mid;
+                    continue;
+                }
+                mid = picture;
+                value = frameAt(mid);
+            } else {
+                ByteBuffer segment = segments.get(mid / SEGMENT_RECORDS);
+                value = segment.getLong((mid % SEGMENT_RECORDS) * RECORD_SIZE + 16);
+            }
+            if (value < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private int frameAt(int index) {
+        return segments.get(index / SEGMENT_RECORDS).getInt((index % SEGMENT_RECORDS) * RECORD_SIZE);
+    }
+
+    // Maps the next segment, growing the file.
+    private void mapSegment() throws IOException {
+        long position = HEADER_SIZE + (long) segments.size() * SEGMENT_RECORDS * RECORD_SIZE;
+        segments.add(channel.map(FileChannel.MapMode.READ_WRITE, position, SEGMENT_RECORDS * RECORD_SIZE));
+    }
+}
@@ -0,0 +1,266 @@
+package com.trudovak.simplytimelapse.camera;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONObject;
+
+import com.trudovak.simplytimelapse.utils.Logger;
+
+/**
+ * Non blocking front end of {@link SimpleRemoteApi}. Calls run on an I/O
+ * executor and return a {@link RemoteCall} future, optionally notifying a
+ * {@link Callback}, so several calls can be in flight at once without holding
+ * the caller's thread. Every call has a deadline. A call that has not
+ * started by then fails without being sent; once started, the time left
+ * becomes the socket read timeout and caps the connect timeout. This bounds
+ * each blocking step rather than the whole call: connecting and then reading
+ * may together take up to twice the time left.
+ */
+public class AsyncRemoteApi {
+
+    private static final Logger logger = new Logger(AsyncRemoteApi.class);
+
+    /**
+     * Receives the outcome of a call. Called on the I/O thread; not called
+     * for cancelled calls.
+     */
+    public interface Callback<T> {
+        void OnSuccess(T result);
+
+        void OnFailure(IOException e);
+    }
+
+    /**
+     * A call to the synchronous API.
+     */
+    public interface Operation<T> {
+        /**
+         * @param api synchronous API
+         * @param timeout read timeout in milliseconds, what is left of the
+         *            deadline. It also caps the connect timeout.
+         */
+        T execute(SimpleRemoteApi api, int timeout) throws IOException;
+    }
+
+    /**
+     * Pending result of a call.
+     */
+    public static class RemoteCall<T> extends FutureTask<T> {
+        private final String name;
+        private final Callback<T> callback;
+
+        RemoteCall(String name, Callable<T> callable, Callback<T> callback) {
+            super(callable);
+            this.name = name;
+            this.callback = callback;
+        }
+
+        /**
+         * Waits for the call to complete.
+         *
+         * @return the result of the call
+         * @throws IOException the failure of the call. Cancellation and
+         *             interruption are reported as
+         *             {@link InterruptedIOException}.
+         */
+        public T await() throws IOException {
+            try {
+                return get();
+            } catch (ExecutionException e) {
+                throw toIOException(e.getCause());
+            } catch (CancellationException e) {
+                throw new InterruptedIOException(name + " cancelled");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(name + " interrupted");
+            }
+        }
+
+        @Override
+        protected void done() {
+            if (callback == null || isCancelled()) {
+                return;
+            }
+            T result;
+            try {
+                result = get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    callback.OnFailure((IOException) cause);
+                } else {
+                    logger.error(cause, "{0} failed", name);
+                    callback.OnFailure(new IOException(cause));
+                }
+                return;
+            } catch (InterruptedException e) {
+                // Cannot happen, the call is done
+                return;
+            }
+            callback.OnSuccess(result);
+        }
+
+        private static IOException toIOException(Throwable cause) {
+            if (cause instanceof IOException) {
+                return (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            return new IOException(cause);
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    private final SimpleRemoteApi remoteApi;
+    private final ExecutorService ioExecutor;
+
+    /**
+     * Constructor.
+     *
+     * @param remoteApi synchronous API doing the calls
+     * @param ioExecutor runs the calls. Its thread count is the number of
+     *            calls that can be in flight at once.
+     */
+    public AsyncRemoteApi(SimpleRemoteApi remoteApi, ExecutorService ioExecutor) {
+        this.remoteApi = remoteApi;
+        this.ioExecutor = ioExecutor;
+    }
+
+    /**
+     * Creates an executor suitable for camera I/O.
+     *
+     * @param threads number of calls that can be in flight at once
+     */
+    public static ExecutorService newIoExecutor(int threads) {
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger threadId = new AtomicInteger(1);
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r);
+                t.setName("camera-io-" + threadId.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    public SimpleRemoteApi getRemoteApi() {
+        return remoteApi;
+    }
+
+    /**
+     * Runs a call on the I/O executor.
+     *
+     * @param name name of the call used in logs and errors
+     * @param deadline time left to the call, measured from now, see the
+     *            class description
+     * @param unit unit of the deadline
+     * @param operation the call
+     * @param callback notified of the outcome, may be null
+     * @return the pending call. Cancelling a call that has not started yet
+     *         prevents it; a started call still runs until its socket
+     *         timeouts expire.
+     */
+    public <T> RemoteCall<T> call(final String name, long deadline, TimeUnit unit, final Operation<T> operation,
+            Callback<T> callback) {
+        final long deadlineNanos = System.nanoTime() + unit.toNanos(deadline);
+        RemoteCall<T> call = new RemoteCall<T>(name, new Callable<T>() {
+            @Override
+            public T call() throws IOException {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+                if (remaining <= 0) {
+                    throw new SocketTimeoutException(name + " missed its deadline before it started");
+                }
+                logger.trace("{0} started, {1}ms left", name, remaining);
+                return operation.execute(remoteApi, (int) Math.min(remaining, Integer.MAX_VALUE));
+            }
+        }, callback);
+        ioExecutor.execute(call);
+        return call;
+    }
+
+    public RemoteCall<JSONObject> getAvailableApiList(int deadlineMs, Callback<JSONObject> callback) {
+        return call("getAvailableApiList", deadlineMs, TimeUnit.MILLISECONDS, new Operation<JSONObject>() {
+            @Override
+            public JSONObject execute(SimpleRemoteApi api, int timeout) throws IOException {
+                return api.getAvailableApiList(timeout);
+            }
+        }, callback);
+    }
+
+    public RemoteCall<JSONObject> getApplicationInfo(int deadlineMs, Callback<JSONObject> callback) {
+        return call("getApplicationInfo", deadlineMs, TimeUnit.MILLISECONDS, new Operation<JSONObject>() {
+            @Override
+            public JSONObject execute(SimpleRemoteApi api, int timeout) throws IOException {
+                return api.getApplicationInfo(timeout);
+            }
+        }, callback);
+    }
+
+    public RemoteCall<JSONObject> startRecMode(int deadlineMs, Callback<JSONObject> callback) {
+        return call("startRecMode", deadlineMs, TimeUnit.MILLISECONDS, new Operation<JSONObject>() {
+            @Override
+            public JSONObject execute(SimpleRemoteApi api, int timeout) throws IOException {
+                return api.startRecMode(timeout);
+            }
+        }, callback);
+    }
+
+    public RemoteCall<JSONObject> setPostviewImageSize(final String postViewImageSize, int deadlineMs,
+            Callback<JSONObject> callback) {
+        return call("setPostviewImageSize", deadlineMs, TimeUnit.MILLISECONDS, new Operation<JSONObject>() {
+            @Override
+            public JSONObject execute(SimpleRemoteApi api, int timeout) throws IOException {
+                return api.setPostviewImageSize(postViewImageSize, timeout);
+            }
+        }, callback);
+    }
+
+    /**
+     * Takes a picture. The response object is filled on the I/O thread; do
+     * not touch it before the call completes.
+     */
+    public RemoteCall<JsonRpcResponse> actTakePicture(int deadlineMs, final JsonRpcResponse response,
+            Callback<JsonRpcResponse> callback) {
+        return call("actTakePicture", deadlineMs, TimeUnit.MILLISECONDS, new Operation<JsonRpcResponse>() {
+            @Override
+            public JsonRpcResponse execute(SimpleRemoteApi api, int timeout) throws IOException {
+                return api.actTakePicture(timeout, response);
+            }
+        }, callback);
+    }
+
+    /**
+     * Waits for the picture of a long exposure. The response object is filled
+     * on the I/O thread; do not touch it before the call completes.
+     */
+    public RemoteCall<JsonRpcResponse> awaitTakePicture(int deadlineMs, final JsonRpcResponse response,
+            Callback<JsonRpcResponse> callback) {
+        return call("awaitTakePicture", deadlineMs, TimeUnit.MILLISECONDS, new Operation<JsonRpcResponse>() {
+            @Override
+            public JsonRpcResponse execute(SimpleRemoteApi api, int timeout) throws IOException {
+                return api.awaitTakePicture(timeout, response);
+            }
+        }, callback);
+    }
+}
@@ -0,0 +1,138 @@
+package com.trudovak.simplytimelapse.camera;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.trudovak.simplytimelapse.utils.Logger;
+
+/**
+ * The APIs a camera makes available at present, shared by everything talking
+ * to it. The set is loaded from getAvailableApiList and kept up to date from
+ * the availableApiList events of getEvent, see {@link SimpleRemoteApi}. It is
+ * an immutable snapshot replaced as a whole, so checking a call before it is
+ * sent takes no lock.
+ * <p>
+ * Until the first list arrives, and after a call changing the camera mode,
+ * nothing is known and every call is allowed.
+ */
+public class CameraCapabilities {
+
+    private static final Logger logger = new Logger(CameraCapabilities.class);
+
+    // Methods the camera always accepts, needed to learn the others
+    private static final Set<String> ALWAYS_AVAILABLE = new HashSet<String>(Arrays.asList("getAvailableApiList",
+            "getEvent", "getApplicationInfo", "getVersions", "getMethodTypes"));
+
+    private static final ConcurrentHashMap<String, CameraCapabilities> devices =
+            new ConcurrentHashMap<String, CameraCapabilities>();
+
+    private final String udn;
+    // Null while unknown
+    private volatile Set<String> availableApis;
+
+    private CameraCapabilities(String udn) {
+        this.udn = udn;
+    }
+
+    /**
+     * Returns the capabilities of a device, the same instance for every
+     * {@link ServerDevice} with the same UDN.
+     *
+     * @param device the device
+     */
+    public static CameraCapabilities of(ServerDevice device) {
+        String udn = device.getUDN();
+        if (udn == null) {
+            return new CameraCapabilities(null);
+        }
+        CameraCapabilities capabilities = devices.get(udn);
+        if (capabilities == null) {
+            capabilities = new CameraCapabilities(udn);
+            CameraCapabilities previous = devices.putIfAbsent(udn, capabilities);
+            if (previous != null) {
+                capabilities = previous;
+            }
+        }
+        return capabilities;
+    }
+
+    /**
+     * Checks to see whether the list of available APIs is known.
+     */
+    public boolean isKnown() {
+        return availableApis != null;
+    }
+
+    /**
+     * Checks to see whether a method may be called at present.
+     *
+     * @param method name of the API method
+     * @return false only if the method is known not to be available
+     */
+    public boolean isAvailable(String method) {
+        Set<String> apis = availableApis;
+        return apis == null || apis.contains(method) || ALWAYS_AVAILABLE.contains(method);
+    }
+
+    /**
+     * Returns the APIs available at present, empty while unknown.
+     */
+    public Set<String> getAvailableApis() {
+        Set<String> apis = availableApis;
+        return apis == null ? Collections.<String> emptySet() : apis;
+    }
+
+    /**
+     * Replaces the available APIs.
+     *
+     * @param apis the APIs available at present
+     */
+    public void update(Collection<String> apis) {
+        Set<String> snapshot = Collections.unmodifiableSet(new HashSet<String>(apis));
+        if (!snapshot.equals(availableApis)) {
+            logger.debug("{0} APIs available on {1}", snapshot.size(), udn);
+        }
+        availableApis = snapshot;
+    }
+
+    /**
+     * Replaces the available APIs from a getAvailableApiList reply. A reply
+     * without the list, e.g. an error, leaves them as they were.
+     *
+     * @param reply the reply
+     */
+    public void update(JSONObject reply) {
+        JSONArray result = reply.optJSONArray("result");
+        if (result == null) {
+            return;
+        }
+        try {
+            JSONArray list = result.getJSONArray(0);
+            List<String> apis = new ArrayList<String>(list.length());
+            for (int i = 0; i < list.length(); i++) {
+                apis.add(list.getString(i));
+            }
+            update(apis);
+        } catch (JSONException e) {
+            logger.warn(e, "Malformed API list");
+        }
+    }
+
+    /**
+     * Forgets the available APIs, e.g. after a call changing the camera mode,
+     * until the next list arrives.
+     */
+    public void invalidate() {
+        availableApis = null;
+    }
+}
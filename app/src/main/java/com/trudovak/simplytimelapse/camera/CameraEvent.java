@@ -0,0 +1,61 @@
+package com.trudovak.simplytimelapse.camera;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Snapshot of the events reported by one getEvent call. Unlike
+ * {@link JsonRpcResponse} it is immutable and can be handed to other threads.
+ */
+public class CameraEvent {
+
+    /** Camera status while the camera is ready to take a picture. */
+    public static final String STATUS_IDLE = "IDLE";
+
+    private final String cameraStatus;
+    private final List<String> takePictureUrls;
+    private final List<String> availableApis;
+
+    CameraEvent(JsonRpcResponse response) {
+        cameraStatus = response.getCameraStatus();
+        takePictureUrls = copy(response.getTakePictureUrls());
+        availableApis = response.hasAvailableApis() ? copy(response.getAvailableApis()) : null;
+    }
+
+    /**
+     * Returns the camera status, e.g. "IDLE" or "StillCapturing", or null if
+     * it did not change.
+     */
+    public String getCameraStatus() {
+        return cameraStatus;
+    }
+
+    /**
+     * Returns the postview URLs of the pictures taken since the last event.
+     */
+    public List<String> getTakePictureUrls() {
+        return takePictureUrls;
+    }
+
+    /**
+     * Returns the APIs currently available, or null if the list did not
+     * change.
+     */
+    public List<String> getAvailableApis() {
+        return availableApis;
+    }
+
+    private static List<String> copy(List<String> values) {
+        if (values.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(new ArrayList<String>(values));
+    }
+
+    @Override
+    public String toString() {
+        return "CameraEvent [cameraStatus=" + cameraStatus + ", takePictureUrls=" + takePictureUrls
+                + ", availableApis=" + availableApis + "]";
+    }
+}
@@ -0,0 +1,134 @@
+package com.trudovak.simplytimelapse.camera;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.trudovak.simplytimelapse.utils.Logger;
+
+/**
+ * Keeps a single long polling getEvent request open on its own thread and
+ * dispatches the camera events to the subscribers. The first request fetches
+ * the current state, every following one waits until the camera reports a
+ * change.
+ */
+public class CameraEventLoop implements Runnable {
+
+    private static final Logger logger = new Logger(CameraEventLoop.class);
+
+    /**
+     * Receives the camera events. Called on the event loop thread, so
+     * implementations must not block.
+     */
+    public interface Listener {
+        void OnCameraEvent(CameraEvent event);
+    }
+
+    // Error code of getEvent while another long polling request is pending
+    private static final int ERROR_ALREADY_POLLING = 40402;
+
+    private static final int RETRY_DELAY_MS = 500;
+    private static final int MAX_RETRY_DELAY_MS = 8000;
+    private static final String THREAD_NAME = "camera-events";
+
+    private final SimpleRemoteApi remoteApi;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+    private final JsonRpcResponse response = new JsonRpcResponse();
+
+    private volatile Thread thread;
+
+    /**
+     * Constructor.
+     *
+     * @param remoteApi camera to poll
+     */
+    public CameraEventLoop(SimpleRemoteApi remoteApi) {
+        this.remoteApi = remoteApi;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Starts polling. Does nothing if already started.
+     */
+    public synchronized void start() {
+        if (thread == null) {
+            thread = new Thread(this, THREAD_NAME);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stops polling. A pending long polling request is not aborted, the
+     * thread ends when it returns.
+     */
+    public synchronized void stop() {
+        Thread t = thread;
+        thread = null;
+        if (t != null) {
+            t.interrupt();
+        }
+    }
+
+    public boolean isRunning() {
+        return thread != null;
+    }
+
+    @Override
+    public void run() {
+        boolean longPolling = false;
+        int retryDelay = RETRY_DELAY_MS;
+        logger.debug("Camera event loop started");
+        while (thread == Thread.currentThread()) {
+            try {
+                remoteApi.getEvent(longPolling, response);
+                if (response.isError()) {
+                    if (response.getErrorCode() != ERROR_ALREADY_POLLING) {
+                        logger.warn("getEvent failed: {0} {1}", response.getErrorCode(), response.getErrorMessage());
+                    }
+                    // A timed out request may still be pending on the camera
+                    sleep(RETRY_DELAY_MS);
+                    continue;
+                }
+                longPolling = true;
+                retryDelay = RETRY_DELAY_MS;
+                dispatch(new CameraEvent(response));
+            } catch (SocketTimeoutException e) {
+                // Nothing happened within the polling window
+            } catch (IOException e) {
+                logger.warn(e, "getEvent failed, retrying in {0}ms", retryDelay);
+                longPolling = false;
+                sleep(retryDelay);
+                retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY_MS);
+            }
+        }
+        logger.debug("Camera event loop stopped");
+    }
+
+    private void dispatch(CameraEvent event) {
+        logger.trace("{0}", event);
+        for (Listener listener : listeners) {
+            try {
+                listener.OnCameraEvent(event);
+            } catch (RuntimeException e) {
+                logger.error(e, "Camera event listener failed");
+            }
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            // Stopped, the loop condition ends the thread
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.trudovak.simplytimelapse.camera;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.MalformedURLException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+
+import com.trudovak.simplytimelapse.camera.utils.HttpStatusException;
+
+/**
+ * A failed Camera Remote API call, classified so callers can tell a dropped
+ * packet worth retrying from an error that retrying will not fix.
+ */
+public class CameraException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * What went wrong.
+     */
+    public enum Kind {
+        /** The camera did not answer in time. */
+        TIMEOUT,
+        /** The camera could not be reached, e.g. connection refused. */
+        CONNECT,
+        /** The connection broke during the call. */
+        NETWORK,
+        /** The camera answered with an HTTP error status. */
+        HTTP_STATUS,
+        /** The camera answered with an error code. */
+        CAMERA_ERROR,
+        /** The request or the response is malformed. */
+        PROTOCOL
+    }
+
+    /** Camera error code of a call that timed out on the camera. */
+    public static final int ERROR_TIMEOUT = 2;
+    /** Camera error code of a method not available, e.g. out of shooting mode. */
+    public static final int ERROR_NO_SUCH_METHOD = 12;
+    /** Camera error code of a method not allowed in the current mode. */
+    public static final int ERROR_FORBIDDEN = 403;
+    /** Camera error code of a picture that could not be taken. */
+    public static final int ERROR_SHOOTING_FAIL = 40400;
+    /** Camera error code while the camera is busy. */
+    public static final int ERROR_CAMERA_NOT_READY = 40401;
+
+    private final Kind kind;
+    private final int httpStatus;
+    private final int errorCode;
+
+    /**
+     * Constructor.
+     *
+     * @param kind what went wrong
+     * @param message description of the error
+     * @param cause the underlying exception, may be null
+     */
+    public CameraException(Kind kind, String message, Throwable cause) {
+        this(kind, message, cause, 0, JsonRpcResponse.NO_ERROR);
+    }
+
+    private CameraException(Kind kind, String message, Throwable cause, int httpStatus, int errorCode) {
+        super(message, cause);
+        this.kind = kind;
+        this.httpStatus = httpStatus;
+        this.errorCode = errorCode;
+    }
+
+    /**
+     * Creates the exception of a camera error code.
+     *
+     * @param errorCode the camera error code
+     * @param message the camera error message, may be null
+     */
+    public static CameraException cameraError(int errorCode, String message) {
+        return new CameraException(Kind.CAMERA_ERROR, "Camera error " + errorCode + ": " + message, null, 0,
+                errorCode);
+    }
+
+    /**
+     * Classifies an exception thrown by a call.
+     *
+     * @param e the exception
+     * @return the exception itself if it is already classified
+     */
+    public static CameraException from(IOException e) {
+        if (e instanceof CameraException) {
+            return (CameraException) e;
+        }
+        if (e instanceof SocketTimeoutException) {
+            return new CameraException(Kind.TIMEOUT, "Timeout: " + e.getMessage(), e);
+        }
+        if (e instanceof ConnectException || e instanceof NoRouteToHostException
+                || e instanceof UnknownHostException) {
+            return new CameraException(Kind.CONNECT, "Cannot connect: " + e.getMessage(), e);
+        }
+        if (e instanceof HttpStatusException) {
+            int status = ((HttpStatusException) e).getStatusCode();
+            return new CameraException(Kind.HTTP_STATUS, e.getMessage(), e, status, JsonRpcResponse.NO_ERROR);
+        }
+        if (e instanceof MalformedURLException) {
+            return new CameraException(Kind.PROTOCOL, e.getMessage(), e);
+        }
+        return new CameraException(Kind.NETWORK, e.getMessage(), e);
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * Returns the HTTP status of an {@link Kind#HTTP_STATUS} error, 0
+     * otherwise.
+     */
+    public int getHttpStatus() {
+        return httpStatus;
+    }
+
+    /**
+     * Returns the camera error code of a {@link Kind#CAMERA_ERROR}, or
+     * {@link JsonRpcResponse#NO_ERROR}.
+     */
+    public int getErrorCode() {
+        return errorCode;
+    }
+
+    /**
+     * Checks to see whether the call may succeed if made again.
+     */
+    public boolean isTransient() {
+        switch (kind) {
+            case TIMEOUT:
+            case CONNECT:
+            case NETWORK:
+                return true;
+            case HTTP_STATUS:
+                return httpStatus >= 500 || httpStatus == 408;
+            case CAMERA_ERROR:
+                return isTransient(errorCode);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Checks to see whether the camera has to be put back in shooting mode
+     * with startRecMode before the call is made again, e.g. after its server
+     * restarted.
+     */
+    public boolean requiresRecMode() {
+        return kind == Kind.CONNECT || kind == Kind.NETWORK
+                || (kind == Kind.CAMERA_ERROR && requiresRecMode(errorCode));
+    }
+
+    /**
+     * Checks to see whether a camera error code may go away if the call is
+     * made again.
+     *
+     * @param errorCode the camera error code
+     */
+    public static boolean isTransient(int errorCode) {
+        switch (errorCode) {
+            case ERROR_TIMEOUT:
+            case ERROR_SHOOTING_FAIL:
+            case ERROR_CAMERA_NOT_READY:
+                return true;
+            default:
+                return requiresRecMode(errorCode);
+        }
+    }
+
+    private static boolean requiresRecMode(int errorCode) {
+        return errorCode == ERROR_NO_SUCH_METHOD || errorCode == ERROR_FORBIDDEN;
+    }
+}
@@ -0,0 +1,174 @@
+package com.trudovak.simplytimelapse.camera;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import android.os.SystemClock;
+
+import com.trudovak.simplytimelapse.utils.Logger;
+
+/**
+ * Live view of the cameras present on the network, maintained from SSDP
+ * announcements. A camera is present from its first ssdp:alive until its
+ * ssdp:byebye or until its lease (CACHE-CONTROL max-age) runs out without a
+ * renewal. Times are measured with {@link SystemClock#elapsedRealtime()} so
+ * leases keep running while the phone sleeps.
+ */
+public class CameraRegistry {
+
+    private static final Logger logger = new Logger(CameraRegistry.class);
+
+    /** Lease assumed when an announcement has no max-age. */
+    public static final int DEFAULT_MAX_AGE = 1800; // sec
+
+    /**
+     * Notified when cameras appear and disappear. Called on the thread
+     * receiving the announcements, must not block.
+     */
+    public interface Listener {
+        void OnCameraAppeared(Presence presence);
+
+        void OnCameraLost(Presence presence);
+    }
+
+    /**
+     * A camera present on the network.
+     */
+    public static class Presence {
+        private final String udn;
+        private final String location;
+        private final long lastSeen;
+        private final long leaseExpiry;
+
+        Presence(String udn, String location, long lastSeen, long leaseExpiry) {
+            this.udn = udn;
+            this.location = location;
+            this.lastSeen = lastSeen;
+            this.leaseExpiry = leaseExpiry;
+        }
+
+        public String getUdn() {
+            return udn;
+        }
+
+        /**
+         * Returns the device description URL.
+         */
+        public String getLocation() {
+            return location;
+        }
+
+        /**
+         * Returns the elapsed realtime of the last announcement.
+         */
+        public long getLastSeen() {
+            return lastSeen;
+        }
+
+        /**
+         * Returns the elapsed realtime the presence expires unless renewed.
+         */
+        public long getLeaseExpiry() {
+            return leaseExpiry;
+        }
+
+        @Override
+        public String toString() {
+            return udn + " at " + location;
+        }
+    }
+
+    private final Map<String, Presence> cameras = new ConcurrentHashMap<String, Presence>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Records an ssdp:alive announcement or a search reply.
+     *
+     * @param usn USN of the message
+     * @param location LOCATION of the message
+     * @param maxAge lease in seconds, or -1 if not announced
+     */
+    public void alive(String usn, String location, int maxAge) {
+        long now = SystemClock.elapsedRealtime();
+        String udn = DeviceCache.toUdn(usn);
+        long lease = (maxAge < 0 ? DEFAULT_MAX_AGE : maxAge) * 1000L;
+        Presence presence = new Presence(udn, location, now, now + lease);
+        Presence previous = cameras.put(udn, presence);
+        if (previous == null || !previous.getLocation().equals(location)) {
+            logger.debug("Camera appeared: {0}", presence);
+            for (Listener listener : listeners) {
+                try {
+                    listener.OnCameraAppeared(presence);
+                } catch (RuntimeException e) {
+                    // Keeps the thread receiving the announcements alive
+                    logger.error(e, "Listener failed on camera appeared: {0}", presence);
+                }
+            }
+        }
+    }
+
+    /**
+     * Records an ssdp:byebye announcement.
+     *
+     * @param usn USN of the message
+     */
+    public void byebye(String usn) {
+        Presence presence = cameras.remove(DeviceCache.toUdn(usn));
+        if (presence != null) {
+            lost(presence);
+        }
+    }
+
+    /**
+     * Drops the cameras whose lease ran out.
+     */
+    public void expire() {
+        long now = SystemClock.elapsedRealtime();
+        Iterator<Presence> it = cameras.values().iterator();
+        while (it.hasNext()) {
+            Presence presence = it.next();
+            if (presence.getLeaseExpiry() <= now) {
+                it.remove();
+                lost(presence);
+            }
+        }
+    }
+
+    /**
+     * Returns the camera with the indicated UDN, or null if it is not
+     * present.
+     */
+    public Presence get(String udn) {
+        return cameras.get(udn);
+    }
+
+    /**
+     * Returns the cameras present.
+     */
+    public List<Presence> getAll() {
+        return new ArrayList<Presence>(cameras.values());
+    }
+
+    private void lost(Presence presence) {
+        logger.debug("Camera lost: {0}", presence);
+        for (Listener listener : listeners) {
+            try {
+                listener.OnCameraLost(presence);
+            } catch (RuntimeException e) {
+                logger.error(e, "Listener failed on camera lost: {0}", presence);
+            }
+        }
+    }
+}
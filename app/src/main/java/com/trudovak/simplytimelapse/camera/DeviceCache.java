@@ -0,0 +1,321 @@
+package com.trudovak.simplytimelapse.camera;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.SharedPreferences;
+
+import com.trudovak.simplytimelapse.utils.Logger;
+
+/**
+ * Persistent cache of device descriptions keyed by UDN, together with the
+ * APIs that were available when the device was last seen. A cached device is
+ * only used after a cheap probe (one getAvailableApiList call) shows it is
+ * still there, so reconnecting to a known camera skips SSDP and the device
+ * description download. Entries expire after a TTL and are dropped when SSDP
+ * reports the device gone or moved.
+ */
+public class DeviceCache {
+
+    private static final Logger logger = new Logger(DeviceCache.class);
+
+    /** Name of the shared preferences holding the cache. */
+    public static final String PREFERENCES_NAME = "devices";
+
+    /** How long a device stays cached without being seen. */
+    public static final long DEFAULT_TTL_MILLIS = TimeUnit.DAYS.toMillis(7);
+
+    /** Connect and read timeout of the probe of a cached device. */
+    public static final int PROBE_TIMEOUT = 1500; // msec
+
+    private static final String KEY_PREFIX = "device.";
+
+    /**
+     * A cached device.
+     */
+    public static class Entry {
+        private final ServerDevice device;
+        private final Set<String> availableApis;
+        private final long storedAt;
+
+        Entry(ServerDevice device, Set<String> availableApis, long storedAt) {
+            this.device = device;
+            this.availableApis = Collections.unmodifiableSet(availableApis);
+            this.storedAt = storedAt;
+        }
+
+        public ServerDevice getDevice() {
+            return device;
+        }
+
+        /**
+         * Returns the APIs available when the device was last seen.
+         */
+        public Set<String> getAvailableApis() {
+            return availableApis;
+        }
+
+        /**
+         * Returns the wall clock time the device was last seen.
+         */
+        public long getStoredAt() {
+            return storedAt;
+        }
+    }
+
+    private final SharedPreferences preferences;
+    private final long ttlMillis;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    /**
+     * Constructor. Loads the cached devices.
+     *
+     * @param preferences storage of the cache
+     */
+    public DeviceCache(SharedPreferences preferences) {
+        this(preferences, DEFAULT_TTL_MILLIS);
+    }
+
+    /**
+     * Constructor. Loads the cached devices.
+     *
+     * @param preferences storage of the cache
+     * @param ttlMillis how long a device stays cached without being seen
+     */
+    public DeviceCache(SharedPreferences preferences, long ttlMillis) {
+        this.preferences = preferences;
+        this.ttlMillis = ttlMillis;
+        load();
+    }
+
+    /**
+     * Stores a device that was just seen.
+     *
+     * @param device the device
+     * @param availableApis the APIs currently available
+     */
+    public void put(ServerDevice device, Collection<String> availableApis) {
+        if (device.getUDN() == null) {
+            return;
+        }
+        Entry entry = new Entry(device, new HashSet<String>(availableApis), System.currentTimeMillis());
+        entries.put(device.getUDN(), entry);
+        try {
+            JSONObject json = device.toJson().put("apis", new JSONArray(availableApis))
+                    .put("storedAt", entry.getStoredAt());
+            preferences.edit().putString(KEY_PREFIX + device.getUDN(), json.toString()).apply();
+        } catch (JSONException e) {
+            logger.warn(e, "Cannot store device {0}", device.getUDN());
+        }
+    }
+
+    /**
+     * Returns the cached device with the indicated UDN, or null if it is not
+     * cached or expired. The device is not probed.
+     */
+    public Entry get(String udn) {
+        Entry entry = entries.get(udn);
+        if (entry != null && isExpired(entry)) {
+            invalidate(udn);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Returns the cached device with the indicated device description URL, or
+     * null. The device is not probed.
+     */
+    public Entry findByUrl(String ddUrl) {
+        for (Entry entry : entries.values()) {
+            if (entry.getDevice().getDDUrl().equals(ddUrl)) {
+                return get(entry.getDevice().getUDN());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns all cached devices that did not expire.
+     */
+    public List<Entry> getAll() {
+        List<Entry> all = new ArrayList<Entry>(entries.size());
+        for (String udn : entries.keySet()) {
+            Entry entry = get(udn);
+            if (entry != null) {
+                all.add(entry);
+            }
+        }
+        return all;
+    }
+
+    /**
+     * Drops a device from the cache.
+     */
+    public void invalidate(String udn) {
+        if (entries.remove(udn) != null) {
+            logger.debug("Device {0} dropped from the cache", udn);
+        }
+        preferences.edit().remove(KEY_PREFIX + udn).apply();
+    }
+
+    /**
+     * Updates the cache from an SSDP message. A device that leaves the network
+     * or announces a different description URL is dropped.
+     *
+     * @param usn USN of the message, e.g. "uuid:...::urn:..."
+     * @param location LOCATION of the message, null for ssdp:byebye
+     * @param alive true for ssdp:alive and search replies, false for
+     *            ssdp:byebye
+     */
+    public void onSsdpMessage(String usn, String location, boolean alive) {
+        String udn = toUdn(usn);
+        Entry entry = entries.get(udn);
+        if (entry == null) {
+            return;
+        }
+        if (!alive || (location != null && !location.equals(entry.getDevice().getDDUrl()))) {
+            invalidate(udn);
+        }
+    }
+
+    /**
+     * Checks a cached device is still reachable with a single
+     * getAvailableApiList call and refreshes its available APIs.
+     *
+     * @param entry the cached device
+     * @param timeout connect and read timeout in milliseconds
+     * @return the refreshed entry, or null if the device did not answer, in
+     *         which case it is dropped from the cache
+     */
+    public Entry probe(Entry entry, int timeout) {
+        ServerDevice device = entry.getDevice();
+        try {
+            JSONObject reply = new SimpleRemoteApi(device).getAvailableApiList(timeout);
+            JSONArray apis = reply.getJSONArray("result").getJSONArray(0);
+            Set<String> availableApis = new HashSet<String>();
+            for (int i = 0; i < apis.length(); i++) {
+                availableApis.add(apis.getString(i));
+            }
+            put(device, availableApis);
+            return entries.get(device.getUDN());
+        } catch (IOException e) {
+            logger.debug("Cached device {0} did not answer: {1}", device.getFriendlyName(), e.getMessage());
+        } catch (JSONException e) {
+            logger.debug("Cached device {0} answered garbage", device.getFriendlyName());
+        } catch (IllegalStateException e) {
+            logger.debug("Cached device {0} has no camera service", device.getFriendlyName());
+        }
+        invalidate(device.getUDN());
+        return null;
+    }
+
+    /**
+     * Probes all cached devices in parallel.
+     *
+     * @param executor runs the probes
+     * @param timeout connect and read timeout of each probe in milliseconds
+     * @return the devices that answered
+     */
+    public List<Entry> probeAll(ExecutorService executor, final int timeout) {
+        List<Future<Entry>> probes = new ArrayList<Future<Entry>>();
+        for (final Entry entry : getAll()) {
+            probes.add(executor.submit(new Callable<Entry>() {
+                @Override
+                public Entry call() {
+                    return probe(entry, timeout);
+                }
+            }));
+        }
+        List<Entry> alive = new ArrayList<Entry>(probes.size());
+        for (Future<Entry> probe : probes) {
+            try {
+                Entry entry = probe.get(timeout * 2L, TimeUnit.MILLISECONDS);
+                if (entry != null) {
+                    alive.add(entry);
+                }
+            } catch (TimeoutException e) {
+                probe.cancel(true);
+            } catch (ExecutionException e) {
+                logger.warn(e.getCause(), "Probe failed");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return alive;
+    }
+
+    /**
+     * Returns the device at the indicated description URL: the cached one if
+     * it answers the probe, else a freshly fetched one, which is then cached.
+     *
+     * @param ddUrl URL of device description xml
+     * @return the device, or null if it cannot be reached
+     */
+    public ServerDevice fetch(String ddUrl) {
+        Entry entry = findByUrl(ddUrl);
+        if (entry != null) {
+            entry = probe(entry, PROBE_TIMEOUT);
+            if (entry != null) {
+                logger.debug("Using cached description of {0}", entry.getDevice().getFriendlyName());
+                return entry.getDevice();
+            }
+        }
+        ServerDevice device = ServerDevice.fetch(ddUrl);
+        if (device != null) {
+            put(device, Collections.<String> emptySet());
+        }
+        return device;
+    }
+
+    private boolean isExpired(Entry entry) {
+        return System.currentTimeMillis() - entry.getStoredAt() > ttlMillis;
+    }
+
+    private void load() {
+        for (Map.Entry<String, ?> stored : preferences.getAll().entrySet()) {
+            if (!stored.getKey().startsWith(KEY_PREFIX) || !(stored.getValue() instanceof String)) {
+                continue;
+            }
+            try {
+                JSONObject json = new JSONObject((String) stored.getValue());
+                ServerDevice device = ServerDevice.fromJson(json);
+                Set<String> availableApis = new HashSet<String>();
+                JSONArray apis = json.optJSONArray("apis");
+                for (int i = 0; apis != null && i < apis.length(); i++) {
+                    availableApis.add(apis.getString(i));
+                }
+                entries.put(device.getUDN(), new Entry(device, availableApis, json.optLong("storedAt", 0)));
+            } catch (JSONException e) {
+                logger.warn(e, "Dropping malformed cache entry {0}", stored.getKey());
+                preferences.edit().remove(stored.getKey()).apply();
+            }
+        }
+        logger.debug("{0} devices cached", entries.size());
+    }
+
+    // "uuid:00000000-0000-0010-8000-xxx::urn:schemas-sony-com:service:ScalarWebAPI:1"
+    // -> "uuid:00000000-0000-0010-8000-xxx"
+    static String toUdn(String usn) {
+        int end = usn.indexOf("::");
+        return end == -1 ? usn : usn.substring(0, end);
+    }
+}
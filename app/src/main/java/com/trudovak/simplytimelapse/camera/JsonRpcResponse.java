@@ -0,0 +1,232 @@
+package com.trudovak.simplytimelapse.camera;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.trudovak.simplytimelapse.camera.utils.JsonPullReader;
+import com.trudovak.simplytimelapse.camera.utils.JsonPullReader.Token;
+
+/**
+ * Typed view of a Camera Remote API response. Only the fields the application
+ * acts on are extracted: the error code, the first result value (e.g. the
+ * postview URL of actTakePicture) and the events of getEvent. Instances are
+ * meant to be reused from call to call.
+ */
+public class JsonRpcResponse {
+
+    /** Error code used when the response carries no error. */
+    public static final int NO_ERROR = 0;
+
+    private int mId;
+    private int mErrorCode;
+    private String mErrorMessage;
+    private String mFirstResult;
+    private final List<String> mEventTypes = new ArrayList<String>();
+    private String mCameraStatus;
+    private final List<String> mTakePictureUrls = new ArrayList<String>();
+    private final List<String> mAvailableApis = new ArrayList<String>();
+    private boolean mHasAvailableApis;
+
+    /**
+     * Returns the id of the request this response answers.
+     */
+    public int getId() {
+        return mId;
+    }
+
+    /**
+     * Returns the camera error code or {@link #NO_ERROR}.
+     */
+    public int getErrorCode() {
+        return mErrorCode;
+    }
+
+    /**
+     * Returns the camera error message or null.
+     */
+    public String getErrorMessage() {
+        return mErrorMessage;
+    }
+
+    /**
+     * Checks to see whether the camera reported an error.
+     */
+    public boolean isError() {
+        return mErrorCode != NO_ERROR;
+    }
+
+    /**
+     * Returns the first string in the result: result[0] or result[0][0].
+     *
+     * @return first result value or null
+     */
+    public String getFirstResult() {
+        return mFirstResult;
+    }
+
+    /**
+     * Returns the types of the events found in the result, e.g.
+     * "cameraStatus" for getEvent.
+     */
+    public List<String> getEventTypes() {
+        return Collections.unmodifiableList(mEventTypes);
+    }
+
+    /**
+     * Returns the camera status of a cameraStatus event, e.g. "IDLE", or
+     * null.
+     */
+    public String getCameraStatus() {
+        return mCameraStatus;
+    }
+
+    /**
+     * Returns the URLs of a takePicture event.
+     */
+    public List<String> getTakePictureUrls() {
+        return Collections.unmodifiableList(mTakePictureUrls);
+    }
+
+    /**
+     * Returns the API names of an availableApiList event. Check
+     * {@link #hasAvailableApis()} first, the list is empty otherwise.
+     */
+    public List<String> getAvailableApis() {
+        return Collections.unmodifiableList(mAvailableApis);
+    }
+
+    /**
+     * Checks to see whether the response carries an availableApiList event.
+     */
+    public boolean hasAvailableApis() {
+        return mHasAvailableApis;
+    }
+
+    void reset() {
+        mId = 0;
+        mErrorCode = NO_ERROR;
+        mErrorMessage = null;
+        mFirstResult = null;
+        mEventTypes.clear();
+        mCameraStatus = null;
+        mTakePictureUrls.clear();
+        mAvailableApis.clear();
+        mHasAvailableApis = false;
+    }
+
+    /**
+     * Reads a response document, replacing the content of this object.
+     *
+     * @param reader reader positioned at the start of the document
+     * @throws IOException if the document is not a JSON-RPC response
+     */
+    void read(JsonPullReader reader) throws IOException {
+        reset();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            reader.consumeName();
+            if (reader.nameEquals("result")) {
+                readResult(reader);
+            } else if (reader.nameEquals("error")) {
+                readError(reader);
+            } else if (reader.nameEquals("id") && reader.peek() == Token.NUMBER) {
+                mId = reader.nextInt();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private void readError(JsonPullReader reader) throws IOException {
+        // "error": [40403, "Long shooting"]
+        reader.beginArray();
+        if (reader.peek() == Token.NUMBER) {
+            mErrorCode = reader.nextInt();
+        }
+        if (reader.peek() == Token.STRING) {
+            mErrorMessage = reader.nextString();
+        }
+        while (reader.hasNext()) {
+            reader.skipValue();
+        }
+        reader.endArray();
+    }
+
+    private void readResult(JsonPullReader reader) throws IOException {
+        if (reader.peek() != Token.BEGIN_ARRAY) {
+            reader.skipValue();
+            return;
+        }
+        reader.beginArray();
+        boolean first = true;
+        while (reader.hasNext()) {
+            Token token = reader.peek();
+            if (token == Token.STRING && first) {
+                mFirstResult = reader.nextString();
+            } else if (token == Token.BEGIN_OBJECT) {
+                readEvent(reader);
+            } else if (token == Token.BEGIN_ARRAY) {
+                readResultArray(reader, first);
+            } else {
+                reader.skipValue();
+            }
+            first = false;
+        }
+        reader.endArray();
+    }
+
+    // Nested result array: a list of values such as [url] or a list of
+    // events such as [{"type":"takePicture", ...}].
+    private void readResultArray(JsonPullReader reader, boolean first) throws IOException {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            Token token = reader.peek();
+            if (token == Token.STRING && first && mFirstResult == null) {
+                mFirstResult = reader.nextString();
+            } else if (token == Token.BEGIN_OBJECT) {
+                readEvent(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endArray();
+    }
+
+    // {"type":"cameraStatus","cameraStatus":"IDLE"}
+    // {"type":"takePicture","takePictureUrl":["http://..."]}
+    // {"type":"availableApiList","names":["getEvent", ...]}
+    private void readEvent(JsonPullReader reader) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            reader.consumeName();
+            if (reader.nameEquals("type") && reader.peek() == Token.STRING) {
+                mEventTypes.add(reader.nextString());
+            } else if (reader.nameEquals("cameraStatus") && reader.peek() == Token.STRING) {
+                mCameraStatus = reader.nextString();
+            } else if (reader.nameEquals("takePictureUrl") && reader.peek() == Token.BEGIN_ARRAY) {
+                readStrings(reader, mTakePictureUrls);
+            } else if (reader.nameEquals("names") && reader.peek() == Token.BEGIN_ARRAY) {
+                mHasAvailableApis = true;
+                readStrings(reader, mAvailableApis);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private static void readStrings(JsonPullReader reader, List<String> values) throws IOException {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (reader.peek() == Token.STRING) {
+                values.add(reader.nextString());
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endArray();
+    }
+}
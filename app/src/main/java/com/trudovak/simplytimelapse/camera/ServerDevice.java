@@ -5,15 +5,21 @@
 package com.trudovak.simplytimelapse.camera;
 
 import android.util.Log;
-
+import android.util.Xml;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
 import com.trudovak.simplytimelapse.camera.utils.SimpleHttpClient;
-import com.trudovak.simplytimelapse.camera.utils.XmlElement;
 
 /**
  * A server device description class.
@@ -206,72 +212,189 @@ public class ServerDevice {
     }
 
     /**
-     * Fetches device description xml file from server and parses it.
+     * Fetches device description xml file from server and parses it. The
+     * fields are extracted in a single pass while the description is
+     * received, and the download stops once all of them are known.
      * 
      * @param ddUrl URL of device description xml.
      * @return ServerDevice instance
      */
-    public static ServerDevice fetch(String ddUrl) {
+    public static ServerDevice fetch(final String ddUrl) {
         if (ddUrl == null) {
             throw new NullPointerException("ddUrl is null.");
         }
 
-        String ddXml;
+        ServerDevice device;
         try {
-            ddXml = SimpleHttpClient.httpGet(ddUrl);
-            Log.d(TAG, "fetch () httpGet done.");
+            device = SimpleHttpClient.httpGet(ddUrl, SimpleHttpClient.DEFAULT_READ_TIMEOUT,
+                    new SimpleHttpClient.ResponseHandler<ServerDevice>() {
+                        @Override
+                        public ServerDevice handleResponse(InputStream in, int contentLength) throws IOException {
+                            try {
+                                XmlPullParser parser = Xml.newPullParser();
+                                parser.setInput(in, "UTF-8");
+                                return read(parser, ddUrl);
+                            } catch (XmlPullParserException e) {
+                                Log.e(TAG, "fetch: XmlPullParserException.", e);
+                                return null;
+                            }
+                        }
+                    });
         } catch (IOException e) {
             Log.e(TAG, "fetch: IOException.", e);
             return null;
-        }/*
-          * catch (Exception e) { Log.e(TAG, "fetch: Exception.", e); return
-          * null; }
-          */
-        XmlElement rootElement = XmlElement.parse(ddXml);
+        }
+        Log.d(TAG, "fetch () parsing XML done.");
+        return device;
+    }
 
-        // "root"
+    // Extracts the device from a description:
+    // <root>
+    //   <device>
+    //     <friendlyName/> <modelName/> <UDN/>
+    //     <iconList> <icon> <mimetype/> <url/> </icon> ... </iconList>
+    //     <av:X_ScalarWebAPI_DeviceInfo>
+    //       <av:X_ScalarWebAPI_ServiceList>
+    //         <av:X_ScalarWebAPI_Service>
+    //           <av:X_ScalarWebAPI_ServiceType/> <av:X_ScalarWebAPI_ActionList_URL/>
+    //         </av:X_ScalarWebAPI_Service> ...
+    // Other elements are skipped without being looked into.
+    private static ServerDevice read(XmlPullParser parser, String ddUrl) throws XmlPullParserException,
+            IOException {
         ServerDevice device = null;
-        if ("root".equals(rootElement.getTagName())) {
-            device = new ServerDevice();
-            device.mDDUrl = ddUrl;
-
-            // "device"
-            XmlElement deviceElement = rootElement.findChild("device");
-            device.mFriendlyName = deviceElement.findChild("friendlyName")
-                    .getValue();
-            device.mModelName = deviceElement.findChild("modelName").getValue();
-            device.mUDN = deviceElement.findChild("UDN").getValue();
-
-            // "iconList"
-            XmlElement iconListElement = deviceElement.findChild("iconList");
-            List<XmlElement> iconElements = iconListElement
-                    .findChildren("icon");
-            for (XmlElement iconElement : iconElements) {
-                // Choose png icon to show Android UI.
-                if ("image/png".equals(iconElement.findChild("mimetype")
-                        .getValue())) {
-                    String _uri = iconElement.findChild("url").getValue();
-                    String hostUrl = toSchemeAndHost(ddUrl);
-                    device.mIconUrl = hostUrl + _uri;
+        // Names of the open elements, all of them wanted
+        String[] path = new String[6];
+        boolean iconListDone = false;
+        boolean deviceInfoDone = false;
+        String mimeType = null;
+        String iconUri = null;
+        String serviceName = null;
+        String actionUrl = null;
+
+        int event = parser.getEventType();
+        while (event != XmlPullParser.END_DOCUMENT) {
+            if (event == XmlPullParser.START_TAG) {
+                int depth = parser.getDepth();
+                String name = parser.getName();
+                String parent = depth > 1 ? path[depth - 2] : null;
+                boolean wanted = true;
+                if (depth == 1) {
+                    if (!"root".equals(name)) {
+                        return null;
+                    }
+                    device = new ServerDevice();
+                    device.mDDUrl = ddUrl;
+                } else if (depth == 2) {
+                    wanted = "device".equals(name);
+                } else if (depth == 3) {
+                    if ("friendlyName".equals(name)) {
+                        device.mFriendlyName = parser.nextText();
+                    } else if ("modelName".equals(name)) {
+                        device.mModelName = parser.nextText();
+                    } else if ("UDN".equals(name)) {
+                        device.mUDN = parser.nextText();
+                    } else {
+                        wanted = "iconList".equals(name) || "X_ScalarWebAPI_DeviceInfo".equals(name);
+                    }
+                } else if (depth == 4) {
+                    if ("iconList".equals(parent)) {
+                        wanted = "icon".equals(name);
+                        mimeType = null;
+                        iconUri = null;
+                    } else {
+                        wanted = "X_ScalarWebAPI_ServiceList".equals(name);
+                    }
+                } else if (depth == 5) {
+                    if ("icon".equals(parent) && "mimetype".equals(name)) {
+                        mimeType = parser.nextText();
+                    } else if ("icon".equals(parent) && "url".equals(name)) {
+                        iconUri = parser.nextText();
+                    } else {
+                        wanted = "X_ScalarWebAPI_Service".equals(name);
+                        serviceName = null;
+                        actionUrl = null;
+                    }
+                } else if (depth == 6 && "X_ScalarWebAPI_ServiceType".equals(name)) {
+                    serviceName = parser.nextText();
+                } else if (depth == 6 && "X_ScalarWebAPI_ActionList_URL".equals(name)) {
+                    actionUrl = parser.nextText();
+                } else {
+                    wanted = false;
+                }
+                if (!wanted) {
+                    skip(parser);
+                } else if (parser.getEventType() == XmlPullParser.START_TAG) {
+                    path[depth - 1] = name;
+                }
+            } else if (event == XmlPullParser.END_TAG) {
+                String name = parser.getName();
+                if ("icon".equals(name)) {
+                    // Choose png icon to show Android UI.
+                    if ("image/png".equals(mimeType) && iconUri != null) {
+                        device.mIconUrl = toSchemeAndHost(ddUrl) + iconUri;
+                    }
+                } else if ("X_ScalarWebAPI_Service".equals(name)) {
+                    device.addApiService(serviceName, actionUrl);
+                } else if ("iconList".equals(name)) {
+                    iconListDone = true;
+                } else if ("X_ScalarWebAPI_DeviceInfo".equals(name)) {
+                    deviceInfoDone = true;
+                } else if ("device".equals(name)) {
+                    break;
+                }
+                if (iconListDone && deviceInfoDone && device.mFriendlyName != null && device.mModelName != null
+                        && device.mUDN != null) {
+                    // The rest of the description is of no interest
+                    break;
                 }
             }
+            event = parser.next();
+        }
+        return device;
+    }
 
-            // "av:X_ScalarWebAPI_DeviceInfo"
-            XmlElement wApiElement = deviceElement
-                    .findChild("X_ScalarWebAPI_DeviceInfo");
-            XmlElement wApiServiceListElement = wApiElement
-                    .findChild("X_ScalarWebAPI_ServiceList");
-            List<XmlElement> wApiServiceElements = wApiServiceListElement
-                    .findChildren("X_ScalarWebAPI_Service");
-            for (XmlElement wApiServiceElement : wApiServiceElements) {
-                String serviceName = wApiServiceElement.findChild(
-                        "X_ScalarWebAPI_ServiceType").getValue();
-                String actionUrl = wApiServiceElement.findChild(
-                        "X_ScalarWebAPI_ActionList_URL").getValue();
-                device.addApiService(serviceName, actionUrl);
+    // Skips the element the parser is at, including its children.
+    private static void skip(XmlPullParser parser) throws XmlPullParserException, IOException {
+        int depth = 1;
+        while (depth != 0) {
+            switch (parser.next()) {
+                case XmlPullParser.START_TAG:
+                    depth++;
+                    break;
+                case XmlPullParser.END_TAG:
+                    depth--;
+                    break;
+                case XmlPullParser.END_DOCUMENT:
+                    throw new XmlPullParserException("Unexpected end of document");
             }
         }
-        Log.d(TAG, "fetch () parsing XML done.");
+    }
+
+    // Serializes the description, see DeviceCache.
+    JSONObject toJson() throws JSONException {
+        JSONArray services = new JSONArray();
+        for (ApiService apiService : mApiServices) {
+            services.put(new JSONObject().put("name", apiService.getName()).put("actionListUrl",
+                    apiService.getActionListUrl()));
+        }
+        return new JSONObject().put("ddUrl", mDDUrl).put("friendlyName", mFriendlyName)
+                .put("modelName", mModelName).put("udn", mUDN).put("iconUrl", mIconUrl)
+                .put("services", services);
+    }
+
+    // Restores a description serialized by toJson.
+    static ServerDevice fromJson(JSONObject json) throws JSONException {
+        ServerDevice device = new ServerDevice();
+        device.mDDUrl = json.getString("ddUrl");
+        device.mFriendlyName = json.optString("friendlyName", null);
+        device.mModelName = json.optString("modelName", null);
+        device.mUDN = json.getString("udn");
+        device.mIconUrl = json.optString("iconUrl", null);
+        JSONArray services = json.getJSONArray("services");
+        for (int i = 0; i < services.length(); i++) {
+            JSONObject service = services.getJSONObject(i);
+            device.addApiService(service.getString("name"), service.getString("actionListUrl"));
+        }
         return device;
     }
 
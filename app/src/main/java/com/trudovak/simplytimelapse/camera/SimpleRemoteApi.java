@@ -5,13 +5,23 @@
 package com.trudovak.simplytimelapse.camera;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import com.trudovak.simplytimelapse.camera.ServerDevice.ApiService;
+import com.trudovak.simplytimelapse.camera.utils.HttpConnectionPool;
+import com.trudovak.simplytimelapse.camera.utils.JsonPullReader;
+import com.trudovak.simplytimelapse.camera.utils.JsonRpcWriter;
+import com.trudovak.simplytimelapse.camera.utils.ResponseBuffer;
 import com.trudovak.simplytimelapse.camera.utils.SimpleHttpClient;
 import com.trudovak.simplytimelapse.utils.Logger;
 
@@ -21,11 +31,35 @@ import com.trudovak.simplytimelapse.utils.Logger;
 public class SimpleRemoteApi {
     private static final Logger logger = new Logger(SimpleRemoteApi.class);
 
+    private static final String CONTENT_TYPE = "application/json; charset=UTF-8";
+    private static final String API_VERSION = "1.0";
+
+    // Sent whatever the available APIs say, see checkAvailable
+    private static final Set<String> SHOOTING_METHODS = new HashSet<String>(Arrays.asList("actTakePicture",
+            "awaitTakePicture", "startRecMode", "stopRecMode"));
+
+    private static final ThreadLocal<JsonPullReader> sThreadReader = new ThreadLocal<JsonPullReader>() {
+        @Override
+        protected JsonPullReader initialValue() {
+            return new JsonPullReader();
+        }
+    };
+
     // API server device you want to send requests.
     private final ServerDevice mTargetServer;
 
+    // Keep-alive connections to the API server.
+    private final HttpConnectionPool mConnectionPool;
+
+    // APIs available on the server device, shared with other instances.
+    private final CameraCapabilities mCapabilities;
+
+    // Endpoint URL of each service, resolved once.
+    private final Map<String, String> mEndpointUrls = new ConcurrentHashMap<String, String>();
+
     // Request ID of API calling. This will be counted up by each API calling.
-    private int mRequestId;
+    // Calls may be issued concurrently, see AsyncRemoteApi.
+    private final AtomicInteger mRequestId = new AtomicInteger(1);
 
     /**
      * Constructor.
@@ -34,8 +68,39 @@ public class SimpleRemoteApi {
      *            server device of Remote API
      */
     public SimpleRemoteApi(ServerDevice target) {
+        this(target, HttpConnectionPool.getDefault());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param target
+     *            server device of Remote API
+     * @param connectionPool
+     *            pool providing the connections to the server device
+     */
+    public SimpleRemoteApi(ServerDevice target, HttpConnectionPool connectionPool) {
         mTargetServer = target;
-        mRequestId = 1;
+        mConnectionPool = connectionPool;
+        mCapabilities = CameraCapabilities.of(target);
+    }
+
+    /**
+     * Returns the APIs available on the server device, which calls known not
+     * to be available are checked against before they are sent.
+     */
+    public CameraCapabilities getCapabilities() {
+        return mCapabilities;
+    }
+
+    /**
+     * Checks to see whether a camera method may be called at present.
+     *
+     * @param method name of the API method
+     * @return false only if the method is known not to be available
+     */
+    public boolean isApiAvailable(String method) {
+        return mCapabilities.isAvailable(method);
     }
 
     // Retrieves Action List URL from Server information.
@@ -49,19 +114,39 @@ public class SimpleRemoteApi {
         throw new IllegalStateException("actionUrl not found.");
     }
 
+    // Returns the request target of the service.
+    private String findEndpointUrl(String service) {
+        String url = mEndpointUrls.get(service);
+        if (url == null) {
+            url = findActionListUrl(service) + "/" + service;
+            mEndpointUrls.put(service, url);
+        }
+        return url;
+    }
+
     // Request ID. Counted up after calling.
     private int id() {
-        return mRequestId++;
+        return mRequestId.getAndIncrement();
     }
 
     // Camera Service APIs
 
     public JSONObject getAvailableApiList() throws IOException {
-        return invoke("camera", "getAvailableApiList", new JSONArray());
+        return getAvailableApiList(SimpleHttpClient.DEFAULT_READ_TIMEOUT);
+    }
+
+    public JSONObject getAvailableApiList(int timeout) throws IOException {
+        JSONObject reply = invoke("camera", "getAvailableApiList", new JSONArray(), timeout);
+        mCapabilities.update(reply);
+        return reply;
     }
 
     public JSONObject getApplicationInfo() throws IOException {
-        return invoke("camera", "getApplicationInfo", new JSONArray());
+        return getApplicationInfo(SimpleHttpClient.DEFAULT_READ_TIMEOUT);
+    }
+
+    public JSONObject getApplicationInfo(int timeout) throws IOException {
+        return invoke("camera", "getApplicationInfo", new JSONArray(), timeout);
     }
 
     public JSONObject getShootMode() throws IOException {
@@ -69,7 +154,11 @@ public class SimpleRemoteApi {
     }
 
     public JSONObject setShootMode(String shootMode) throws IOException {
-        return invoke("camera", "setShootMode", new JSONArray().put(shootMode));
+        try {
+            return invoke("camera", "setShootMode", new JSONArray().put(shootMode));
+        } finally {
+            mCapabilities.invalidate();
+        }
     }
 
     public JSONObject getAvailableShootMode() throws IOException {
@@ -89,11 +178,25 @@ public class SimpleRemoteApi {
     }
 
     public JSONObject startRecMode() throws IOException {
-        return invoke("camera", "startRecMode", new JSONArray());
+        return startRecMode(SimpleHttpClient.DEFAULT_READ_TIMEOUT);
+    }
+
+    // The mode calls change the available APIs, they are not known again
+    // until the next list or event.
+    public JSONObject startRecMode(int timeout) throws IOException {
+        try {
+            return invoke("camera", "startRecMode", new JSONArray(), timeout);
+        } finally {
+            mCapabilities.invalidate();
+        }
     }
 
     public JSONObject stopRecMode() throws IOException {
-        return invoke("camera", "stopRecMode", new JSONArray());
+        try {
+            return invoke("camera", "stopRecMode", new JSONArray());
+        } finally {
+            mCapabilities.invalidate();
+        }
     }
 
     public JSONObject actTakePicture() throws IOException {
@@ -108,6 +211,34 @@ public class SimpleRemoteApi {
         return invoke("camera", "awaitTakePicture", new JSONArray(), timeout);
     }
 
+    /**
+     * Takes a picture, reading the response into a reusable typed object
+     * instead of a JSON tree.
+     *
+     * @param timeout read timeout in milliseconds
+     * @param response object receiving the response
+     * @return the response object
+     * @throws IOException a {@link CameraException} on connection errors or
+     *             malformed responses
+     */
+    public JsonRpcResponse actTakePicture(int timeout, JsonRpcResponse response) throws IOException {
+        return invoke("camera", JsonRpcWriter.forCurrentThread().begin("actTakePicture"), timeout, response);
+    }
+
+    /**
+     * Waits for the picture of a long exposure, reading the response into a
+     * reusable typed object instead of a JSON tree.
+     *
+     * @param timeout read timeout in milliseconds
+     * @param response object receiving the response
+     * @return the response object
+     * @throws IOException a {@link CameraException} on connection errors or
+     *             malformed responses
+     */
+    public JsonRpcResponse awaitTakePicture(int timeout, JsonRpcResponse response) throws IOException {
+        return invoke("camera", JsonRpcWriter.forCurrentThread().begin("awaitTakePicture"), timeout, response);
+    }
+
     public JSONObject startMovieRec() throws IOException {
         return invoke("camera", "startMovieRec", new JSONArray());
     }
@@ -117,7 +248,25 @@ public class SimpleRemoteApi {
     }
 
     public JSONObject getEvent(boolean longPollingFlag) throws IOException {
-        return invoke("camera", "getEvent", new JSONArray(), (longPollingFlag) ? 20000 : 8000);
+        return invoke("camera", "getEvent", new JSONArray().put(longPollingFlag), (longPollingFlag) ? 20000 : 8000);
+    }
+
+    /**
+     * Reads camera events into a reusable typed object instead of a JSON tree.
+     *
+     * @param longPollingFlag true to wait until an event occurs
+     * @param response object receiving the response
+     * @return the response object
+     * @throws IOException a {@link CameraException} on connection errors or
+     *             malformed responses
+     */
+    public JsonRpcResponse getEvent(boolean longPollingFlag, JsonRpcResponse response) throws IOException {
+        invoke("camera", JsonRpcWriter.forCurrentThread().begin("getEvent").param(longPollingFlag),
+                (longPollingFlag) ? 20000 : 8000, response);
+        if (response.hasAvailableApis()) {
+            mCapabilities.update(response.getAvailableApis());
+        }
+        return response;
     }
 
     /**
@@ -129,10 +278,24 @@ public class SimpleRemoteApi {
      * @throws IOException
      */
     public JSONObject setPostviewImageSize(String postViewImageSize) throws IOException {
+        return setPostviewImageSize(postViewImageSize, SimpleHttpClient.DEFAULT_READ_TIMEOUT);
+    }
+
+    /**
+     * Sets the post view image size
+     *
+     * @param postViewImageSize
+     *            currently (june 2014) accepted values are "Original" and "2M"
+     * @param timeout
+     *            read timeout in milliseconds
+     * @return JSON object
+     * @throws IOException
+     */
+    public JSONObject setPostviewImageSize(String postViewImageSize, int timeout) throws IOException {
         String method = "setPostviewImageSize";
         JSONArray params = new JSONArray().put(postViewImageSize);
         final String service = "camera";
-        return invoke(service, method, params);
+        return invoke(service, method, params, timeout);
     }
 
     /**
@@ -156,23 +319,68 @@ public class SimpleRemoteApi {
         }
     }
 
+    // Fails the way the camera would, without sending the call, if the method
+    // is not available. The snapshot may lag the camera, so a miss is only
+    // trusted once a fresh list confirms it. The shooting calls are never held
+    // back: the camera changes its list while it moves between idle, capturing
+    // and long shooting, faster than the events report it.
+    private void checkAvailable(String service, String method) throws IOException {
+        if (!"camera".equals(service) || SHOOTING_METHODS.contains(method) || mCapabilities.isAvailable(method)) {
+            return;
+        }
+        getAvailableApiList();
+        if (!mCapabilities.isAvailable(method)) {
+            logger.debug("{0} not available, not sent", method);
+            throw CameraException.cameraError(CameraException.ERROR_NO_SUCH_METHOD, "Not available: " + method);
+        }
+    }
+
     private JSONObject invoke(final String service, String method, JSONArray params) throws IOException {
         return invoke(service, method, params, SimpleHttpClient.DEFAULT_READ_TIMEOUT);
     }
 
     private JSONObject invoke(final String service, String method, JSONArray params, int timeout) throws IOException {
+        checkAvailable(service, method);
         try {
             JSONObject requestJson = new JSONObject().put("method", method).put("params", params).put("id", id())
                     .put("version", "1.0");
-            String url = findActionListUrl(service) + "/" + service;
+            String url = findEndpointUrl(service);
 
             logger.debug("Request: {}", requestJson);
-            String responseJson = SimpleHttpClient.httpPost(url, requestJson.toString(), timeout);
+            ResponseBuffer response = ResponseBuffer.forCurrentThread();
+            mConnectionPool.post(url, requestJson.toString().getBytes(ResponseBuffer.UTF_8), CONTENT_TYPE, timeout,
+                    response);
+            String responseJson = response.toString();
             logger.debug("Response: {}", responseJson);
 
             return new JSONObject(responseJson);
+        } catch (IOException e) {
+            throw CameraException.from(e);
         } catch (JSONException e) {
-            throw new IOException(e);
+            throw new CameraException(CameraException.Kind.PROTOCOL, e.getMessage(), e);
+        }
+    }
+
+    private JsonRpcResponse invoke(String service, JsonRpcWriter request, int timeout, JsonRpcResponse response)
+            throws IOException {
+        checkAvailable(service, request.getMethod());
+        request.end(id(), API_VERSION);
+        ResponseBuffer buffer = ResponseBuffer.forCurrentThread();
+        try {
+            mConnectionPool.post(findEndpointUrl(service), request.getData(), request.getLength(), CONTENT_TYPE,
+                    timeout, buffer);
+        } catch (IOException e) {
+            throw CameraException.from(e);
+        }
+
+        JsonPullReader reader = sThreadReader.get();
+        reader.reset(buffer);
+        try {
+            response.read(reader);
+        } catch (IOException e) {
+            logger.warn(e, "Malformed response: {0}", buffer);
+            throw new CameraException(CameraException.Kind.PROTOCOL, e.getMessage(), e);
         }
+        return response;
     }
 }
@@ -0,0 +1,433 @@
+package com.trudovak.simplytimelapse.camera.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+/**
+ * Keep-alive HTTP/1.1 client for the camera JSON-RPC endpoints. Idle
+ * connections are kept per camera host so that consecutive calls skip the TCP
+ * handshake. The pool is bounded per host, connections idle longer than the
+ * keep-alive period are evicted and every connection is checked before it is
+ * handed out again.
+ */
+public class HttpConnectionPool {
+
+    private static final String TAG = HttpConnectionPool.class.getSimpleName();
+
+    public static final int DEFAULT_MAX_IDLE_PER_HOST = 2;
+    public static final long DEFAULT_KEEP_ALIVE = 15000; // [msec]
+
+    private static final int DEFAULT_CONNECTION_TIMEOUT = 10000; // [msec]
+    private static final int HEALTH_CHECK_TIMEOUT = 1; // [msec]
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final HttpConnectionPool sDefault = new HttpConnectionPool(
+            DEFAULT_MAX_IDLE_PER_HOST, DEFAULT_KEEP_ALIVE);
+
+    /**
+     * A single keep-alive socket to a camera host.
+     */
+    private static class Connection {
+        final String mKey;
+        final Socket mSocket;
+        final BufferedInputStream mIn;
+        final OutputStream mOut;
+        long mIdleSince;
+
+        Connection(String key, Socket socket) throws IOException {
+            mKey = key;
+            mSocket = socket;
+            mIn = new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE);
+            mOut = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+        }
+
+        // A healthy idle connection has nothing to read. EOF or unexpected
+        // bytes mean the camera has closed or desynchronised it.
+        boolean isHealthy() {
+            if (mSocket.isClosed() || mSocket.isInputShutdown() || mSocket.isOutputShutdown()) {
+                return false;
+            }
+            try {
+                if (mIn.available() > 0) {
+                    return false;
+                }
+                mSocket.setSoTimeout(HEALTH_CHECK_TIMEOUT);
+                mIn.mark(1);
+                mIn.read();
+                return false;
+            } catch (SocketTimeoutException e) {
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        void close() {
+            try {
+                mSocket.close();
+            } catch (IOException e) {
+                Log.w(TAG, "IOException while closing Socket");
+            }
+        }
+    }
+
+    private final int mMaxIdlePerHost;
+    private final long mKeepAlive;
+    private final Map<String, LinkedList<Connection>> mIdle = new HashMap<String, LinkedList<Connection>>();
+
+    private final AtomicLong mCreatedCount = new AtomicLong();
+    private final AtomicLong mReusedCount = new AtomicLong();
+    private final AtomicLong mEvictedCount = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param maxIdlePerHost maximum number of idle connections kept per host
+     * @param keepAlive time in milliseconds an idle connection is kept
+     */
+    public HttpConnectionPool(int maxIdlePerHost, long keepAlive) {
+        mMaxIdlePerHost = maxIdlePerHost;
+        mKeepAlive = keepAlive;
+    }
+
+    /**
+     * Returns the pool shared by all camera API clients.
+     *
+     * @return the default pool
+     */
+    public static HttpConnectionPool getDefault() {
+        return sDefault;
+    }
+
+    /**
+     * Returns the number of connections opened by this pool.
+     */
+    public long getCreatedCount() {
+        return mCreatedCount.get();
+    }
+
+    /**
+     * Returns the number of requests served over an already open connection.
+     */
+    public long getReusedCount() {
+        return mReusedCount.get();
+    }
+
+    /**
+     * Returns the number of idle connections closed by the pool because they
+     * expired, failed the health check or exceeded the per host limit.
+     */
+    public long getEvictedCount() {
+        return mEvictedCount.get();
+    }
+
+    /**
+     * Send HTTP POST request to the indicated url over a pooled connection.
+     * Then reads the response body into the indicated buffer.
+     *
+     * @param url request target
+     * @param body POST body data
+     * @param contentType value of the Content-Type header
+     * @param timeout read timeout in milliseconds, also caps the connect
+     *            timeout of a new connection
+     * @param response buffer receiving the response body
+     * @throws IOException on errors, e.g. {@link SocketTimeoutException} or
+     *             {@link HttpStatusException}
+     */
+    public void post(String url, byte[] body, String contentType, int timeout, ResponseBuffer response)
+            throws IOException {
+        post(url, body, body.length, contentType, timeout, response);
+    }
+
+    /**
+     * Send HTTP POST request to the indicated url over a pooled connection.
+     * Then reads the response body into the indicated buffer.
+     *
+     * @param url request target
+     * @param body buffer holding the POST body data
+     * @param length number of bytes of the body in the buffer
+     * @param contentType value of the Content-Type header
+     * @param timeout read timeout in milliseconds, also caps the connect
+     *            timeout of a new connection
+     * @param response buffer receiving the response body
+     * @throws IOException on errors, e.g. {@link SocketTimeoutException} or
+     *             {@link HttpStatusException}
+     */
+    public void post(String url, byte[] body, int length, String contentType, int timeout,
+            ResponseBuffer response) throws IOException {
+        final URL _url = new URL(url);
+        final String host = _url.getHost();
+        final int port = _url.getPort() == -1 ? _url.getDefaultPort() : _url.getPort();
+        final String key = host + ":" + port;
+        final String path = _url.getFile().length() == 0 ? "/" : _url.getFile();
+
+        byte[] head = ("POST " + path + " HTTP/1.1\r\n" + "Host: " + key + "\r\n" + "Content-Type: "
+                + contentType + "\r\n" + "Content-Length: " + length + "\r\n"
+                + "Connection: keep-alive\r\n\r\n").getBytes("ISO-8859-1");
+
+        Connection conn = acquire(key);
+        if (conn != null) {
+            try {
+                execute(conn, head, body, length, timeout, response);
+                return;
+            } catch (StaleConnectionException e) {
+                // The camera closed the idle connection and the request could
+                // not be written, so it was not processed and is safe to
+                // resend. A connection closed after the request was written
+                // is not retried: the camera may have acted on it, e.g. taken
+                // a picture.
+                Log.d(TAG, "post: stale connection to " + key + ", reconnecting");
+            }
+        }
+        // A short call, e.g. a probe, must not wait for the full connect
+        // timeout of a camera that is gone
+        conn = open(key, host, port, Math.min(DEFAULT_CONNECTION_TIMEOUT, timeout));
+        try {
+            execute(conn, head, body, length, timeout, response);
+        } catch (StaleConnectionException e) {
+            throw (IOException) e.getCause();
+        }
+    }
+
+    /**
+     * Closes all idle connections.
+     */
+    public void evictAll() {
+        synchronized (mIdle) {
+            for (LinkedList<Connection> connections : mIdle.values()) {
+                for (Connection conn : connections) {
+                    conn.close();
+                    mEvictedCount.incrementAndGet();
+                }
+            }
+            mIdle.clear();
+        }
+    }
+
+    /**
+     * Closes idle connections that have not been used for longer than the
+     * keep-alive period.
+     */
+    public void evictExpired() {
+        final long now = System.currentTimeMillis();
+        synchronized (mIdle) {
+            Iterator<LinkedList<Connection>> hosts = mIdle.values().iterator();
+            while (hosts.hasNext()) {
+                LinkedList<Connection> connections = hosts.next();
+                Iterator<Connection> it = connections.iterator();
+                while (it.hasNext()) {
+                    Connection conn = it.next();
+                    if (now - conn.mIdleSince > mKeepAlive) {
+                        it.remove();
+                        conn.close();
+                        mEvictedCount.incrementAndGet();
+                    }
+                }
+                if (connections.isEmpty()) {
+                    hosts.remove();
+                }
+            }
+        }
+    }
+
+    // Takes the most recently used healthy connection to the host, if any.
+    private Connection acquire(String key) {
+        evictExpired();
+        while (true) {
+            Connection conn;
+            synchronized (mIdle) {
+                LinkedList<Connection> connections = mIdle.get(key);
+                if (connections == null || connections.isEmpty()) {
+                    return null;
+                }
+                conn = connections.removeFirst();
+            }
+            if (conn.isHealthy()) {
+                mReusedCount.incrementAndGet();
+                return conn;
+            }
+            conn.close();
+            mEvictedCount.incrementAndGet();
+        }
+    }
+
+    private void release(Connection conn) {
+        conn.mIdleSince = System.currentTimeMillis();
+        synchronized (mIdle) {
+            LinkedList<Connection> connections = mIdle.get(conn.mKey);
+            if (connections == null) {
+                connections = new LinkedList<Connection>();
+                mIdle.put(conn.mKey, connections);
+            }
+            connections.addFirst(conn);
+            while (connections.size() > mMaxIdlePerHost) {
+                connections.removeLast().close();
+                mEvictedCount.incrementAndGet();
+            }
+        }
+    }
+
+    private Connection open(String key, String host, int port, int connectTimeout) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            socket.connect(new InetSocketAddress(host, port), connectTimeout);
+            mCreatedCount.incrementAndGet();
+            return new Connection(key, socket);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    private void execute(Connection conn, byte[] head, byte[] body, int length, int timeout,
+            ResponseBuffer response) throws IOException {
+        boolean keepAlive = false;
+        try {
+            conn.mSocket.setSoTimeout(timeout);
+            try {
+                conn.mOut.write(head);
+                conn.mOut.write(body, 0, length);
+                conn.mOut.flush();
+            } catch (IOException e) {
+                throw new StaleConnectionException(e);
+            }
+
+            String statusLine = readLine(conn.mIn);
+            if (statusLine == null) {
+                // The request went out, the camera may have processed it
+                throw new EOFException("Connection closed by " + conn.mKey);
+            }
+            int responseCode = parseStatusCode(statusLine);
+
+            int contentLength = -1;
+            boolean chunked = false;
+            keepAlive = statusLine.startsWith("HTTP/1.1");
+            String line;
+            while ((line = readLine(conn.mIn)) != null && line.length() > 0) {
+                int colon = line.indexOf(':');
+                if (colon <= 0) {
+                    continue;
+                }
+                String name = line.substring(0, colon).trim();
+                String value = line.substring(colon + 1).trim();
+                if ("Content-Length".equalsIgnoreCase(name)) {
+                    contentLength = Integer.parseInt(value);
+                } else if ("Transfer-Encoding".equalsIgnoreCase(name)) {
+                    chunked = "chunked".equalsIgnoreCase(value);
+                } else if ("Connection".equalsIgnoreCase(name)) {
+                    keepAlive = "keep-alive".equalsIgnoreCase(value);
+                }
+            }
+            if (line == null) {
+                throw new EOFException("Unexpected end of response headers");
+            }
+
+            if (chunked) {
+                readChunked(conn.mIn, response);
+            } else {
+                keepAlive &= contentLength >= 0;
+                response.readFrom(conn.mIn, contentLength);
+            }
+
+            if (responseCode != 200) {
+                Log.w(TAG, "post: Response Code Error: " + responseCode);
+                throw new HttpStatusException(responseCode);
+            }
+        } catch (NumberFormatException e) {
+            keepAlive = false;
+            throw new IOException("Malformed HTTP response", e);
+        } catch (IOException e) {
+            keepAlive = false;
+            throw e;
+        } finally {
+            if (keepAlive) {
+                release(conn);
+            } else {
+                conn.close();
+            }
+        }
+    }
+
+    private static int parseStatusCode(String statusLine) throws IOException {
+        // HTTP/1.1 200 OK
+        int start = statusLine.indexOf(' ');
+        if (!statusLine.startsWith("HTTP/") || start == -1) {
+            throw new IOException("Malformed status line: " + statusLine);
+        }
+        int end = statusLine.indexOf(' ', start + 1);
+        return Integer.parseInt(statusLine.substring(start + 1, end == -1 ? statusLine.length() : end));
+    }
+
+    // Reads an ISO-8859-1 line without the CRLF. Returns null on EOF before
+    // any byte was read.
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder(64);
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                return line.toString();
+            }
+            line.append((char) c);
+        }
+        if (line.length() == 0) {
+            return null;
+        }
+        throw new EOFException("Unexpected end of stream");
+    }
+
+    private static void readChunked(InputStream in, ResponseBuffer response) throws IOException {
+        response.clear();
+        while (true) {
+            String sizeLine = readLine(in);
+            if (sizeLine == null) {
+                throw new EOFException("Unexpected end of chunked body");
+            }
+            int extension = sizeLine.indexOf(';');
+            if (extension != -1) {
+                sizeLine = sizeLine.substring(0, extension);
+            }
+            int size = Integer.parseInt(sizeLine.trim(), 16);
+            if (size == 0) {
+                // Skip trailers
+                String line;
+                while ((line = readLine(in)) != null && line.length() > 0) {
+                    // nothing
+                }
+                return;
+            }
+            response.appendFully(in, size);
+            readLine(in);
+        }
+    }
+
+    // Signals that the request could not be written, so the camera did not
+    // process it.
+    private static class StaleConnectionException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        StaleConnectionException(IOException cause) {
+            super(cause);
+        }
+    }
+}
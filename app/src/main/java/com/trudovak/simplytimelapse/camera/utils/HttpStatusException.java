@@ -0,0 +1,22 @@
+package com.trudovak.simplytimelapse.camera.utils;
+
+import java.io.IOException;
+
+/**
+ * The server answered with an HTTP status other than 200 OK.
+ */
+public class HttpStatusException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int statusCode;
+
+    public HttpStatusException(int statusCode) {
+        super("Response Error:" + statusCode);
+        this.statusCode = statusCode;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+}
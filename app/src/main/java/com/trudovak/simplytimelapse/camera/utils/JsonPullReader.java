@@ -0,0 +1,388 @@
+package com.trudovak.simplytimelapse.camera.utils;
+
+import java.io.IOException;
+
+/**
+ * Pull parser reading JSON tokens straight from UTF-8 bytes. Names can be
+ * matched without creating Strings and unwanted values are skipped without
+ * being decoded, so extracting a few fields from a response allocates only the
+ * values actually read.
+ */
+public class JsonPullReader {
+
+    /**
+     * JSON token types.
+     */
+    public enum Token {
+        BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, NAME, STRING, NUMBER, BOOLEAN, NULL, END_DOCUMENT
+    }
+
+    private static final int MAX_DEPTH = 32;
+
+    private byte[] mData;
+    private int mPos;
+    private int mLimit;
+
+    // Scope stack. True for objects, false for arrays.
+    private final boolean[] mObjectScope = new boolean[MAX_DEPTH];
+    // Whether the next string in the object scope is a name.
+    private final boolean[] mExpectName = new boolean[MAX_DEPTH];
+    private int mDepth;
+
+    private Token mPeeked;
+    // Bounds of the peeked string or literal, and whether it has escapes.
+    private int mValueStart;
+    private int mValueEnd;
+    private boolean mValueEscaped;
+
+    /**
+     * Starts reading a new document.
+     *
+     * @param data buffer holding UTF-8 JSON
+     * @param offset start of the document
+     * @param length length of the document
+     */
+    public void reset(byte[] data, int offset, int length) {
+        mData = data;
+        mPos = offset;
+        mLimit = offset + length;
+        mDepth = 0;
+        mPeeked = null;
+    }
+
+    /**
+     * Starts reading the content of the buffer.
+     *
+     * @param buffer buffer holding UTF-8 JSON
+     */
+    public void reset(ResponseBuffer buffer) {
+        reset(buffer.getData(), 0, buffer.getLength());
+    }
+
+    /**
+     * Returns the type of the next token without consuming it.
+     *
+     * @throws IOException if the data is not valid JSON
+     */
+    public Token peek() throws IOException {
+        if (mPeeked == null) {
+            mPeeked = readToken();
+        }
+        return mPeeked;
+    }
+
+    /**
+     * Returns true if the current array or object has more elements.
+     */
+    public boolean hasNext() throws IOException {
+        Token token = peek();
+        return token != Token.END_OBJECT && token != Token.END_ARRAY && token != Token.END_DOCUMENT;
+    }
+
+    public void beginObject() throws IOException {
+        expect(Token.BEGIN_OBJECT);
+    }
+
+    public void endObject() throws IOException {
+        expect(Token.END_OBJECT);
+    }
+
+    public void beginArray() throws IOException {
+        expect(Token.BEGIN_ARRAY);
+    }
+
+    public void endArray() throws IOException {
+        expect(Token.END_ARRAY);
+    }
+
+    /**
+     * Consumes the next name without decoding it. Use
+     * {@link #nameEquals(String)} to match it.
+     */
+    public void consumeName() throws IOException {
+        expect(Token.NAME);
+    }
+
+    /**
+     * Compares the name consumed last to the indicated ASCII name. Only valid
+     * until the next token is peeked.
+     *
+     * @param name expected name
+     * @return true if the name matches
+     */
+    public boolean nameEquals(String name) throws IOException {
+        return valueEquals(name);
+    }
+
+    /**
+     * Consumes the next name.
+     */
+    public String nextName() throws IOException {
+        expect(Token.NAME);
+        return decodeString();
+    }
+
+    /**
+     * Consumes the next string value.
+     */
+    public String nextString() throws IOException {
+        expect(Token.STRING);
+        return decodeString();
+    }
+
+    /**
+     * Consumes the next string value and compares it to the indicated ASCII
+     * value without decoding it.
+     *
+     * @param value expected value
+     * @return true if the value matches
+     */
+    public boolean nextStringEquals(String value) throws IOException {
+        expect(Token.STRING);
+        return valueEquals(value);
+    }
+
+    /**
+     * Consumes the next number as an integer.
+     */
+    public int nextInt() throws IOException {
+        expect(Token.NUMBER);
+        int i = mValueStart;
+        boolean negative = mData[i] == '-';
+        if (negative) {
+            i++;
+        }
+        int value = 0;
+        for (; i < mValueEnd; i++) {
+            byte b = mData[i];
+            if (b < '0' || b > '9') {
+                throw new IOException("Not an integer at " + mValueStart);
+            }
+            value = value * 10 + (b - '0');
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Consumes the next boolean value.
+     */
+    public boolean nextBoolean() throws IOException {
+        expect(Token.BOOLEAN);
+        return mData[mValueStart] == 't';
+    }
+
+    /**
+     * Consumes the next null value.
+     */
+    public void nextNull() throws IOException {
+        expect(Token.NULL);
+    }
+
+    /**
+     * Skips the next value, including nested arrays and objects.
+     */
+    public void skipValue() throws IOException {
+        int depth = 0;
+        do {
+            Token token = peek();
+            mPeeked = null;
+            if (token == Token.BEGIN_ARRAY || token == Token.BEGIN_OBJECT) {
+                depth++;
+            } else if (token == Token.END_ARRAY || token == Token.END_OBJECT) {
+                depth--;
+            } else if (token == Token.END_DOCUMENT) {
+                throw new IOException("Unexpected end of document");
+            }
+        } while (depth > 0);
+    }
+
+    private void expect(Token expected) throws IOException {
+        Token token = peek();
+        if (token != expected) {
+            throw new IOException("Expected " + expected + " but was " + token + " at " + mPos);
+        }
+        mPeeked = null;
+    }
+
+    private Token readToken() throws IOException {
+        while (mPos < mLimit) {
+            byte b = mData[mPos];
+            switch (b) {
+                case ' ':
+                case '\t':
+                case '\r':
+                case '\n':
+                case ',':
+                case ':':
+                    mPos++;
+                    break;
+                case '{':
+                    mPos++;
+                    push(true);
+                    return Token.BEGIN_OBJECT;
+                case '[':
+                    mPos++;
+                    push(false);
+                    return Token.BEGIN_ARRAY;
+                case '}':
+                    mPos++;
+                    pop();
+                    return Token.END_OBJECT;
+                case ']':
+                    mPos++;
+                    pop();
+                    return Token.END_ARRAY;
+                case '"':
+                    readString();
+                    if (mDepth > 0 && mObjectScope[mDepth - 1] && mExpectName[mDepth - 1]) {
+                        mExpectName[mDepth - 1] = false;
+                        return Token.NAME;
+                    }
+                    valueRead();
+                    return Token.STRING;
+                case 't':
+                case 'f':
+                    readLiteral();
+                    valueRead();
+                    return Token.BOOLEAN;
+                case 'n':
+                    readLiteral();
+                    valueRead();
+                    return Token.NULL;
+                default:
+                    if (b == '-' || (b >= '0' && b <= '9')) {
+                        readLiteral();
+                        valueRead();
+                        return Token.NUMBER;
+                    }
+                    throw new IOException("Unexpected character '" + (char) b + "' at " + mPos);
+            }
+        }
+        if (mDepth != 0) {
+            throw new IOException("Unexpected end of document");
+        }
+        return Token.END_DOCUMENT;
+    }
+
+    private void push(boolean object) throws IOException {
+        if (mDepth == MAX_DEPTH) {
+            throw new IOException("JSON nested too deep");
+        }
+        mObjectScope[mDepth] = object;
+        mExpectName[mDepth] = true;
+        mDepth++;
+    }
+
+    private void pop() throws IOException {
+        if (mDepth == 0) {
+            throw new IOException("Unbalanced JSON at " + mPos);
+        }
+        mDepth--;
+        valueRead();
+    }
+
+    // A complete value was read in the enclosing scope.
+    private void valueRead() {
+        if (mDepth > 0) {
+            mExpectName[mDepth - 1] = true;
+        }
+    }
+
+    private void readString() throws IOException {
+        mValueEscaped = false;
+        mValueStart = ++mPos;
+        while (mPos < mLimit) {
+            byte b = mData[mPos];
+            if (b == '\\') {
+                mValueEscaped = true;
+                mPos += 2;
+            } else if (b == '"') {
+                mValueEnd = mPos++;
+                return;
+            } else {
+                mPos++;
+            }
+        }
+        throw new IOException("Unterminated string");
+    }
+
+    private void readLiteral() {
+        mValueStart = mPos;
+        while (mPos < mLimit) {
+            byte b = mData[mPos];
+            if (b == ',' || b == ']' || b == '}' || b == ' ' || b == '\t' || b == '\r' || b == '\n') {
+                break;
+            }
+            mPos++;
+        }
+        mValueEnd = mPos;
+    }
+
+    private boolean valueEquals(String ascii) throws IOException {
+        if (mValueEscaped) {
+            return ascii.equals(decodeString());
+        }
+        int length = mValueEnd - mValueStart;
+        if (length != ascii.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (mData[mValueStart + i] != ascii.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String decodeString() throws IOException {
+        if (!mValueEscaped) {
+            return new String(mData, mValueStart, mValueEnd - mValueStart, ResponseBuffer.UTF_8);
+        }
+        StringBuilder builder = new StringBuilder(mValueEnd - mValueStart);
+        int runStart = mValueStart;
+        int i = mValueStart;
+        while (i < mValueEnd) {
+            if (mData[i] != '\\') {
+                i++;
+                continue;
+            }
+            builder.append(new String(mData, runStart, i - runStart, ResponseBuffer.UTF_8));
+            char escaped = (char) mData[i + 1];
+            i += 2;
+            switch (escaped) {
+                case 'b':
+                    builder.append('\b');
+                    break;
+                case 'f':
+                    builder.append('\f');
+                    break;
+                case 'n':
+                    builder.append('\n');
+                    break;
+                case 'r':
+                    builder.append('\r');
+                    break;
+                case 't':
+                    builder.append('\t');
+                    break;
+                case 'u':
+                    if (i + 4 > mValueEnd) {
+                        throw new IOException("Invalid unicode escape");
+                    }
+                    try {
+                        builder.append((char) Integer.parseInt(new String(mData, i, 4, ResponseBuffer.UTF_8), 16));
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Invalid unicode escape", e);
+                    }
+                    i += 4;
+                    break;
+                default:
+                    builder.append(escaped);
+                    break;
+            }
+            runStart = i;
+        }
+        builder.append(new String(mData, runStart, mValueEnd - runStart, ResponseBuffer.UTF_8));
+        return builder.toString();
+    }
+}
@@ -0,0 +1,190 @@
+package com.trudovak.simplytimelapse.camera.utils;
+
+/**
+ * Serialises JSON-RPC requests into a reusable byte buffer. A request is
+ * written as {@code {"method":..,"params":[..],"id":..,"version":..}} with the
+ * parameters appended one by one, so no intermediate JSON objects are built.
+ */
+public class JsonRpcWriter {
+
+    private static final int DEFAULT_CAPACITY = 256;
+
+    private static final ThreadLocal<JsonRpcWriter> sThreadWriter = new ThreadLocal<JsonRpcWriter>() {
+        @Override
+        protected JsonRpcWriter initialValue() {
+            return new JsonRpcWriter();
+        }
+    };
+
+    private byte[] mData = new byte[DEFAULT_CAPACITY];
+    private int mLength;
+    private boolean mFirstParam;
+    private String mMethod;
+
+    /**
+     * Returns a writer owned by the calling thread.
+     *
+     * @return the writer of the current thread
+     */
+    public static JsonRpcWriter forCurrentThread() {
+        return sThreadWriter.get();
+    }
+
+    /**
+     * Starts a new request, discarding any previous content.
+     *
+     * @param method name of the API method
+     * @return this writer
+     */
+    public JsonRpcWriter begin(String method) {
+        mMethod = method;
+        mLength = 0;
+        mFirstParam = true;
+        append("{\"method\":");
+        appendString(method);
+        append(",\"params\":[");
+        return this;
+    }
+
+    /**
+     * Appends a string parameter.
+     */
+    public JsonRpcWriter param(String value) {
+        separator();
+        appendString(value);
+        return this;
+    }
+
+    /**
+     * Appends a boolean parameter.
+     */
+    public JsonRpcWriter param(boolean value) {
+        separator();
+        append(value ? "true" : "false");
+        return this;
+    }
+
+    /**
+     * Appends an integer parameter.
+     */
+    public JsonRpcWriter param(int value) {
+        separator();
+        appendInt(value);
+        return this;
+    }
+
+    /**
+     * Completes the request.
+     *
+     * @param id request id
+     * @param version API version
+     * @return this writer
+     */
+    public JsonRpcWriter end(int id, String version) {
+        append("],\"id\":");
+        appendInt(id);
+        append(",\"version\":");
+        appendString(version);
+        append("}");
+        return this;
+    }
+
+    /**
+     * Returns the name of the API method of the request.
+     */
+    public String getMethod() {
+        return mMethod;
+    }
+
+    /**
+     * Returns the backing array. Only the first {@link #getLength()} bytes are
+     * valid.
+     */
+    public byte[] getData() {
+        return mData;
+    }
+
+    /**
+     * Returns the length of the request in bytes.
+     */
+    public int getLength() {
+        return mLength;
+    }
+
+    @Override
+    public String toString() {
+        return new String(mData, 0, mLength, ResponseBuffer.UTF_8);
+    }
+
+    private void separator() {
+        if (!mFirstParam) {
+            append(",");
+        }
+        mFirstParam = false;
+    }
+
+    // Appends ASCII text.
+    private void append(String ascii) {
+        int length = ascii.length();
+        ensureCapacity(mLength + length);
+        for (int i = 0; i < length; i++) {
+            mData[mLength++] = (byte) ascii.charAt(i);
+        }
+    }
+
+    private void appendInt(int intValue) {
+        long value = intValue;
+        if (value < 0) {
+            append("-");
+            value = -value;
+        }
+        ensureCapacity(mLength + 10);
+        int start = mLength;
+        do {
+            mData[mLength++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        // Digits were written in reverse order
+        for (int i = start, j = mLength - 1; i < j; i++, j--) {
+            byte tmp = mData[i];
+            mData[i] = mData[j];
+            mData[j] = tmp;
+        }
+    }
+
+    private void appendString(String value) {
+        ensureCapacity(mLength + value.length() * 3 + 2);
+        mData[mLength++] = '"';
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                ensureCapacity(mLength + 2 + (value.length() - i) * 3);
+                mData[mLength++] = '\\';
+                mData[mLength++] = (byte) c;
+            } else if (c < 0x20) {
+                String escaped = String.format("\\u%04x", (int) c);
+                ensureCapacity(mLength + escaped.length() + (value.length() - i) * 3);
+                append(escaped);
+            } else if (c < 0x80) {
+                mData[mLength++] = (byte) c;
+            } else {
+                int end = Character.isHighSurrogate(c) && i + 1 < value.length() ? i + 2 : i + 1;
+                byte[] encoded = value.substring(i, end).getBytes(ResponseBuffer.UTF_8);
+                i = end - 1;
+                for (byte b : encoded) {
+                    mData[mLength++] = b;
+                }
+            }
+        }
+        ensureCapacity(mLength + 1);
+        mData[mLength++] = '"';
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > mData.length) {
+            byte[] data = new byte[Math.max(capacity, mData.length * 2)];
+            System.arraycopy(mData, 0, data, 0, mLength);
+            mData = data;
+        }
+    }
+}
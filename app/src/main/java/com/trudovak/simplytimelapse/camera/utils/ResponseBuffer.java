@@ -0,0 +1,165 @@
+package com.trudovak.simplytimelapse.camera.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Reusable byte buffer for HTTP response bodies. Responses are read in bulk
+ * and kept as raw bytes so parsers can consume them without an intermediate
+ * String. The buffer grows as needed and is trimmed back when an unusually
+ * large response would otherwise be retained.
+ */
+public class ResponseBuffer {
+
+    public static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int DEFAULT_CAPACITY = 4096;
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+    private static final int READ_CHUNK = 4096;
+
+    private static final ThreadLocal<ResponseBuffer> sThreadBuffer = new ThreadLocal<ResponseBuffer>() {
+        @Override
+        protected ResponseBuffer initialValue() {
+            return new ResponseBuffer();
+        }
+    };
+
+    private final int mInitialCapacity;
+    private final int mMaxRetainedCapacity;
+    private byte[] mData;
+    private int mLength;
+
+    /**
+     * Constructor. Creates an empty buffer with the default capacity.
+     */
+    public ResponseBuffer() {
+        this(DEFAULT_CAPACITY, MAX_RETAINED_CAPACITY);
+    }
+
+    /**
+     * Constructor. Creates an empty buffer.
+     *
+     * @param initialCapacity initial capacity in bytes
+     * @param maxRetainedCapacity capacity above which the buffer is trimmed
+     *            back to the initial capacity when cleared
+     */
+    public ResponseBuffer(int initialCapacity, int maxRetainedCapacity) {
+        mInitialCapacity = initialCapacity;
+        mMaxRetainedCapacity = maxRetainedCapacity;
+        mData = new byte[initialCapacity];
+    }
+
+    /**
+     * Returns a buffer owned by the calling thread. The content is only valid
+     * until the next request made on the same thread.
+     *
+     * @return the buffer of the current thread
+     */
+    public static ResponseBuffer forCurrentThread() {
+        return sThreadBuffer.get();
+    }
+
+    /**
+     * Empties the buffer.
+     */
+    public void clear() {
+        mLength = 0;
+        if (mData.length > mMaxRetainedCapacity) {
+            mData = new byte[mInitialCapacity];
+        }
+    }
+
+    /**
+     * Returns the backing array. Only the first {@link #getLength()} bytes are
+     * valid.
+     */
+    public byte[] getData() {
+        return mData;
+    }
+
+    /**
+     * Returns the number of valid bytes in the buffer.
+     */
+    public int getLength() {
+        return mLength;
+    }
+
+    /**
+     * Replaces the content with the whole stream.
+     *
+     * @param in stream to read
+     * @param sizeHint expected number of bytes (e.g. Content-Length) or -1
+     *            when unknown
+     * @throws IOException on read errors
+     */
+    public void readFrom(InputStream in, int sizeHint) throws IOException {
+        clear();
+        if (sizeHint >= 0) {
+            appendFully(in, sizeHint);
+        } else {
+            appendToEnd(in);
+        }
+    }
+
+    /**
+     * Appends exactly the indicated number of bytes from the stream.
+     *
+     * @param in stream to read
+     * @param length number of bytes to read
+     * @throws IOException on read errors or if the stream ends too early
+     */
+    public void appendFully(InputStream in, int length) throws IOException {
+        ensureCapacity(mLength + length);
+        int end = mLength + length;
+        while (mLength < end) {
+            int read = in.read(mData, mLength, end - mLength);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of response body");
+            }
+            mLength += read;
+        }
+    }
+
+    /**
+     * Appends the stream content until its end.
+     *
+     * @param in stream to read
+     * @throws IOException on read errors
+     */
+    public void appendToEnd(InputStream in) throws IOException {
+        while (true) {
+            ensureCapacity(mLength + READ_CHUNK);
+            int read = in.read(mData, mLength, mData.length - mLength);
+            if (read < 0) {
+                return;
+            }
+            mLength += read;
+        }
+    }
+
+    /**
+     * Returns the content as a stream, without copying it.
+     */
+    public InputStream asInputStream() {
+        return new ByteArrayInputStream(mData, 0, mLength);
+    }
+
+    /**
+     * Decodes the content as UTF-8.
+     */
+    @Override
+    public String toString() {
+        return new String(mData, 0, mLength, UTF_8);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > mData.length) {
+            byte[] data = new byte[Math.max(capacity, mData.length * 2)];
+            System.arraycopy(mData, 0, data, 0, mLength);
+            mData = data;
+        }
+    }
+}
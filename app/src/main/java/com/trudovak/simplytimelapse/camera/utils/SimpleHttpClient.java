@@ -4,10 +4,8 @@
 
 package com.trudovak.simplytimelapse.camera.utils;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.net.HttpURLConnection;
@@ -33,8 +31,8 @@ public class SimpleHttpClient {
      *
      * @param url request target
      * @return response as string
-     * @throws IOException all errors and exception are wrapped by this
-     *             Exception.
+     * @throws IOException on errors, e.g. {@link SocketTimeoutException} or
+     *             {@link HttpStatusException}
      */
     public static String httpGet(String url) throws IOException {
         return httpGet(url, DEFAULT_READ_TIMEOUT);
@@ -47,10 +45,64 @@ public class SimpleHttpClient {
      * @param url request target
      * @param timeout Request timeout
      * @return response as string
-     * @throws IOException all errors and exception are wrapped by this
-     *             Exception.
+     * @throws IOException on errors, e.g. {@link SocketTimeoutException} or
+     *             {@link HttpStatusException}
      */
     public static String httpGet(String url, int timeout) throws IOException {
+        ResponseBuffer buffer = ResponseBuffer.forCurrentThread();
+        httpGet(url, timeout, buffer);
+        return buffer.toString();
+    }
+
+    /**
+     * Receives a response body as a stream, see
+     * {@link SimpleHttpClient#httpGet(String, int, ResponseHandler)}.
+     */
+    public interface ResponseHandler<T> {
+        /**
+         * Reads the response body. The handler may stop reading before the end
+         * of the body; the stream is closed afterwards.
+         *
+         * @param in response body
+         * @param contentLength length of the body, or -1 if unknown
+         * @return the result of the request
+         */
+        T handleResponse(InputStream in, int contentLength) throws IOException;
+    }
+
+    /**
+     * Send HTTP GET request to the indicated url. Then reads the raw response
+     * body into the indicated buffer.
+     *
+     * @param url request target
+     * @param timeout Request timeout
+     * @param buffer buffer receiving the response body
+     * @throws IOException on errors, e.g. {@link SocketTimeoutException} or
+     *             {@link HttpStatusException}
+     */
+    public static void httpGet(String url, int timeout, final ResponseBuffer buffer) throws IOException {
+        httpGet(url, timeout, new ResponseHandler<Void>() {
+            @Override
+            public Void handleResponse(InputStream in, int contentLength) throws IOException {
+                buffer.readFrom(in, contentLength);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Send HTTP GET request to the indicated url. Then passes the response
+     * body stream to the indicated handler, so it can be consumed while it is
+     * received without being buffered.
+     *
+     * @param url request target
+     * @param timeout Request timeout
+     * @param handler reads the response body
+     * @return the result of the handler
+     * @throws IOException on errors, e.g. {@link SocketTimeoutException} or
+     *             {@link HttpStatusException}
+     */
+    public static <T> T httpGet(String url, int timeout, ResponseHandler<T> handler) throws IOException {
         HttpURLConnection httpConn = null;
         InputStream inputStream = null;
 
@@ -70,14 +122,18 @@ public class SimpleHttpClient {
             if (inputStream == null) {
                 Log.w(TAG, "httpGet: Response Code Error: " + responseCode
                         + ": " + url);
-                throw new IOException("Response Error:" + responseCode);
+                throw new HttpStatusException(responseCode);
             }
         } catch (final SocketTimeoutException e) {
+            // Kept as is, so callers can tell a timeout from other errors
             Log.w(TAG, "httpGet: Timeout: " + url);
-            throw new IOException();
+            if (httpConn != null) {
+                httpConn.disconnect();
+            }
+            throw e;
         } catch (final MalformedURLException e) {
             Log.w(TAG, "httpGet: MalformedUrlException: " + url);
-            throw new IOException();
+            throw e;
         } catch (final IOException e) {
             Log.w(TAG, "httpGet: " + e.getMessage());
             if (httpConn != null) {
@@ -86,27 +142,13 @@ public class SimpleHttpClient {
             throw e;
         }
 
-        // Read stream as String
-        BufferedReader reader = null;
+        // Hand the stream over
         try {
-            StringBuilder responseBuf = new StringBuilder();
-            reader = new BufferedReader(new InputStreamReader(inputStream));
-            int c;
-            while ((c = reader.read()) != -1) {
-                responseBuf.append((char) c);
-            }
-            return responseBuf.toString();
+            return handler.handleResponse(inputStream, httpConn.getContentLength());
         } catch (IOException e) {
             Log.w(TAG, "httpGet: read error: " + e.getMessage());
             throw e;
         } finally {
-            try {
-                if (reader != null) {
-                    reader.close();
-                }
-            } catch (IOException e) {
-                Log.w(TAG, "IOException while closing BufferedReader");
-            }
             try {
                 inputStream.close();
             } catch (IOException e) {
@@ -122,8 +164,8 @@ public class SimpleHttpClient {
      * @param url request target
      * @param postData POST body data as string (ex. JSON)
      * @return response as string
-     * @throws IOException all errors and exception are wrapped by this
-     *             Exception.
+     * @throws IOException on errors, e.g. {@link SocketTimeoutException} or
+     *             {@link HttpStatusException}
      */
     public static String httpPost(String url, String postData)
             throws IOException {
@@ -138,11 +180,29 @@ public class SimpleHttpClient {
      * @param postData POST body data as string (ex. JSON)
      * @param timeout Request timeout
      * @return response as string
-     * @throws IOException all errors and exception are wrapped by this
-     *             Exception.
+     * @throws IOException on errors, e.g. {@link SocketTimeoutException} or
+     *             {@link HttpStatusException}
      */
     public static String httpPost(String url, String postData, int timeout)
             throws IOException {
+        ResponseBuffer buffer = ResponseBuffer.forCurrentThread();
+        httpPost(url, postData, timeout, buffer);
+        return buffer.toString();
+    }
+
+    /**
+     * Send HTTP POST request to the indicated url. Then reads the raw response
+     * body into the indicated buffer.
+     *
+     * @param url request target
+     * @param postData POST body data as string (ex. JSON)
+     * @param timeout Request timeout
+     * @param buffer buffer receiving the response body
+     * @throws IOException on errors, e.g. {@link SocketTimeoutException} or
+     *             {@link HttpStatusException}
+     */
+    public static void httpPost(String url, String postData, int timeout,
+            ResponseBuffer buffer) throws IOException {
         HttpURLConnection httpConn = null;
         OutputStream outputStream = null;
         OutputStreamWriter writer = null;
@@ -175,14 +235,18 @@ public class SimpleHttpClient {
             if (inputStream == null) {
                 Log.w(TAG, "httpPost: Response Code Error: " + responseCode
                         + ": " + url);
-                throw new IOException("Response Error:" + responseCode);
+                throw new HttpStatusException(responseCode);
             }
         } catch (final SocketTimeoutException e) {
+            // Kept as is, so callers can tell a timeout from other errors
             Log.w(TAG, "httpPost: Timeout: " + url);
-            throw new IOException();
+            if (httpConn != null) {
+                httpConn.disconnect();
+            }
+            throw e;
         } catch (final MalformedURLException e) {
             Log.w(TAG, "httpPost: MalformedUrlException: " + url);
-            throw new IOException();
+            throw e;
         } catch (final IOException e) {
             Log.w(TAG, "httpPost: IOException: " + e.getMessage());
             if (httpConn != null) {
@@ -206,27 +270,17 @@ public class SimpleHttpClient {
             }
         }
 
-        // Read stream as String
-        BufferedReader reader = null;
+        // Read stream in bulk
         try {
-            StringBuilder responseBuf = new StringBuilder();
-            reader = new BufferedReader(new InputStreamReader(inputStream));
-
-            int c;
-            while ((c = reader.read()) != -1) {
-                responseBuf.append((char) c);
-            }
-            return responseBuf.toString();
+            buffer.readFrom(inputStream, httpConn.getContentLength());
         } catch (IOException e) {
             Log.w(TAG, "httpPost: read error: " + e.getMessage());
             throw e;
         } finally {
             try {
-                if (reader != null) {
-                    reader.close();
-                }
+                inputStream.close();
             } catch (IOException e) {
-                Log.w(TAG, "IOException while closing BufferedReader");
+                Log.w(TAG, "IOException while closing InputStream");
             }
         }
     }
@@ -4,41 +4,138 @@
 
 package com.trudovak.simplytimelapse.camera.utils;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 
 /**
- * A parser class for Liveview data Packet defined by Camera Remote API
+ * A parser class for Liveview data Packet defined by Camera Remote API. The
+ * headers are read into a buffer owned by the slicer and validated in place;
+ * the JPEG data is read straight into a reusable {@link Payload}. Payloads
+ * come from a small pool and should be given back with
+ * {@link #release(Payload)} once consumed, so a running liveview does not
+ * allocate per frame.
  */
 public class SimpleLiveviewSlicer {
 
     /**
      * Payload data class. See also Camera Remote API specification document to
-     * know the data structure.
+     * know the data structure. The JPEG data is at the start of the buffer,
+     * followed by the padding; the buffer is usually larger than both.
      */
     public static class Payload {
-        /** jpeg data container */
-        final public byte[] jpegData;
-
-        /** padding data container */
-        final public byte[] paddingData;
+        private byte[] mBuffer;
+        private int mJpegLength;
+        private int mPaddingLength;
+        private int mSequenceNumber;
+        private long mTimestamp;
+        private long mReceivedNanos;
 
         /**
          * Constructor
+         *
+         * @param capacity initial size of the buffer
+         */
+        public Payload(int capacity) {
+            mBuffer = new byte[capacity];
+        }
+
+        /**
+         * Returns the buffer holding the JPEG data followed by the padding.
+         */
+        public byte[] getBuffer() {
+            return mBuffer;
+        }
+
+        /**
+         * Returns the length of the JPEG data at the start of the buffer.
+         */
+        public int getJpegLength() {
+            return mJpegLength;
+        }
+
+        /**
+         * Returns the length of the padding following the JPEG data.
+         */
+        public int getPaddingLength() {
+            return mPaddingLength;
+        }
+
+        /**
+         * Returns the JPEG data as a read-only view of the buffer.
+         */
+        public ByteBuffer getJpeg() {
+            return ByteBuffer.wrap(mBuffer, 0, mJpegLength).asReadOnlyBuffer();
+        }
+
+        /**
+         * Returns the sequence number of the Packet, incremented by the camera
+         * for each Packet.
+         */
+        public int getSequenceNumber() {
+            return mSequenceNumber;
+        }
+
+        /**
+         * Returns the time stamp of the Packet in milliseconds, as set by the
+         * camera.
          */
-        private Payload(byte[] jpegData, byte[] paddingData) {
-            this.jpegData = jpegData;
-            this.paddingData = paddingData;
+        public long getTimestamp() {
+            return mTimestamp;
+        }
+
+        /**
+         * Returns the {@link System#nanoTime()} the Packet was fully
+         * received at.
+         */
+        public long getReceivedNanos() {
+            return mReceivedNanos;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (mBuffer.length < capacity) {
+                mBuffer = new byte[Math.max(capacity, mBuffer.length + (mBuffer.length >> 1))];
+            }
         }
     }
 
+    // Liveview JPEGs are some 20 to 40 KB
+    private static final int DEFAULT_PAYLOAD_CAPACITY = 48 * 1024;
+    private static final int DEFAULT_POOL_SIZE = 3;
+
+    private static final int COMMON_HEADER_LENGTH = 1 + 1 + 2 + 4;
+    private static final int PAYLOAD_HEADER_LENGTH = 4 + 3 + 1 + 4 + 1 + 115;
+
     private static final int CONNECTION_TIMEOUT = 2000; // [msec]
 
-    private HttpURLConnection mHttpConn;
-    private InputStream mInputStream;
+    private volatile HttpURLConnection mHttpConn;
+    private volatile InputStream mInputStream;
+
+    // Both headers of the Packet being read
+    private final byte[] mHeader = new byte[COMMON_HEADER_LENGTH + PAYLOAD_HEADER_LENGTH];
+
+    private final int mPoolSize;
+    private final ArrayDeque<Payload> mPool;
+
+    /**
+     * Constructor. Keeps up to three payloads for reuse.
+     */
+    public SimpleLiveviewSlicer() {
+        this(DEFAULT_POOL_SIZE);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param poolSize maximum number of released payloads kept for reuse
+     */
+    public SimpleLiveviewSlicer(int poolSize) {
+        mPoolSize = poolSize;
+        mPool = new ArrayDeque<Payload>(poolSize);
+    }
 
     /**
      * Opens Liveview HTTP GET connection and prepares for reading Packet data.
@@ -53,80 +150,139 @@ public class SimpleLiveviewSlicer {
         }
 
         final URL _url = new URL(liveviewUrl);
-        mHttpConn = (HttpURLConnection) _url.openConnection();
-        mHttpConn.setRequestMethod("GET");
-        mHttpConn.setConnectTimeout(CONNECTION_TIMEOUT);
-        mHttpConn.connect();
+        final HttpURLConnection httpConn = (HttpURLConnection) _url.openConnection();
+        mHttpConn = httpConn;
+        httpConn.setRequestMethod("GET");
+        httpConn.setConnectTimeout(CONNECTION_TIMEOUT);
+        httpConn.connect();
 
-        if (mHttpConn.getResponseCode() == HttpURLConnection.HTTP_OK) {
-            mInputStream = mHttpConn.getInputStream();
+        InputStream in = null;
+        if (httpConn.getResponseCode() == HttpURLConnection.HTTP_OK) {
+            in = httpConn.getInputStream();
         }
-        if (mInputStream == null) {
+        if (in == null) {
+            close();
             throw new IOException("open error: " + liveviewUrl);
         }
+        mInputStream = in;
+        if (mHttpConn != httpConn) {
+            // Closed while connecting
+            mInputStream = null;
+            httpConn.disconnect();
+            throw new IOException("closed while opening: " + liveviewUrl);
+        }
     }
 
     /**
-     * Closes the connection.
+     * Closes the connection. May be called on another thread to abort a
+     * blocked {@link #nextPayload()}, which then fails with an IOException.
      * 
      * @throws IOException generic errors or exception.
      */
     public void close() throws IOException {
-        if (mInputStream != null) {
-            mInputStream.close();
-            mInputStream = null;
-        }
-        if (mHttpConn != null) {
-            mHttpConn.disconnect();
-            mHttpConn = null;
+        InputStream in = mInputStream;
+        HttpURLConnection httpConn = mHttpConn;
+        mInputStream = null;
+        mHttpConn = null;
+        try {
+            if (in != null) {
+                in.close();
+            }
+        } finally {
+            if (httpConn != null) {
+                httpConn.disconnect();
+            }
         }
     }
 
     /**
      * Reads liveview stream and slice one Packet. If server is not ready for
      * liveview data, this API calling will be blocked until server returns next
-     * data.
+     * data. The payload is taken from the pool, or allocated if the pool is
+     * empty.
      * 
-     * @return Payload data of sliced Packet
+     * @return Payload data of sliced Packet, or null if not open
      * @throws IOException generic errors or exception.
      */
     public Payload nextPayload() throws IOException {
-        if (mInputStream != null) {
-            // Common Header
-            int readLength = 1 + 1 + 2 + 4;
-            byte[] commonHeader = readBytes(mInputStream, readLength);
-            if (commonHeader == null || commonHeader.length != readLength) {
-                throw new IOException("Cannot read stream for common header.");
-            }
-            if (commonHeader[0] != (byte) 0xFF) {
-                throw new IOException("Unexpected data format. (Start byte)");
-            }
-            if (commonHeader[1] != (byte) 0x01) {
-                throw new IOException("Unexpected data format. (Payload byte)");
-            }
+        if (mInputStream == null) {
+            return null;
+        }
+        Payload payload;
+        synchronized (mPool) {
+            payload = mPool.pollFirst();
+        }
+        if (payload == null) {
+            payload = new Payload(DEFAULT_PAYLOAD_CAPACITY);
+        }
+        try {
+            return nextPayload(payload);
+        } catch (IOException e) {
+            release(payload);
+            throw e;
+        }
+    }
 
-            // Payload Header
-            readLength = 4 + 3 + 1 + 4 + 1 + 115;
-            byte[] payloadHeader = readBytes(mInputStream, readLength);
-            if (payloadHeader == null || payloadHeader.length != readLength) {
-                throw new IOException("Cannot read stream for payload header.");
-            }
-            if (payloadHeader[0] != (byte) 0x24
-                    || payloadHeader[1] != (byte) 0x35
-                    || payloadHeader[2] != (byte) 0x68
-                    || payloadHeader[3] != (byte) 0x79) {
-                throw new IOException("Unexpected data format. (Start code)");
-            }
-            int jpegSize = bytesToInt(payloadHeader, 4, 3);
-            int paddingSize = bytesToInt(payloadHeader, 7, 1);
+    /**
+     * Reads liveview stream and slice one Packet into the indicated payload,
+     * growing its buffer if needed.
+     * 
+     * @param payload receives the Packet
+     * @return the payload, or null if not open
+     * @throws IOException generic errors or exception.
+     */
+    public Payload nextPayload(Payload payload) throws IOException {
+        final InputStream in = mInputStream;
+        if (in == null) {
+            return null;
+        }
+        final byte[] header = mHeader;
+
+        // Common Header
+        readFully(in, header, 0, COMMON_HEADER_LENGTH, "common header");
+        if (header[0] != (byte) 0xFF) {
+            throw new IOException("Unexpected data format. (Start byte)");
+        }
+        if (header[1] != (byte) 0x01) {
+            throw new IOException("Unexpected data format. (Payload byte)");
+        }
 
-            // Payload Data
-            byte[] jpegData = readBytes(mInputStream, jpegSize);
-            byte[] paddingData = readBytes(mInputStream, paddingSize);
+        // Payload Header
+        final int p = COMMON_HEADER_LENGTH;
+        readFully(in, header, p, PAYLOAD_HEADER_LENGTH, "payload header");
+        if (header[p] != (byte) 0x24 || header[p + 1] != (byte) 0x35
+                || header[p + 2] != (byte) 0x68 || header[p + 3] != (byte) 0x79) {
+            throw new IOException("Unexpected data format. (Start code)");
+        }
+        int jpegSize = bytesToInt(header, p + 4, 3);
+        int paddingSize = bytesToInt(header, p + 7, 1);
+
+        // Payload Data
+        payload.ensureCapacity(jpegSize + paddingSize);
+        readFully(in, payload.mBuffer, 0, jpegSize + paddingSize, "payload data");
+        payload.mJpegLength = jpegSize;
+        payload.mPaddingLength = paddingSize;
+        payload.mSequenceNumber = bytesToInt(header, 2, 2);
+        payload.mTimestamp = bytesToInt(header, 4, 4) & 0xffffffffL;
+        payload.mReceivedNanos = System.nanoTime();
+        return payload;
+    }
 
-            return new Payload(jpegData, paddingData);
+    /**
+     * Gives a consumed payload back for reuse. The payload must not be used
+     * afterwards. May be called on any thread.
+     * 
+     * @param payload the payload, may be null
+     */
+    public void release(Payload payload) {
+        if (payload == null) {
+            return;
+        }
+        synchronized (mPool) {
+            if (mPool.size() < mPoolSize) {
+                mPool.addFirst(payload);
+            }
         }
-        return null;
     }
 
     // Converts byte array to int.
@@ -138,25 +294,16 @@ public class SimpleLiveviewSlicer {
         return ret;
     }
 
-    // Reads byte array from the indicated input stream.
-    private static byte[] readBytes(InputStream in, int length)
+    // Reads exactly the indicated number of bytes from the input stream.
+    private static void readFully(InputStream in, byte[] buffer, int offset, int length, String what)
             throws IOException {
-        ByteArrayOutputStream tmpByteArray = new ByteArrayOutputStream();
-        byte[] buffer = new byte[1024];
-        while (true) {
-            int trialReadlen = Math.min(buffer.length,
-                    length - tmpByteArray.size());
-            int readlen = in.read(buffer, 0, trialReadlen);
+        int end = offset + length;
+        while (offset < end) {
+            int readlen = in.read(buffer, offset, end - offset);
             if (readlen < 0) {
-                break;
-            }
-            tmpByteArray.write(buffer, 0, readlen);
-            if (length <= tmpByteArray.size()) {
-                break;
+                throw new IOException("Cannot read stream for " + what + ".");
             }
+            offset += readlen;
         }
-        byte[] ret = tmpByteArray.toByteArray();
-        tmpByteArray.close();
-        return ret;
     }
 }
@@ -0,0 +1,229 @@
+package com.trudovak.simplytimelapse.camera.utils;
+
+import java.util.Arrays;
+
+/**
+ * Parser of SSDP (HTTP over UDP) messages working directly on the datagram
+ * buffer. Parsing only records where the interesting headers are, header
+ * names are matched case-insensitively as HTTP requires, and values can be
+ * compared without creating Strings. A parser instance is reused from packet
+ * to packet; the values refer to the buffer until the next parse.
+ */
+public class SsdpParser {
+
+    /**
+     * Headers extracted from the messages.
+     */
+    public enum Header {
+        USN("USN"), LOCATION("LOCATION"), ST("ST"), NT("NT"), NTS("NTS"), CACHE_CONTROL("CACHE-CONTROL");
+
+        private final byte[] name;
+
+        Header(String name) {
+            this.name = name.getBytes(ResponseBuffer.UTF_8);
+        }
+    }
+
+    private static final Header[] HEADERS = Header.values();
+    private static final byte[] NOTIFY = "NOTIFY ".getBytes(ResponseBuffer.UTF_8);
+    private static final byte[] RESPONSE = "HTTP/".getBytes(ResponseBuffer.UTF_8);
+    private static final byte[] MAX_AGE = "max-age".getBytes(ResponseBuffer.UTF_8);
+
+    private byte[] mData;
+    private int mStartLineStart;
+    private int mStartLineEnd;
+    private final int[] mValueStart = new int[HEADERS.length];
+    private final int[] mValueEnd = new int[HEADERS.length];
+
+    /**
+     * Parses a message.
+     *
+     * @param data buffer holding the message, e.g. the datagram buffer
+     * @param offset start of the message
+     * @param length length of the message
+     * @return false if the message has no start line
+     */
+    public boolean parse(byte[] data, int offset, int length) {
+        mData = data;
+        Arrays.fill(mValueStart, -1);
+        int limit = offset + length;
+        int eol = findLineEnd(data, offset, limit);
+        if (eol == offset) {
+            mStartLineStart = mStartLineEnd = offset;
+            return false;
+        }
+        mStartLineStart = offset;
+        mStartLineEnd = eol;
+        int pos = nextLine(data, eol, limit);
+        while (pos < limit) {
+            eol = findLineEnd(data, pos, limit);
+            if (eol == pos) {
+                // Empty line ends the headers
+                break;
+            }
+            parseHeader(data, pos, eol);
+            pos = nextLine(data, eol, limit);
+        }
+        return true;
+    }
+
+    /**
+     * Returns true for NOTIFY announcements.
+     */
+    public boolean isNotify() {
+        return startsWith(mStartLineStart, mStartLineEnd, NOTIFY);
+    }
+
+    /**
+     * Returns true for responses, i.e. M-SEARCH replies.
+     */
+    public boolean isResponse() {
+        return startsWith(mStartLineStart, mStartLineEnd, RESPONSE);
+    }
+
+    /**
+     * Checks to see whether the message has the header.
+     */
+    public boolean has(Header header) {
+        return mValueStart[header.ordinal()] != -1;
+    }
+
+    /**
+     * Compares the value of a header to the indicated ASCII value without
+     * creating a String.
+     *
+     * @return false if the header is missing or differs
+     */
+    public boolean valueEquals(Header header, String value) {
+        int start = mValueStart[header.ordinal()];
+        if (start == -1) {
+            return false;
+        }
+        int length = mValueEnd[header.ordinal()] - start;
+        if (length != value.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (mData[start + i] != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the value of a header, or null if it is missing.
+     */
+    public String getValue(Header header) {
+        int start = mValueStart[header.ordinal()];
+        if (start == -1) {
+            return null;
+        }
+        return new String(mData, start, mValueEnd[header.ordinal()] - start, ResponseBuffer.UTF_8);
+    }
+
+    /**
+     * Returns the max-age directive of the CACHE-CONTROL header in seconds,
+     * or -1 if missing or malformed.
+     */
+    public int getMaxAge() {
+        int start = mValueStart[Header.CACHE_CONTROL.ordinal()];
+        if (start == -1) {
+            return -1;
+        }
+        int end = mValueEnd[Header.CACHE_CONTROL.ordinal()];
+        for (int i = start; i + MAX_AGE.length <= end; i++) {
+            if (!regionEqualsIgnoreCase(i, MAX_AGE)) {
+                continue;
+            }
+            int pos = skipSpaces(i + MAX_AGE.length, end);
+            if (pos == end || mData[pos] != '=') {
+                return -1;
+            }
+            pos = skipSpaces(pos + 1, end);
+            int value = 0;
+            int digits = 0;
+            for (; pos < end && mData[pos] >= '0' && mData[pos] <= '9' && digits < 9; pos++, digits++) {
+                value = value * 10 + (mData[pos] - '0');
+            }
+            return digits == 0 ? -1 : value;
+        }
+        return -1;
+    }
+
+    private void parseHeader(byte[] data, int start, int end) {
+        int colon = start;
+        while (colon < end && data[colon] != ':') {
+            colon++;
+        }
+        if (colon == end) {
+            return;
+        }
+        int nameEnd = colon;
+        while (nameEnd > start && isSpace(data[nameEnd - 1])) {
+            nameEnd--;
+        }
+        for (Header header : HEADERS) {
+            int i = header.ordinal();
+            if (mValueStart[i] == -1 && nameEnd - start == header.name.length
+                    && regionEqualsIgnoreCase(start, header.name)) {
+                int valueStart = skipSpaces(colon + 1, end);
+                int valueEnd = end;
+                while (valueEnd > valueStart && isSpace(data[valueEnd - 1])) {
+                    valueEnd--;
+                }
+                mValueStart[i] = valueStart;
+                mValueEnd[i] = valueEnd;
+                return;
+            }
+        }
+    }
+
+    // Compares with an upper or lower case ASCII constant.
+    private boolean regionEqualsIgnoreCase(int start, byte[] ascii) {
+        for (int i = 0; i < ascii.length; i++) {
+            if (toUpper(mData[start + i]) != toUpper(ascii[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean startsWith(int start, int end, byte[] prefix) {
+        return end - start >= prefix.length && regionEqualsIgnoreCase(start, prefix);
+    }
+
+    private int skipSpaces(int pos, int end) {
+        while (pos < end && isSpace(mData[pos])) {
+            pos++;
+        }
+        return pos;
+    }
+
+    // Returns the position of the CR or LF ending the line, or limit.
+    private static int findLineEnd(byte[] data, int pos, int limit) {
+        while (pos < limit && data[pos] != '\r' && data[pos] != '\n') {
+            pos++;
+        }
+        return pos;
+    }
+
+    // Skips the CRLF, or bare LF, at the end of a line.
+    private static int nextLine(byte[] data, int eol, int limit) {
+        if (eol < limit && data[eol] == '\r') {
+            eol++;
+        }
+        if (eol < limit && data[eol] == '\n') {
+            eol++;
+        }
+        return eol;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    private static int toUpper(byte b) {
+        return b >= 'a' && b <= 'z' ? b - ('a' - 'A') : b;
+    }
+}
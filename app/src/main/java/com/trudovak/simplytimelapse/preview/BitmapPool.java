@@ -0,0 +1,99 @@
+package com.trudovak.simplytimelapse.preview;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+/**
+ * Small pool of preview bitmaps for {@code BitmapFactory.Options.inBitmap}
+ * reuse. Bitmaps that were on screen are retired first and only become
+ * reusable after the next swap, so the view never draws a bitmap that is being
+ * decoded into. Bitmaps that do not fit in the pool are recycled.
+ */
+public class BitmapPool {
+
+    // Before KitKat inBitmap needs a bitmap of exactly the decoded size
+    private static final int SDK_FLEXIBLE_REUSE = 19;
+
+    private final int capacity;
+    private final LinkedList<Bitmap> available = new LinkedList<Bitmap>();
+    private Bitmap retired;
+
+    /**
+     * Constructor.
+     *
+     * @param capacity maximum number of reusable bitmaps kept
+     */
+    public BitmapPool(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Takes a bitmap that can be decoded into.
+     *
+     * @param width width of the decoded image
+     * @param height height of the decoded image
+     * @param sampleSize sample size used for decoding
+     * @param config pixel format of the decoded image
+     * @return a reusable bitmap or null if none fits
+     */
+    public synchronized Bitmap get(int width, int height, int sampleSize, Bitmap.Config config) {
+        boolean flexible = Build.VERSION.SDK_INT >= SDK_FLEXIBLE_REUSE;
+        if (!flexible && sampleSize != 1) {
+            return null;
+        }
+        int bytesPerPixel = config == Bitmap.Config.RGB_565 ? 2 : 4;
+        int byteCount = width * height * bytesPerPixel;
+        Iterator<Bitmap> it = available.iterator();
+        while (it.hasNext()) {
+            Bitmap bitmap = it.next();
+            boolean fits = flexible ? bitmap.getByteCount() >= byteCount
+                    : bitmap.getWidth() == width && bitmap.getHeight() == height && bitmap.getConfig() == config;
+            if (fits) {
+                it.remove();
+                return bitmap;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns a bitmap that was never shown and can be reused at once.
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        if (!bitmap.isMutable()) {
+            bitmap.recycle();
+            return;
+        }
+        available.addFirst(bitmap);
+        while (available.size() > capacity) {
+            available.removeLast().recycle();
+        }
+    }
+
+    /**
+     * Retires a bitmap that was just replaced on screen. The bitmap retired by
+     * the previous call becomes reusable.
+     */
+    public synchronized void retire(Bitmap bitmap) {
+        Bitmap previous = retired;
+        retired = bitmap;
+        put(previous);
+    }
+
+    /**
+     * Recycles all pooled bitmaps.
+     */
+    public synchronized void clear() {
+        for (Bitmap bitmap : available) {
+            bitmap.recycle();
+        }
+        available.clear();
+        retired = null;
+    }
+}
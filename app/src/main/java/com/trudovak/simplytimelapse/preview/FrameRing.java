@@ -0,0 +1,112 @@
+package com.trudovak.simplytimelapse.preview;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lock-free ring of frames between one producer and one consumer where the
+ * latest frame wins. The producer never waits: when the ring is full the
+ * oldest frame is overwritten and handed back to it. The consumer always
+ * takes the newest frame and gets rid of the older ones it skipped. Each
+ * frame ends up with exactly one side, so pooled frames can be recycled
+ * safely.
+ */
+public class FrameRing<T> {
+
+    /**
+     * Takes back frames that were overwritten or skipped.
+     */
+    public interface Recycler<T> {
+        void recycle(T frame);
+    }
+
+    private final AtomicReferenceArray<T> slots;
+    private final int mask;
+    private final Recycler<T> recycler;
+
+    // Frames offered so far, only written by the producer
+    private final AtomicLong head = new AtomicLong();
+    // Frames the consumer is done with, only used by the consumer
+    private long tail;
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param capacity number of slots, rounded up to a power of two
+     * @param recycler takes back the frames never consumed
+     */
+    public FrameRing(int capacity, Recycler<T> recycler) {
+        int size = capacity <= 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        slots = new AtomicReferenceArray<T>(size);
+        mask = size - 1;
+        this.recycler = recycler;
+    }
+
+    /**
+     * Adds a frame. Producer side only.
+     *
+     * @param frame the frame
+     */
+    public void offer(T frame) {
+        long seq = head.get();
+        T overwritten = slots.getAndSet((int) (seq & mask), frame);
+        head.lazySet(seq + 1);
+        if (overwritten != null) {
+            dropped.incrementAndGet();
+            recycler.recycle(overwritten);
+        }
+    }
+
+    /**
+     * Takes the newest frame and recycles the older ones. Consumer side only.
+     *
+     * @return the newest frame, or null if there is no new frame
+     */
+    public T takeLatest() {
+        long end = head.get();
+        if (end == tail) {
+            return null;
+        }
+        T latest = slots.getAndSet((int) ((end - 1) & mask), null);
+        // Older frames, at most a ring full of them, are stale now
+        for (long seq = Math.max(tail, end - slots.length()); seq < end - 1; seq++) {
+            T stale = slots.getAndSet((int) (seq & mask), null);
+            if (stale != null) {
+                dropped.incrementAndGet();
+                recycler.recycle(stale);
+            }
+        }
+        tail = end;
+        return latest;
+    }
+
+    /**
+     * Recycles all frames left. Consumer side only, or once the producer
+     * stopped.
+     */
+    public void clear() {
+        for (int i = 0; i < slots.length(); i++) {
+            T frame = slots.getAndSet(i, null);
+            if (frame != null) {
+                recycler.recycle(frame);
+            }
+        }
+        tail = head.get();
+    }
+
+    /**
+     * Returns the number of frames overwritten or skipped so far.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Returns the number of frames offered so far.
+     */
+    public long getOffered() {
+        return head.get();
+    }
+}
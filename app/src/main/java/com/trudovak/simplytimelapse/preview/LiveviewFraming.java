@@ -0,0 +1,332 @@
+package com.trudovak.simplytimelapse.preview;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.graphics.Bitmap;
+
+import com.trudovak.simplytimelapse.camera.SimpleRemoteApi;
+import com.trudovak.simplytimelapse.camera.utils.SimpleLiveviewSlicer;
+import com.trudovak.simplytimelapse.utils.Logger;
+
+/**
+ * Liveview for framing and focus checks while a timelapse runs. A reader
+ * thread slices the stream without ever waiting for the decoder, as a stalled
+ * stream makes the camera drop the connection, and passes the frames through
+ * a {@link FrameRing}. A decoder thread takes the newest frame at a capped
+ * rate and skips the stale ones. The stream is closed while paused, so it can
+ * be paused around each shot and never competes with the shutter for the
+ * camera link.
+ */
+public class LiveviewFraming implements Runnable {
+
+    private static final Logger logger = new Logger(LiveviewFraming.class);
+
+    /**
+     * Receives the decoded frames on the decoder thread.
+     */
+    public interface Listener {
+        void OnLiveviewFrame(Bitmap frame);
+    }
+
+    public static final int DEFAULT_MAX_FPS = 10;
+
+    private static final String READER_THREAD_NAME = "liveview-reader";
+    private static final String DECODER_THREAD_NAME = "liveview-decoder";
+
+    // Wait before reconnecting a failed stream
+    private static final long RETRY_DELAY = 1000; // msec
+    private static final int RING_SIZE = 4;
+    // Ring full, one frame being read and one being decoded
+    private static final int PAYLOAD_POOL_SIZE = RING_SIZE + 2;
+    private static final int BITMAP_POOL_SIZE = 3;
+    // Longest wait of the idle decoder, the reader wakes it up earlier
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    // Frames shown this many frame intervals after they were received are late
+    private static final int LATE_INTERVALS = 2;
+
+    private final SimpleRemoteApi remoteApi;
+    private final Listener listener;
+    private final long minFrameNanos;
+    private final BitmapPool bitmapPool = new BitmapPool(BITMAP_POOL_SIZE);
+    private final PreviewDecoder decoder;
+    private final SimpleLiveviewSlicer slicer = new SimpleLiveviewSlicer(PAYLOAD_POOL_SIZE);
+    private final FrameRing<SimpleLiveviewSlicer.Payload> ring;
+
+    private final AtomicLong decoded = new AtomicLong();
+    private final AtomicLong late = new AtomicLong();
+
+    private final Object lock = new Object();
+    private Thread thread;
+    private volatile Thread decoderThread;
+    private boolean paused;
+
+    /**
+     * Constructor.
+     *
+     * @param remoteApi the camera
+     * @param listener receives the frames
+     * @param targetWidth width the frames are displayed at
+     * @param targetHeight height the frames are displayed at
+     * @param maxFps highest rate frames are decoded at
+     */
+    public LiveviewFraming(SimpleRemoteApi remoteApi, Listener listener, int targetWidth, int targetHeight,
+            int maxFps) {
+        this.remoteApi = remoteApi;
+        this.listener = listener;
+        this.minFrameNanos = TimeUnit.SECONDS.toNanos(1) / maxFps;
+        this.decoder = new PreviewDecoder(targetWidth, targetHeight, bitmapPool);
+        this.ring = new FrameRing<SimpleLiveviewSlicer.Payload>(RING_SIZE,
+                new FrameRing.Recycler<SimpleLiveviewSlicer.Payload>() {
+                    @Override
+                    public void recycle(SimpleLiveviewSlicer.Payload frame) {
+                        slicer.release(frame);
+                    }
+                });
+    }
+
+    /**
+     * Starts the liveview. Does nothing if already started.
+     */
+    public void start() {
+        synchronized (lock) {
+            if (thread == null) {
+                thread = new Thread(this, READER_THREAD_NAME);
+                thread.setDaemon(true);
+                decoderThread = new Thread(decodeLoop, DECODER_THREAD_NAME);
+                decoderThread.setDaemon(true);
+                thread.start();
+                decoderThread.start();
+            }
+        }
+    }
+
+    /**
+     * Stops the liveview. Frames being decoded may still be delivered.
+     */
+    public void stop() {
+        Thread t;
+        Thread d;
+        synchronized (lock) {
+            t = thread;
+            d = decoderThread;
+            thread = null;
+            decoderThread = null;
+            lock.notifyAll();
+        }
+        if (t != null) {
+            closeStream();
+            t.interrupt();
+            d.interrupt();
+            logger.debug("Liveview frames: {0}", getStatsSummary());
+        }
+    }
+
+    public boolean isRunning() {
+        synchronized (lock) {
+            return thread != null;
+        }
+    }
+
+    /**
+     * Closes the stream until {@link #resume()}. Returns at once; a frame
+     * being read is abandoned.
+     */
+    public void pause() {
+        synchronized (lock) {
+            if (paused || thread == null) {
+                return;
+            }
+            paused = true;
+        }
+        closeStream();
+    }
+
+    /**
+     * Reopens the stream closed by {@link #pause()}.
+     */
+    public void resume() {
+        synchronized (lock) {
+            paused = false;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Returns the number of frames received from the camera.
+     */
+    public long getReceived() {
+        return ring.getOffered();
+    }
+
+    /**
+     * Returns the number of frames skipped for newer ones.
+     */
+    public long getDropped() {
+        return ring.getDropped();
+    }
+
+    /**
+     * Returns the number of frames decoded and delivered.
+     */
+    public long getDecoded() {
+        return decoded.get();
+    }
+
+    /**
+     * Returns the number of frames delivered more than two frame intervals
+     * after they were received.
+     */
+    public long getLate() {
+        return late.get();
+    }
+
+    public String getStatsSummary() {
+        return "received " + getReceived() + ", dropped " + getDropped() + ", decoded " + getDecoded()
+                + ", late " + getLate();
+    }
+
+    /**
+     * Hands back a frame once it was replaced on screen, so its memory can be
+     * reused for a later frame.
+     *
+     * @param frame the replaced frame, may be null
+     */
+    public void release(Bitmap frame) {
+        if (frame != null) {
+            bitmapPool.retire(frame);
+        }
+    }
+
+    @Override
+    public void run() {
+        String url = null;
+        try {
+            while (awaitStreaming()) {
+                try {
+                    if (url == null) {
+                        url = startLiveview();
+                    }
+                    slicer.open(url);
+                    logger.debug("Liveview opened");
+                    SimpleLiveviewSlicer.Payload payload;
+                    while (isStreaming() && (payload = slicer.nextPayload()) != null) {
+                        ring.offer(payload);
+                        Thread d = decoderThread;
+                        if (d != null) {
+                            LockSupport.unpark(d);
+                        }
+                    }
+                } catch (IOException e) {
+                    if (!isStreaming()) {
+                        // Closed by pause or stop
+                        continue;
+                    }
+                    logger.warn("Liveview failed, reconnecting: {0}", e.getMessage());
+                    // The camera may have stopped the liveview, e.g. on a mode change
+                    url = null;
+                    Thread.sleep(RETRY_DELAY);
+                } finally {
+                    closeStream();
+                }
+            }
+        } catch (InterruptedException e) {
+            // Stopped
+        } finally {
+            if (url != null) {
+                try {
+                    remoteApi.stopLiveview();
+                } catch (IOException e) {
+                    logger.debug("Cannot stop liveview: {0}", e.getMessage());
+                }
+            }
+            bitmapPool.clear();
+            logger.debug("Liveview stopped");
+        }
+    }
+
+    // Takes the newest frame at most once per frame interval and decodes it.
+    private final Runnable decodeLoop = new Runnable() {
+        @Override
+        public void run() {
+            long nextFrameDue = System.nanoTime();
+            try {
+                while (decoderThread == Thread.currentThread()) {
+                    long wait = nextFrameDue - System.nanoTime();
+                    if (wait > 0) {
+                        LockSupport.parkNanos(wait);
+                        continue;
+                    }
+                    SimpleLiveviewSlicer.Payload payload = ring.takeLatest();
+                    if (payload == null) {
+                        LockSupport.parkNanos(IDLE_PARK_NANOS);
+                        continue;
+                    }
+                    nextFrameDue = System.nanoTime() + minFrameNanos;
+                    try {
+                        decode(payload);
+                    } finally {
+                        slicer.release(payload);
+                    }
+                }
+            } finally {
+                ring.clear();
+            }
+        }
+    };
+
+    private void decode(SimpleLiveviewSlicer.Payload payload) {
+        Bitmap frame = decoder.decode(payload.getBuffer(), 0, payload.getJpegLength());
+        if (frame == null) {
+            return;
+        }
+        if (decoderThread != Thread.currentThread()) {
+            // Stopped meanwhile
+            bitmapPool.put(frame);
+            return;
+        }
+        decoded.incrementAndGet();
+        if (System.nanoTime() - payload.getReceivedNanos() > LATE_INTERVALS * minFrameNanos) {
+            late.incrementAndGet();
+        }
+        listener.OnLiveviewFrame(frame);
+    }
+
+    private String startLiveview() throws IOException {
+        JSONObject reply = remoteApi.startLiveview();
+        try {
+            return reply.getJSONArray("result").getString(0);
+        } catch (JSONException e) {
+            throw new IOException("Cannot start liveview: " + reply);
+        }
+    }
+
+    // Waits while paused. Returns false once stopped.
+    private boolean awaitStreaming() throws InterruptedException {
+        synchronized (lock) {
+            while (thread == Thread.currentThread() && paused) {
+                lock.wait();
+            }
+            return thread == Thread.currentThread();
+        }
+    }
+
+    private boolean isStreaming() {
+        synchronized (lock) {
+            return thread == Thread.currentThread() && !paused;
+        }
+    }
+
+    private void closeStream() {
+        try {
+            slicer.close();
+        } catch (IOException e) {
+            logger.debug("Error closing liveview: {0}", e.getMessage());
+        }
+    }
+}
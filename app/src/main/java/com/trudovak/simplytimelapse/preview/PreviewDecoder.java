@@ -0,0 +1,122 @@
+package com.trudovak.simplytimelapse.preview;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import com.trudovak.simplytimelapse.utils.Logger;
+
+/**
+ * Decodes postview JPEGs at the size they are displayed. The image bounds are
+ * read first to choose a power of two sample size, and the pixels are decoded
+ * into a pooled bitmap when one fits. Not thread safe; use one decoder per
+ * thread.
+ */
+public class PreviewDecoder {
+
+    private static final Logger logger = new Logger(PreviewDecoder.class);
+
+    private static final Bitmap.Config CONFIG = Bitmap.Config.RGB_565;
+
+    private final int targetWidth;
+    private final int targetHeight;
+    private final BitmapPool pool;
+    private final BitmapFactory.Options options = new BitmapFactory.Options();
+
+    /**
+     * Constructor.
+     *
+     * @param targetWidth width the preview is displayed at
+     * @param targetHeight height the preview is displayed at
+     * @param pool pool providing bitmaps to decode into
+     */
+    public PreviewDecoder(int targetWidth, int targetHeight, BitmapPool pool) {
+        this.targetWidth = targetWidth;
+        this.targetHeight = targetHeight;
+        this.pool = pool;
+    }
+
+    /**
+     * Decodes an image.
+     *
+     * @param data buffer holding the JPEG
+     * @param offset start of the JPEG in the buffer
+     * @param length length of the JPEG
+     * @return the decoded bitmap or null if the data cannot be decoded
+     */
+    public Bitmap decode(byte[] data, int offset, int length) {
+        return decode(data, offset, length, null);
+    }
+
+    /**
+     * Decodes an image file, e.g. a full size picture, without reading it
+     * into memory whole.
+     *
+     * @param path path of the JPEG file
+     * @return the decoded bitmap or null if the file cannot be decoded
+     */
+    public Bitmap decodeFile(String path) {
+        return decode(null, 0, 0, path);
+    }
+
+    // Decodes the file if a path is given, the buffer otherwise
+    private Bitmap decode(byte[] data, int offset, int length, String path) {
+        options.inJustDecodeBounds = true;
+        options.inBitmap = null;
+        options.inSampleSize = 1;
+        options.outWidth = 0;
+        options.outHeight = 0;
+        decodeRaw(data, offset, length, path);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        int sampleSize = computeSampleSize(options.outWidth, options.outHeight);
+        int width = (options.outWidth + sampleSize - 1) / sampleSize;
+        int height = (options.outHeight + sampleSize - 1) / sampleSize;
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = CONFIG;
+        options.inMutable = true;
+        options.inBitmap = pool.get(width, height, sampleSize, CONFIG);
+        try {
+            return decodeRaw(data, offset, length, path);
+        } catch (IllegalArgumentException e) {
+            if (options.inBitmap == null) {
+                throw e;
+            }
+            // The pooled bitmap was rejected, decode into a new one
+            logger.debug("Cannot reuse bitmap for {0}x{1}", width, height);
+            options.inBitmap.recycle();
+            options.inBitmap = null;
+            return decodeRaw(data, offset, length, path);
+        } finally {
+            options.inBitmap = null;
+        }
+    }
+
+    private Bitmap decodeRaw(byte[] data, int offset, int length, String path) {
+        if (path != null) {
+            return BitmapFactory.decodeFile(path, options);
+        }
+        return BitmapFactory.decodeByteArray(data, offset, length, options);
+    }
+
+    // Largest power of two that keeps the image at least as large as the
+    // target in both dimensions.
+    private int computeSampleSize(int width, int height) {
+        int sampleSize = 1;
+        if (targetWidth <= 0 || targetHeight <= 0) {
+            return sampleSize;
+        }
+        // Compare in the orientation of the image
+        int longTarget = Math.max(targetWidth, targetHeight);
+        int shortTarget = Math.min(targetWidth, targetHeight);
+        int longSide = Math.max(width, height);
+        int shortSide = Math.min(width, height);
+        while (longSide / (sampleSize * 2) >= longTarget && shortSide / (sampleSize * 2) >= shortTarget) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+}
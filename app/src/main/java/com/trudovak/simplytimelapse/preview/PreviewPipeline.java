@@ -0,0 +1,416 @@
+package com.trudovak.simplytimelapse.preview;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.graphics.Bitmap;
+
+import com.trudovak.simplytimelapse.camera.utils.ResponseBuffer;
+import com.trudovak.simplytimelapse.camera.utils.SimpleHttpClient;
+import com.trudovak.simplytimelapse.utils.Logger;
+
+/**
+ * Staged postview pipeline: fetch, decode and publish each run on their own
+ * thread, separated by single slot queues. A stage that falls behind drops the
+ * oldest waiting preview instead of blocking, so submitting a postview never
+ * waits and the shutter never waits on preview work. Pictures already on the
+ * phone, e.g. archived originals, skip the fetch stage.
+ */
+public class PreviewPipeline {
+
+    private static final Logger logger = new Logger(PreviewPipeline.class);
+
+    /** Every n-th postview is downloaded by {@link PreviewPolicy#SAMPLE}. */
+    public static final int SAMPLE_RATE = 10;
+
+    /**
+     * Receives the decoded previews.
+     */
+    public interface Listener {
+        void OnPreview(Bitmap picture);
+    }
+
+    /**
+     * Latency and drop counters of a single stage.
+     */
+    public static class StageStats {
+        private final String name;
+        private final AtomicLong processed = new AtomicLong();
+        private final AtomicLong dropped = new AtomicLong();
+        private final AtomicLong totalLatencyNanos = new AtomicLong();
+        private volatile long lastLatencyNanos;
+
+        StageStats(String name) {
+            this.name = name;
+        }
+
+        void record(long latencyNanos) {
+            processed.incrementAndGet();
+            totalLatencyNanos.addAndGet(latencyNanos);
+            lastLatencyNanos = latencyNanos;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getProcessed() {
+            return processed.get();
+        }
+
+        public long getDropped() {
+            return dropped.get();
+        }
+
+        public long getLastLatencyMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(lastLatencyNanos);
+        }
+
+        public long getAverageLatencyMillis() {
+            long count = processed.get();
+            return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalLatencyNanos.get() / count);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: processed %d, dropped %d, last %dms, avg %dms", name, getProcessed(),
+                    getDropped(), getLastLatencyMillis(), getAverageLatencyMillis());
+        }
+    }
+
+    // A preview travelling through the stages, from a postview URL or a file.
+    private class Job {
+        final String uri;
+        final File file;
+        final long submittedNanos;
+        ResponseBuffer data;
+        Bitmap bitmap;
+
+        Job(String uri, File file) {
+            this.uri = uri;
+            this.file = file;
+            this.submittedNanos = System.nanoTime();
+        }
+
+        Object getSource() {
+            return uri != null ? uri : file;
+        }
+
+        // Releases the resources of a job that will not be published.
+        void discard() {
+            releaseBuffer(this);
+            bitmapPool.put(bitmap);
+            bitmap = null;
+        }
+    }
+
+    // Unit of work of a stage. Records the stage latency from the moment the
+    // job was queued.
+    private abstract class StageTask implements Runnable {
+        final Job job;
+        final StageStats stats;
+        final long queuedNanos = System.nanoTime();
+
+        StageTask(Job job, StageStats stats) {
+            this.job = job;
+            this.stats = stats;
+        }
+
+        @Override
+        public final void run() {
+            try {
+                process(job);
+            } catch (RuntimeException e) {
+                logger.error(e, "Preview stage {0} failed", stats.getName());
+                job.discard();
+                return;
+            }
+            stats.record(System.nanoTime() - queuedNanos);
+        }
+
+        abstract void process(Job job);
+    }
+
+    // Drops the oldest queued task, releasing its job.
+    private static class DropOldestPolicy implements RejectedExecutionHandler {
+        private final StageStats stats;
+
+        DropOldestPolicy(StageStats stats) {
+            this.stats = stats;
+        }
+
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                ((StageTask) r).job.discard();
+                return;
+            }
+            Runnable stale = executor.getQueue().poll();
+            if (stale != null) {
+                ((StageTask) stale).job.discard();
+                stats.dropped.incrementAndGet();
+            }
+            executor.execute(r);
+        }
+    }
+
+    // Fetch holds one buffer, decode holds one in progress and one queued.
+    private static final int BUFFER_POOL_SIZE = 3;
+    // A 2M postview is a few hundred KB
+    private static final int BUFFER_INITIAL_CAPACITY = 512 * 1024;
+    private static final int BUFFER_MAX_RETAINED_CAPACITY = 4 * 1024 * 1024;
+    // One bitmap queued for publishing, one spare
+    private static final int BITMAP_POOL_SIZE = 2;
+
+    private final Listener listener;
+    private final BitmapPool bitmapPool = new BitmapPool(BITMAP_POOL_SIZE);
+    private final PreviewDecoder decoder;
+
+    private final StageStats fetchStats = new StageStats("fetch");
+    private final StageStats decodeStats = new StageStats("decode");
+    private final StageStats publishStats = new StageStats("publish");
+    private final StageStats totalStats = new StageStats("total");
+
+    private final ThreadPoolExecutor fetchStage = newStage("preview-fetch", fetchStats);
+    private final ThreadPoolExecutor decodeStage = newStage("preview-decode", decodeStats);
+    private final ThreadPoolExecutor publishStage = newStage("preview-publish", publishStats);
+
+    private final BlockingQueue<ResponseBuffer> buffers = new ArrayBlockingQueue<ResponseBuffer>(BUFFER_POOL_SIZE);
+
+    private volatile PreviewPolicy policy = PreviewPolicy.LATEST_ONLY;
+    private volatile boolean visible;
+    private final AtomicReference<Job> pendingJob = new AtomicReference<Job>();
+    private final AtomicLong hiddenCount = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param listener receives the decoded previews
+     * @param targetWidth width the previews are displayed at
+     * @param targetHeight height the previews are displayed at
+     */
+    public PreviewPipeline(Listener listener, int targetWidth, int targetHeight) {
+        this.listener = listener;
+        this.decoder = new PreviewDecoder(targetWidth, targetHeight, bitmapPool);
+    }
+
+    /**
+     * Sets the policy applied while the preview is not visible.
+     */
+    public void setPolicy(PreviewPolicy policy) {
+        this.policy = policy;
+    }
+
+    public PreviewPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Tells the pipeline whether anybody is watching the previews. When the
+     * preview becomes visible the postview held back by
+     * {@link PreviewPolicy#LATEST_ONLY} is fetched.
+     */
+    public void setVisible(boolean visible) {
+        this.visible = visible;
+        if (visible) {
+            Job job = pendingJob.getAndSet(null);
+            if (job != null) {
+                enqueue(job);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of postviews held back or dropped by the policy.
+     */
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    /**
+     * Queues a postview for fetching according to the policy. Never blocks;
+     * if the fetch stage is busy the previously queued postview is dropped.
+     *
+     * @param uri postview URL returned by actTakePicture
+     */
+    public void submit(String uri) {
+        submit(new Job(uri, null));
+    }
+
+    /**
+     * Queues a picture stored on the phone, decoded without fetching it, e.g.
+     * an archived original. Follows the policy like {@link #submit(String)}.
+     *
+     * @param file the JPEG file
+     */
+    public void submit(File file) {
+        submit(new Job(null, file));
+    }
+
+    private void submit(Job job) {
+        if (!visible) {
+            switch (policy) {
+                case ALWAYS:
+                    break;
+                case LATEST_ONLY:
+                    pendingJob.set(job);
+                    if (!visible) {
+                        skipped.incrementAndGet();
+                        return;
+                    }
+                    // Became visible meanwhile, unless setVisible took it
+                    if (pendingJob.getAndSet(null) == null) {
+                        return;
+                    }
+                    break;
+                case SAMPLE:
+                    if (hiddenCount.getAndIncrement() % SAMPLE_RATE != 0) {
+                        skipped.incrementAndGet();
+                        return;
+                    }
+                    break;
+                case NEVER:
+                    skipped.incrementAndGet();
+                    return;
+            }
+        }
+        enqueue(job);
+    }
+
+    private void enqueue(Job job) {
+        if (job.file != null) {
+            submitDecode(job);
+            return;
+        }
+        fetchStage.execute(new StageTask(job, fetchStats) {
+            @Override
+            void process(Job job) {
+                fetch(job);
+            }
+        });
+    }
+
+    /**
+     * Hands back a published preview once it was replaced on screen, so its
+     * memory can be reused for a later preview.
+     *
+     * @param picture the replaced preview, may be null
+     */
+    public void release(Bitmap picture) {
+        if (picture != null) {
+            bitmapPool.retire(picture);
+        }
+    }
+
+    /**
+     * Stops all stages. Queued previews are discarded.
+     */
+    public void shutdown() {
+        fetchStage.shutdownNow();
+        decodeStage.shutdownNow();
+        publishStage.shutdownNow();
+        bitmapPool.clear();
+        logger.debug("Preview pipeline stopped. {0}", getStatsSummary());
+    }
+
+    public StageStats getFetchStats() {
+        return fetchStats;
+    }
+
+    public StageStats getDecodeStats() {
+        return decodeStats;
+    }
+
+    public StageStats getPublishStats() {
+        return publishStats;
+    }
+
+    /**
+     * Returns the end to end latency from submit to publish.
+     */
+    public StageStats getTotalStats() {
+        return totalStats;
+    }
+
+    public String getStatsSummary() {
+        return fetchStats + "; " + decodeStats + "; " + publishStats + "; " + totalStats;
+    }
+
+    private void fetch(Job job) {
+        ResponseBuffer buffer = buffers.poll();
+        job.data = buffer != null ? buffer : new ResponseBuffer(BUFFER_INITIAL_CAPACITY,
+                BUFFER_MAX_RETAINED_CAPACITY);
+        try {
+            SimpleHttpClient.httpGet(job.uri, SimpleHttpClient.DEFAULT_READ_TIMEOUT, job.data);
+        } catch (IOException e) {
+            logger.debug("Cannot load image due to I/O error from: {0}", job.uri);
+            job.discard();
+            return;
+        }
+        submitDecode(job);
+    }
+
+    private void submitDecode(Job job) {
+        decodeStage.execute(new StageTask(job, decodeStats) {
+            @Override
+            void process(Job job) {
+                decode(job);
+            }
+        });
+    }
+
+    private void decode(Job job) {
+        if (job.file != null) {
+            job.bitmap = decoder.decodeFile(job.file.getPath());
+        } else {
+            job.bitmap = decoder.decode(job.data.getData(), 0, job.data.getLength());
+        }
+        releaseBuffer(job);
+        if (job.bitmap == null) {
+            logger.debug("Cannot decode the image from: {0}", job.getSource());
+            return;
+        }
+        publishStage.execute(new StageTask(job, publishStats) {
+            @Override
+            void process(Job job) {
+                publish(job);
+            }
+        });
+    }
+
+    private void publish(Job job) {
+        listener.OnPreview(job.bitmap);
+        job.bitmap = null;
+        totalStats.record(System.nanoTime() - job.submittedNanos);
+        logger.trace("Preview published. {0}", getStatsSummary());
+    }
+
+    private void releaseBuffer(Job job) {
+        if (job.data != null) {
+            job.data.clear();
+            buffers.offer(job.data);
+            job.data = null;
+        }
+    }
+
+    private static ThreadPoolExecutor newStage(final String name, StageStats stats) {
+        return new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(1),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r);
+                        t.setName(name);
+                        return t;
+                    }
+                }, new DropOldestPolicy(stats));
+    }
+}
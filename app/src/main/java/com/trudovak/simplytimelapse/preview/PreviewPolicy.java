@@ -0,0 +1,16 @@
+package com.trudovak.simplytimelapse.preview;
+
+/**
+ * Decides which postviews are downloaded while nobody is watching the
+ * preview. Postviews are always downloaded while the preview is visible.
+ */
+public enum PreviewPolicy {
+    /** Download every postview, visible or not. */
+    ALWAYS,
+    /** Remember only the latest postview and download it when the preview becomes visible again. */
+    LATEST_ONLY,
+    /** Download every {@link PreviewPipeline#SAMPLE_RATE}th postview. */
+    SAMPLE,
+    /** Skip all postviews. */
+    NEVER
+}
@@ -0,0 +1,496 @@
+package com.trudovak.simplytimelapse.preview;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import android.graphics.Bitmap;
+
+import com.trudovak.simplytimelapse.camera.utils.ResponseBuffer;
+import com.trudovak.simplytimelapse.camera.utils.SimpleHttpClient;
+import com.trudovak.simplytimelapse.utils.Logger;
+
+/**
+ * Rough-cut preview of a timelapse assembled while it is shot. Each postview,
+ * or the archived picture when the frames are archived, is downsampled,
+ * compressed once and appended to a motion JPEG file, i.e.
+ * the JPEGs one after the other, which is never rewritten. A second file
+ * indexes the frames with fixed size records, so a {@link Reader} can jump to
+ * any frame through the memory mapped index while the reel still grows. No
+ * postview download is started while the shutter is released; one in progress
+ * is small and left to finish, as aborting it would only make it start over.
+ */
+public class PreviewReel implements Runnable {
+
+    private static final Logger logger = new Logger(PreviewReel.class);
+
+    public static final String DATA_FILE = "preview.mjpeg";
+    public static final String INDEX_FILE = "preview.idx";
+
+    // Frame offset, JPEG length and frame number
+    static final int RECORD_SIZE = 8 + 4 + 4;
+
+    /** The frames are downsampled to at least this size. */
+    public static final int FRAME_WIDTH = 640;
+    public static final int FRAME_HEIGHT = 480;
+
+    private static final int JPEG_QUALITY = 70;
+    private static final int QUEUE_CAPACITY = 16;
+    private static final int BITMAP_POOL_SIZE = 1;
+    private static final String THREAD_NAME = "preview-reel";
+
+    // A postview URL or an archived picture
+    private static class Job {
+        final int frame;
+        final String url;
+        final File file;
+
+        Job(int frame, String url, File file) {
+            this.frame = frame;
+            this.url = url;
+            this.file = file;
+        }
+    }
+
+    // Gives access to the compressed bytes without copying them
+    private static class JpegBuffer extends ByteArrayOutputStream {
+        JpegBuffer(int size) {
+            super(size);
+        }
+
+        ByteBuffer asByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+
+    private final File directory;
+    private final boolean keepPrevious;
+    private final BlockingQueue<Job> queue = new LinkedBlockingQueue<Job>(QUEUE_CAPACITY);
+    private final BitmapPool bitmapPool = new BitmapPool(BITMAP_POOL_SIZE);
+    private final PreviewDecoder decoder = new PreviewDecoder(FRAME_WIDTH, FRAME_HEIGHT, bitmapPool);
+    private final ResponseBuffer download = new ResponseBuffer();
+    private final JpegBuffer jpeg = new JpegBuffer(64 * 1024);
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+
+    private final Object lock = new Object();
+    private Thread thread;
+    private boolean finishing;
+    private boolean paused;
+    private int frames;
+
+    /**
+     * Constructor. The previous reel is replaced.
+     *
+     * @param directory where the reel is written
+     */
+    public PreviewReel(File directory) {
+        this(directory, false);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param directory where the reel is written
+     * @param append true to add to the previous reel, e.g. of a resumed
+     *            timelapse
+     */
+    public PreviewReel(File directory, boolean append) {
+        this.directory = directory;
+        this.keepPrevious = append;
+    }
+
+    /**
+     * Starts writing the reel.
+     */
+    public void start() {
+        synchronized (lock) {
+            if (thread == null) {
+                finishing = false;
+                thread = new Thread(this, THREAD_NAME);
+                thread.start();
+            }
+        }
+    }
+
+    /**
+     * Lets the frames already queued be added, then stops.
+     */
+    public void finish() {
+        synchronized (lock) {
+            finishing = true;
+            paused = false;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Stops at once, dropping the queued frames.
+     */
+    public void stop() {
+        Thread t;
+        synchronized (lock) {
+            t = thread;
+            thread = null;
+            lock.notifyAll();
+        }
+        if (t != null) {
+            t.interrupt();
+        }
+    }
+
+    /**
+     * Starts no postview download before {@link #resume()}. Returns at once.
+     */
+    public void pause() {
+        synchronized (lock) {
+            if (thread == null || finishing) {
+                return;
+            }
+            paused = true;
+        }
+    }
+
+    /**
+     * Resumes the downloads stopped by {@link #pause()}.
+     */
+    public void resume() {
+        synchronized (lock) {
+            paused = false;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Queues a postview for the reel. Never blocks; the frame is left out if
+     * the queue is full.
+     *
+     * @param frame number of the frame
+     * @param url postview URL
+     */
+    public void add(int frame, String url) {
+        offer(new Job(frame, url, null));
+    }
+
+    /**
+     * Queues an archived picture for the reel. It is read from the file
+     * instead of being downloaded again. Never blocks.
+     *
+     * @param frame number of the frame
+     * @param file the archived picture
+     */
+    public void add(int frame, File file) {
+        offer(new Job(frame, null, file));
+    }
+
+    private void offer(Job job) {
+        if (!queue.offer(job)) {
+            logger.debug("Preview reel queue full, frame {0} left out", job.frame);
+        }
+    }
+
+    @Override
+    public void run() {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            logger.error("Cannot create preview reel directory {0}", directory);
+            return;
+        }
+        FileOutputStream data = null;
+        FileOutputStream index = null;
+        try {
+            long dataEnd = 0;
+            if (keepPrevious) {
+                try {
+                    Reader reader = new Reader(directory);
+                    frames = reader.getFrameCount();
+                    dataEnd = reader.getEnd();
+                    reader.close();
+                } catch (IOException e) {
+                    logger.debug("No preview reel to add to, starting over");
+                }
+            }
+            if (frames == 0) {
+                // A new reel goes to new files. Readers may still map the old
+                // ones, truncating them under the mapping would crash them.
+                delete(new File(directory, DATA_FILE));
+                delete(new File(directory, INDEX_FILE));
+            }
+            data = new FileOutputStream(new File(directory, DATA_FILE), keepPrevious);
+            index = new FileOutputStream(new File(directory, INDEX_FILE), keepPrevious);
+            FileChannel dataChannel = data.getChannel();
+            FileChannel indexChannel = index.getChannel();
+            // Drops whatever the killed writer left half written
+            dataChannel.truncate(dataEnd);
+            indexChannel.truncate((long) frames * RECORD_SIZE);
+            Job job;
+            while ((job = nextJob()) != null) {
+                if (compress(job)) {
+                    append(job.frame, dataChannel, indexChannel);
+                }
+            }
+        } catch (InterruptedException e) {
+            // Stopped
+        } catch (IOException e) {
+            logger.error(e, "Cannot write preview reel");
+        } finally {
+            close(data);
+            close(index);
+            bitmapPool.clear();
+            logger.debug("Preview reel closed with {0} frames", frames);
+        }
+    }
+
+    // Loads, downsamples and compresses a frame into the JPEG buffer.
+    private boolean compress(Job job) throws InterruptedException {
+        Bitmap bitmap;
+        if (job.file != null) {
+            bitmap = decoder.decodeFile(job.file.getPath());
+        } else {
+            if (!download(job)) {
+                return false;
+            }
+            bitmap = decoder.decode(download.getData(), 0, download.getLength());
+            download.clear();
+        }
+        if (bitmap == null) {
+            return false;
+        }
+        jpeg.reset();
+        boolean compressed = bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, jpeg);
+        bitmapPool.put(bitmap);
+        return compressed;
+    }
+
+    // Downloads a postview once the shutter is closed. Returns false if it
+    // failed or the reel was stopped.
+    private boolean download(Job job) throws InterruptedException {
+        if (!awaitResume()) {
+            return false;
+        }
+        try {
+            SimpleHttpClient.httpGet(job.url, SimpleHttpClient.DEFAULT_READ_TIMEOUT, download);
+            return true;
+        } catch (IOException e) {
+            logger.debug("Cannot load frame {0} for the preview reel", job.frame);
+            return false;
+        }
+    }
+
+    // Waits while paused. Returns false once stopped.
+    private boolean awaitResume() throws InterruptedException {
+        synchronized (lock) {
+            while (thread == Thread.currentThread() && paused) {
+                lock.wait();
+            }
+            return thread == Thread.currentThread();
+        }
+    }
+
+    // The frame is written before its index record, so readers never see a
+    // record of a frame not yet written.
+    private void append(int frame, FileChannel dataChannel, FileChannel indexChannel) throws IOException {
+        long offset = dataChannel.position();
+        ByteBuffer bytes = jpeg.asByteBuffer();
+        int length = bytes.remaining();
+        while (bytes.hasRemaining()) {
+            dataChannel.write(bytes);
+        }
+        record.clear();
+        record.putLong(offset).putInt(length).putInt(frame).flip();
+        while (record.hasRemaining()) {
+            indexChannel.write(record);
+        }
+        frames++;
+    }
+
+    // Returns the next frame, or null once stopped or finished.
+    private Job nextJob() throws InterruptedException {
+        while (true) {
+            synchronized (lock) {
+                if (thread != Thread.currentThread()) {
+                    return null;
+                }
+                if (finishing && queue.isEmpty()) {
+                    thread = null;
+                    return null;
+                }
+            }
+            Job job = queue.poll(1, TimeUnit.SECONDS);
+            if (job != null) {
+                return job;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of frames indexed in a reel, without mapping it.
+     *
+     * @param directory where the reel is written
+     */
+    public static int getFrameCount(File directory) {
+        return (int) (new File(directory, INDEX_FILE).length() / RECORD_SIZE);
+    }
+
+    private static void delete(File file) {
+        if (!file.delete() && file.exists()) {
+            logger.warn("Cannot delete preview reel file {0}", file);
+        }
+    }
+
+    private static void close(FileOutputStream out) {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                logger.warn("Cannot close preview reel file");
+            }
+        }
+    }
+
+    /**
+     * Random access to the frames of a reel. The small index is memory
+     * mapped, the frames are read from the data file at their offset, so the
+     * reel itself, hundreds of MB for a long timelapse, is never mapped. The
+     * reel may still be growing, see {@link #refresh()}. Not thread safe.
+     */
+    public static class Reader {
+        private final File dataFile;
+        private final File indexFile;
+        private RandomAccessFile data;
+        private MappedByteBuffer index;
+        private int frameCount;
+
+        /**
+         * Constructor. Opens the frames written so far.
+         *
+         * @param directory where the reel is written
+         * @throws IOException if there is no reel
+         */
+        public Reader(File directory) throws IOException {
+            dataFile = new File(directory, DATA_FILE);
+            indexFile = new File(directory, INDEX_FILE);
+            refresh();
+        }
+
+        /**
+         * Opens the frames added since the last call, or the whole reel if it
+         * was replaced by a new one. Cheap if nothing changed.
+         *
+         * @return the number of frames
+         * @throws IOException if the reel cannot be read
+         */
+        public int refresh() throws IOException {
+            long indexLength = indexFile.length();
+            int count = (int) (indexLength / RECORD_SIZE);
+            if (index != null && count == frameCount && !isShrunk()) {
+                return frameCount;
+            }
+            index = map(indexFile, (long) count * RECORD_SIZE);
+            // Reopened as a new reel replaces the files, not truncates them
+            close();
+            data = new RandomAccessFile(dataFile, "r");
+            long dataLength = data.length();
+            // Frames whose data is not all there yet are left out
+            while (count > 0 && index.getLong((count - 1) * RECORD_SIZE)
+                    + index.getInt((count - 1) * RECORD_SIZE + 8) > dataLength) {
+                count--;
+            }
+            frameCount = count;
+            return frameCount;
+        }
+
+        public int getFrameCount() {
+            return frameCount;
+        }
+
+        // A new reel starts with a shorter index than the one mapped
+        private boolean isShrunk() {
+            return indexFile.length() < index.capacity();
+        }
+
+        /**
+         * Returns the length of the reel data used by the indexed frames.
+         */
+        public long getEnd() {
+            if (frameCount == 0) {
+                return 0;
+            }
+            int offset = (frameCount - 1) * RECORD_SIZE;
+            return index.getLong(offset) + index.getInt(offset + 8);
+        }
+
+        /**
+         * Returns the timelapse frame number of a reel frame.
+         *
+         * @param position position of the frame in the reel, from zero
+         */
+        public int getFrameNumber(int position) {
+            return index.getInt(recordOffset(position) + 12);
+        }
+
+        /**
+         * Returns the length of the JPEG of a frame.
+         *
+         * @param position position of the frame in the reel, from zero
+         */
+        public int getLength(int position) {
+            return index.getInt(recordOffset(position) + 8);
+        }
+
+        /**
+         * Reads the JPEG of a frame.
+         *
+         * @param position position of the frame in the reel, from zero
+         * @param buffer receives the JPEG from its start, at least
+         *            {@link #getLength(int)} bytes long
+         * @return the length of the JPEG
+         * @throws IOException if the frame cannot be read
+         */
+        public int readJpeg(int position, byte[] buffer) throws IOException {
+            int offset = recordOffset(position);
+            int length = index.getInt(offset + 8);
+            data.seek(index.getLong(offset));
+            data.readFully(buffer, 0, length);
+            return length;
+        }
+
+        /**
+         * Closes the data file. The reader can be refreshed afterwards.
+         */
+        public void close() {
+            if (data != null) {
+                try {
+                    data.close();
+                } catch (IOException e) {
+                    logger.debug("Cannot close preview reel");
+                }
+                data = null;
+            }
+        }
+
+        private int recordOffset(int position) {
+            if (position < 0 || position >= frameCount) {
+                throw new IndexOutOfBoundsException("frame " + position + " of " + frameCount);
+            }
+            return position * RECORD_SIZE;
+        }
+
+        private static MappedByteBuffer map(File file, long length) throws IOException {
+            FileInputStream in = new FileInputStream(file);
+            try {
+                // The mapping stays valid once the file is closed
+                return in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+            } finally {
+                in.close();
+            }
+        }
+    }
+}
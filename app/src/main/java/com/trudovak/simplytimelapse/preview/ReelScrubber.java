@@ -0,0 +1,185 @@
+package com.trudovak.simplytimelapse.preview;
+
+import java.io.File;
+import java.io.IOException;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+
+import com.trudovak.simplytimelapse.utils.Logger;
+
+/**
+ * Shows frames of a {@link PreviewReel} while the user drags through it. The
+ * frames are read from the reel and decoded on a background
+ * thread. Only the last requested frame counts: positions requested while a
+ * frame is being decoded are skipped, so scrubbing never queues up work.
+ */
+public class ReelScrubber implements Runnable {
+
+    private static final Logger logger = new Logger(ReelScrubber.class);
+
+    /**
+     * Receives the frames on the thread that created the scrubber.
+     */
+    public interface Listener {
+        void OnReelFrame(Bitmap frame, int frameNumber);
+    }
+
+    private static final String THREAD_NAME = "reel-scrubber";
+    private static final int BITMAP_POOL_SIZE = 2;
+    private static final int NO_REQUEST = -1;
+
+    private final File directory;
+    private final Listener listener;
+    private final Handler handler = new Handler();
+    private final BitmapPool bitmapPool = new BitmapPool(BITMAP_POOL_SIZE);
+    private final PreviewDecoder decoder;
+    private byte[] jpeg = new byte[0];
+
+    private final Object lock = new Object();
+    private Thread thread;
+    private int requested = NO_REQUEST;
+
+    /**
+     * Constructor. Must be called on a thread with a looper.
+     *
+     * @param directory where the reel is written
+     * @param listener receives the frames
+     * @param targetWidth width the frames are displayed at
+     * @param targetHeight height the frames are displayed at
+     */
+    public ReelScrubber(File directory, Listener listener, int targetWidth, int targetHeight) {
+        this.directory = directory;
+        this.listener = listener;
+        this.decoder = new PreviewDecoder(targetWidth, targetHeight, bitmapPool);
+    }
+
+    public void start() {
+        synchronized (lock) {
+            if (thread == null) {
+                requested = NO_REQUEST;
+                thread = new Thread(this, THREAD_NAME);
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+    }
+
+    /**
+     * Stops the scrubber. A frame being decoded is not delivered.
+     */
+    public void stop() {
+        Thread t;
+        synchronized (lock) {
+            t = thread;
+            thread = null;
+            lock.notifyAll();
+        }
+        if (t != null) {
+            t.interrupt();
+        }
+    }
+
+    /**
+     * Requests a frame, replacing any request not yet served. Returns at once.
+     *
+     * @param position position of the frame in the reel, from zero
+     */
+    public void show(int position) {
+        synchronized (lock) {
+            requested = position;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Hands back a frame once it was replaced on screen.
+     *
+     * @param frame the replaced frame, may be null
+     */
+    public void release(Bitmap frame) {
+        if (frame != null) {
+            bitmapPool.retire(frame);
+        }
+    }
+
+    @Override
+    public void run() {
+        PreviewReel.Reader reader = null;
+        try {
+            int position;
+            while ((position = nextRequest()) != NO_REQUEST) {
+                try {
+                    if (reader == null) {
+                        reader = new PreviewReel.Reader(directory);
+                    }
+                    // The reel may have grown, or been replaced by the reel
+                    // of a new timelapse, since the last frame
+                    if (position >= reader.refresh()) {
+                        continue;
+                    }
+                    deliver(decode(reader, position), reader.getFrameNumber(position));
+                } catch (IOException e) {
+                    logger.debug("Cannot read preview reel: {0}", e.getMessage());
+                    if (reader != null) {
+                        reader.close();
+                        reader = null;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            // Stopped
+        } finally {
+            if (reader != null) {
+                reader.close();
+            }
+            bitmapPool.clear();
+        }
+    }
+
+    private Bitmap decode(PreviewReel.Reader reader, int position) throws IOException {
+        int length = reader.getLength(position);
+        if (jpeg.length < length) {
+            jpeg = new byte[Math.max(length, jpeg.length + (jpeg.length >> 1))];
+        }
+        reader.readJpeg(position, jpeg);
+        return decoder.decode(jpeg, 0, length);
+    }
+
+    private void deliver(final Bitmap frame, final int frameNumber) {
+        if (frame == null) {
+            return;
+        }
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (isRunning()) {
+                    listener.OnReelFrame(frame, frameNumber);
+                } else {
+                    bitmapPool.put(frame);
+                }
+            }
+        });
+    }
+
+    private boolean isRunning() {
+        synchronized (lock) {
+            return thread != null;
+        }
+    }
+
+    // Waits for the next request. Returns NO_REQUEST once stopped.
+    private int nextRequest() throws InterruptedException {
+        synchronized (lock) {
+            while (thread == Thread.currentThread() && requested == NO_REQUEST) {
+                lock.wait();
+            }
+            if (thread != Thread.currentThread()) {
+                return NO_REQUEST;
+            }
+            int position = requested;
+            requested = NO_REQUEST;
+            return position;
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package com.trudovak.simplytimelapse.service;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.trudovak.simplytimelapse.camera.ServerDevice;
+import com.trudovak.simplytimelapse.camera.utils.SsdpParser;
+import com.trudovak.simplytimelapse.camera.utils.SsdpParser.Header;
+import com.trudovak.simplytimelapse.utils.Logger;
+
+/**
+ * SSDP discovery of Camera Remote API devices. Replies are received for the
+ * whole discovery window while the device descriptions are fetched and
+ * validated in parallel, so a slow device does not hide the others. Each
+ * confirmed camera is reported as soon as it is validated.
+ */
+public class CameraDiscovery {
+    private static final Logger logger = new Logger(CameraDiscovery.class);
+
+    private final static int PACKET_BUFFER_SIZE = 1024;
+    private final static int SSDP_PORT = 1900;
+    private final static int SSDP_MX = 1;
+    private final static String SSDP_ADDR = "239.255.255.250";
+    private final static String SSDP_ST = "urn:schemas-sony-com:service:ScalarWebAPI:1";
+
+    // M-SEARCH is sent this many times, this far apart, as UDP may drop it
+    private final static int SEARCH_REPEAT = 3;
+    private final static int SEARCH_REPEAT_INTERVAL = 100; // msec
+
+    /**
+     * Receives the cameras as they are confirmed. Called on the validation
+     * threads.
+     */
+    public interface Listener {
+        void OnCameraFound(ServerDevice device);
+    }
+
+    /**
+     * Checks a discovered device for compatibility and prepares it.
+     */
+    public interface Validator {
+        /**
+         * @return zero if compatible else an error message code
+         */
+        int validate(ServerDevice device);
+    }
+
+    private final ExecutorService workers;
+    private final Validator validator;
+
+    // First validation error, reported when no camera is found
+    private volatile int errorCode;
+
+    /**
+     * Constructor.
+     *
+     * @param workers fetch and validate the devices found
+     * @param validator checks the devices found
+     */
+    public CameraDiscovery(ExecutorService workers, Validator validator) {
+        this.workers = workers;
+        this.validator = validator;
+    }
+
+    /**
+     * Searches for cameras. Replies are accepted for the whole window; the
+     * devices still being validated after it get the indicated grace period,
+     * then they are abandoned.
+     *
+     * @param windowMillis how long to receive replies
+     * @param graceMillis how long to wait for validations after the window
+     * @param listener notified of each camera confirmed, may be null
+     * @return the confirmed cameras in the order they replied
+     * @throws IOException if the search cannot be sent
+     */
+    public List<ServerDevice> discover(long windowMillis, long graceMillis, final Listener listener)
+            throws IOException {
+        errorCode = 0;
+        final byte[] sendData = ("M-SEARCH * HTTP/1.1\r\n" + String.format("HOST: %s:%d\r\n", SSDP_ADDR, SSDP_PORT)
+                + "MAN: \"ssdp:discover\"\r\n" + String.format("MX: %d\r\n", SSDP_MX)
+                + String.format("ST: %s\r\n", SSDP_ST) + "\r\n").getBytes();
+
+        List<Future<ServerDevice>> pending = new ArrayList<Future<ServerDevice>>();
+        List<String> foundDevices = new ArrayList<String>();
+        SsdpParser parser = new SsdpParser();
+        DatagramSocket socket = new DatagramSocket();
+        try {
+            DatagramPacket packet = new DatagramPacket(sendData, sendData.length, new InetSocketAddress(SSDP_ADDR,
+                    SSDP_PORT));
+            byte[] array = new byte[PACKET_BUFFER_SIZE];
+            DatagramPacket receivePacket = new DatagramPacket(array, array.length);
+
+            long start = System.nanoTime();
+            long end = start + TimeUnit.MILLISECONDS.toNanos(windowMillis);
+            int sent = 0;
+            while (true) {
+                long now = System.nanoTime();
+                if (now >= end) {
+                    break;
+                }
+                // Repeat the search between the receives
+                long nextSend = start + TimeUnit.MILLISECONDS.toNanos((long) sent * SEARCH_REPEAT_INTERVAL);
+                if (sent < SEARCH_REPEAT && now >= nextSend) {
+                    socket.send(packet);
+                    sent++;
+                    continue;
+                }
+                long until = sent < SEARCH_REPEAT ? Math.min(end, nextSend) : end;
+                try {
+                    socket.setSoTimeout((int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(until - now)));
+                    receivePacket.setLength(array.length);
+                    socket.receive(receivePacket);
+                } catch (InterruptedIOException e) {
+                    continue;
+                }
+                if (!parser.parse(receivePacket.getData(), receivePacket.getOffset(), receivePacket.getLength())
+                        || !parser.has(Header.USN) || !parser.has(Header.LOCATION)) {
+                    continue;
+                }
+                // There is possibility to receive multiple packets from a individual server.
+                if (isKnown(parser, foundDevices)) {
+                    continue;
+                }
+                foundDevices.add(parser.getValue(Header.USN));
+                final String ddLocation = parser.getValue(Header.LOCATION);
+                logger.debug("SSDP reply from {0}", ddLocation);
+                pending.add(workers.submit(new Callable<ServerDevice>() {
+                    @Override
+                    public ServerDevice call() {
+                        return fetchAndValidate(ddLocation, listener);
+                    }
+                }));
+            }
+        } finally {
+            socket.close();
+        }
+        return collect(pending, graceMillis);
+    }
+
+    // Checks the USN against the devices seen without decoding it. Repeated
+    // replies are the common case and allocate nothing.
+    private static boolean isKnown(SsdpParser parser, List<String> foundDevices) {
+        for (String usn : foundDevices) {
+            if (parser.valueEquals(Header.USN, usn)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the first validation error of the last discovery, or zero.
+     */
+    public int getErrorCode() {
+        return errorCode;
+    }
+
+    private ServerDevice fetchAndValidate(String ddLocation, Listener listener) {
+        // Fetch Device Description XML and parse it.
+        ServerDevice device = ServerDevice.fetch(ddLocation);
+        if (device == null) {
+            return null;
+        }
+        int error = validator.validate(device);
+        if (error != 0) {
+            if (errorCode == 0) {
+                errorCode = error;
+            }
+            return null;
+        }
+        if (listener != null) {
+            listener.OnCameraFound(device);
+        }
+        return device;
+    }
+
+    private List<ServerDevice> collect(List<Future<ServerDevice>> pending, long graceMillis) {
+        List<ServerDevice> devices = new ArrayList<ServerDevice>(pending.size());
+        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(graceMillis);
+        for (Future<ServerDevice> future : pending) {
+            try {
+                ServerDevice device = future.get(Math.max(0, end - System.nanoTime()), TimeUnit.NANOSECONDS);
+                if (device != null) {
+                    devices.add(device);
+                }
+            } catch (TimeoutException e) {
+                logger.warn("Device validation did not complete in time");
+                future.cancel(true);
+            } catch (ExecutionException e) {
+                logger.warn(e.getCause(), "Device validation failed");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return devices;
+    }
+}
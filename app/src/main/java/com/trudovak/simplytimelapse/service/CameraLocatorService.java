@@ -1,15 +1,10 @@
 package com.trudovak.simplytimelapse.service;
 
 import java.io.IOException;
-import java.io.InterruptedIOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetSocketAddress;
-import java.net.SocketException;
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -20,6 +15,10 @@ import android.content.Intent;
 import android.support.v4.content.LocalBroadcastManager;
 
 import com.trudovak.simplytimelapse.R;
+import com.trudovak.simplytimelapse.TimelapseApp;
+import com.trudovak.simplytimelapse.camera.AsyncRemoteApi;
+import com.trudovak.simplytimelapse.camera.CameraCapabilities;
+import com.trudovak.simplytimelapse.camera.DeviceCache;
 import com.trudovak.simplytimelapse.camera.ServerDevice;
 import com.trudovak.simplytimelapse.camera.SimpleRemoteApi;
 import com.trudovak.simplytimelapse.utils.Logger;
@@ -27,12 +26,17 @@ import com.trudovak.simplytimelapse.utils.Logger;
 public class CameraLocatorService extends IntentService {
     private static final Logger logger = new Logger(CameraLocatorService.class);
 
-    private final static int SSDP_RECEIVE_TIMEOUT = 10000; // msec
-    private final static int PACKET_BUFFER_SIZE = 1024;
-    private final static int SSDP_PORT = 1900;
-    private final static int SSDP_MX = 1;
-    private final static String SSDP_ADDR = "239.255.255.250";
-    private final static String SSDP_ST = "urn:schemas-sony-com:service:ScalarWebAPI:1";
+    // Replies to M-SEARCH arrive within MX (1 s), allow for slow networks
+    private final static int DISCOVERY_WINDOW = 3000; // msec
+    // Time left to the validations still running after the window
+    private final static int DISCOVERY_GRACE = 5000; // msec
+    // Devices fetched and validated at once
+    private final static int DISCOVERY_THREADS = 4;
+
+    // Deadline of each validation call
+    private final static int CHECK_CALL_DEADLINE = 10000; // msec
+    // Validation calls run one after the other
+    private final static int CHECK_CALL_THREADS = 1;
 
     public final static String CAMERA_FOUND = "com.trudovak.simplytimelapse.cameraFound";
     public final static String CAMERA_SEARCH_FAILED = "com.trudovak.simplytimelapse.cameraNotFound";
@@ -40,9 +44,12 @@ public class CameraLocatorService extends IntentService {
     public final static String CAMERA_URL = "url";
     public final static String CAMERA_NAME = "name";
 
-    public final static String ERROR_MSG_ID = "msg_id";
+    /** URLs of all the cameras found so far, in the order they were found. */
+    public final static String CAMERA_URLS = "urls";
+    /** Names of all the cameras found so far, in the order of {@link #CAMERA_URLS}. */
+    public final static String CAMERA_NAMES = "names";
 
-    private final Set<String> availableApiSet = new HashSet<String>();
+    public final static String ERROR_MSG_ID = "msg_id";
 
     public CameraLocatorService() {
         super("CameraLocatorService");
@@ -54,95 +61,87 @@ public class CameraLocatorService extends IntentService {
     }
 
     private void findCamera() {
-        final String ssdpRequest = "M-SEARCH * HTTP/1.1\r\n" + String.format("HOST: %s:%d\r\n", SSDP_ADDR, SSDP_PORT)
-                + "MAN: \"ssdp:discover\"\r\n" + String.format("MX: %d\r\n", SSDP_MX)
-                + String.format("ST: %s\r\n", SSDP_ST) + "\r\n";
-        final byte[] sendData = ssdpRequest.getBytes();
-
-        // Send Datagram packets
-        DatagramSocket socket = null;
-        DatagramPacket receivePacket = null;
-        DatagramPacket packet;
+        ExecutorService workers = Executors.newFixedThreadPool(DISCOVERY_THREADS);
+        // Reported together, each camera once
+        List<String> foundUrls = new ArrayList<String>();
+        List<String> foundNames = new ArrayList<String>();
         try {
-            socket = new DatagramSocket();
-            byte[] array = new byte[PACKET_BUFFER_SIZE];
-            receivePacket = new DatagramPacket(array, array.length);
-            InetSocketAddress iAddress = new InetSocketAddress(SSDP_ADDR, SSDP_PORT);
-            packet = new DatagramPacket(sendData, sendData.length, iAddress);
-            // send 3 times
-            logger.info("search() Send Datagram packet 3 times.");
-            socket.send(packet);
-            Thread.sleep(100);
-            socket.send(packet);
-            Thread.sleep(100);
-            socket.send(packet);
-        } catch (InterruptedException e) {
-            // do nothing.
-        } catch (SocketException e) {
-            logger.error(e, "search() DatagramSocket error");
-            onErrorFinished(R.string.msg_error_connection);
-            return;
-        } catch (IOException e) {
-            logger.error(e, "search() IOException:");
-            onErrorFinished(R.string.msg_error_connection);
-            return;
+            reconnectKnownCameras(workers, foundUrls, foundNames);
+            // Still looked for, a camera just switched on or a second body
+            // is not in the cache
+            discoverCameras(workers, foundUrls, foundNames);
+        } finally {
+            workers.shutdownNow();
         }
+    }
 
-        //if (socket == null || receivePacket == null) {
-        //    return;
-        //}
-        try {
-            // Receive reply packets
-            long startTime = System.currentTimeMillis();
-            List<String> foundDevices = new ArrayList<String>();
-            while (true) {
-                try {
-                    socket.setSoTimeout(SSDP_RECEIVE_TIMEOUT);
-                    socket.receive(receivePacket);
-                    String ssdpReplyMessage = new String(receivePacket.getData(), 0, receivePacket.getLength());
-
-                    String ddUsn = findParameterValue(ssdpReplyMessage, "USN");
-
-                    /*
-                     * There is possibility to receive multiple packets from a individual server.
-                     */
-                    if (!foundDevices.contains(ddUsn)) {
-                        String ddLocation = findParameterValue(ssdpReplyMessage, "LOCATION");
-                        foundDevices.add(ddUsn);
+    // Probes the cached cameras, so the ones still there are reported before
+    // SSDP discovery completes.
+    private void reconnectKnownCameras(ExecutorService workers, List<String> foundUrls,
+            List<String> foundNames) {
+        DeviceCache cache = ((TimelapseApp) getApplication()).getDeviceCache();
+        List<DeviceCache.Entry> known = cache.probeAll(workers, DeviceCache.PROBE_TIMEOUT);
+        for (DeviceCache.Entry entry : known) {
+            ServerDevice device = entry.getDevice();
+            // Still in shooting mode after a Wi-Fi blip: no need to check it again
+            if (entry.getAvailableApis().contains("actTakePicture") || checkDevice(device) == 0) {
+                logger.debug("search() reconnected to known camera {0}", device.getFriendlyName());
+                foundUrls.add(device.getDDUrl());
+                foundNames.add(device.getFriendlyName());
+                onDeviceFound(device, foundUrls, foundNames);
+            }
+        }
+    }
 
-                        // Fetch Device Description XML and parse it.
-                        ServerDevice device = ServerDevice.fetch(ddLocation);
-                        if (device != null) {
-                            int errorCode = checkAndInitDevice(device);
-                            if (0 == errorCode) {
-                                onDeviceFound(device);
-                                break;
-                            } else {
-                                onErrorFinished(errorCode);
-                            }
-                        }
+    // Adds the cameras answering SSDP to the ones found already
+    private void discoverCameras(ExecutorService workers, final List<String> foundUrls,
+            final List<String> foundNames) {
+        CameraDiscovery discovery = new CameraDiscovery(workers, new CameraDiscovery.Validator() {
+            @Override
+            public int validate(ServerDevice device) {
+                synchronized (foundUrls) {
+                    if (foundUrls.contains(device.getDDUrl())) {
+                        // Checked by the probe
+                        return 0;
                     }
-                } catch (InterruptedIOException e) {
-                    logger.debug(e, "search() Timeout.");
-                    onErrorFinished(R.string.msg_error_connection);
-                    break;
-                } catch (IOException e) {
-                    logger.warn(e, "search() IOException.");
-                    onErrorFinished(R.string.msg_error_connection);
-                    break;
-                }
-                if (SSDP_RECEIVE_TIMEOUT < System.currentTimeMillis() - startTime) {
-                    onErrorFinished(R.string.msg_error_connection);
-                    break;
                 }
+                return checkDevice(device);
             }
-        } finally {
-            if (!socket.isClosed()) {
-                socket.close();
+        });
+        try {
+            List<ServerDevice> devices = discovery.discover(DISCOVERY_WINDOW, DISCOVERY_GRACE,
+                    new CameraDiscovery.Listener() {
+                        @Override
+                        public void OnCameraFound(ServerDevice device) {
+                            synchronized (foundUrls) {
+                                if (foundUrls.contains(device.getDDUrl())) {
+                                    return;
+                                }
+                                foundUrls.add(device.getDDUrl());
+                                foundNames.add(device.getFriendlyName());
+                                onDeviceFound(device, foundUrls, foundNames);
+                            }
+                        }
+                    });
+            logger.info("search() found {0} cameras", devices.size());
+            if (devices.isEmpty() && isEmpty(foundUrls)) {
+                int errorCode = discovery.getErrorCode();
+                onErrorFinished(errorCode != 0 ? errorCode : R.string.msg_error_connection);
+            }
+        } catch (IOException e) {
+            logger.error(e, "search() IOException:");
+            if (isEmpty(foundUrls)) {
+                onErrorFinished(R.string.msg_error_connection);
             }
         }
     }
 
+    private static boolean isEmpty(List<String> foundUrls) {
+        synchronized (foundUrls) {
+            return foundUrls.isEmpty();
+        }
+    }
+
     private void onErrorFinished(int msgId) {
         // Send Error Broadcast to client
         Intent intent = new Intent(CAMERA_SEARCH_FAILED);
@@ -151,66 +150,52 @@ public class CameraLocatorService extends IntentService {
         LocalBroadcastManager.getInstance(this).sendBroadcast(intent);
     }
 
-    private void onDeviceFound(ServerDevice device) {
+    private void onDeviceFound(ServerDevice device, List<String> foundUrls, List<String> foundNames) {
         String cameraUrl = device.getDDUrl();
         String cameraName = device.getFriendlyName();
         // Send broadcast intend with camera url and name
         Intent intent = new Intent(CAMERA_FOUND);
         intent.putExtra(CAMERA_NAME, cameraName);
         intent.putExtra(CAMERA_URL, cameraUrl);
+        intent.putExtra(CAMERA_URLS, foundUrls.toArray(new String[foundUrls.size()]));
+        intent.putExtra(CAMERA_NAMES, foundNames.toArray(new String[foundNames.size()]));
         LocalBroadcastManager.getInstance(this).sendBroadcast(intent);
 
     }
 
     /**
-     * Checks a discovered device for compatibility and initializes some basic parameters
+     * Checks a discovered device for compatibility. Only reads from the
+     * device: other people's cameras may answer too, and are set up for
+     * shooting only once picked, see {@link TimelapseService}.
      * @param device the settings for connecting ot the camera device
      * @return zero if compatible else error message code is returned
      */
-    private int checkAndInitDevice(ServerDevice device) {
-        // Called by non-UI thread.
-        logger.debug(">> Search device found: {}", device.getFriendlyName());
-        // Only register one device
-        SimpleRemoteApi remoteApi = new SimpleRemoteApi(device);
+    private int checkDevice(ServerDevice device) {
+        // Called by non-UI thread, for several devices at once.
+        logger.debug(">> Search device found: {0}", device.getFriendlyName());
+        ExecutorService ioExecutor = AsyncRemoteApi.newIoExecutor(CHECK_CALL_THREADS);
+        SimpleRemoteApi api = new SimpleRemoteApi(device);
+        // Shared with every other call to the camera, kept up to date by them
+        CameraCapabilities capabilities = api.getCapabilities();
+        AsyncRemoteApi remoteApi = new AsyncRemoteApi(api, ioExecutor);
 
-        // Initialize the camera
         try {
-            JSONObject replyJson;
-
             // getAvailableApiList
-            replyJson = remoteApi.getAvailableApiList();
-            loadAvailableApiList(replyJson);
+            remoteApi.getAvailableApiList(CHECK_CALL_DEADLINE, null).await();
 
-            // check version of the server device
-            if (isApiAvailable("getApplicationInfo")) {
-                logger.debug("onDeviceFound(): getApplicationInfo()");
-                replyJson = remoteApi.getApplicationInfo();
-                if (!isSupportedServerVersion(replyJson)) {
-                    logger.debug("The device found is not supported.");
-                    return R.string.msg_error_non_supported_device;
-                }
-            } else {
+            if (!capabilities.isKnown() || !capabilities.getAvailableApis().contains("getApplicationInfo")) {
                 // never happens;
                 logger.error("getApplicationInfo API is not available during initialization.");
                 return R.string.msg_error_non_supported_device;
             }
 
-            // startRecMode if necessary.
-            if (isApiAvailable("startRecMode")) {
-                logger.debug("onDeviceFound(): startRecMode()");
-                remoteApi.startRecMode();
-
-                // Call again.
-                replyJson = remoteApi.getAvailableApiList();
-                loadAvailableApiList(replyJson);
-            }
-
-            if (isApiAvailable("setPostviewImageSize")) {
-                // Set preview to small size to avoid problems
-                logger.debug("onDeviceFound(): setPostviewImageSize()");
-                remoteApi.setPostviewImageSize("2M");
+            logger.debug("onDeviceFound(): getApplicationInfo()");
+            if (!isSupportedServerVersion(remoteApi.getApplicationInfo(CHECK_CALL_DEADLINE, null).await())) {
+                logger.debug("The device found is not supported.");
+                return R.string.msg_error_non_supported_device;
             }
 
+            ((TimelapseApp) getApplication()).getDeviceCache().put(device, capabilities.getAvailableApis());
             logger.debug("onDeviceFound(): completed.");
             return 0;
         } catch (IOException e) {
@@ -219,52 +204,11 @@ public class CameraLocatorService extends IntentService {
         } catch (IllegalStateException e) {
             logger.warn(e, "onDeviceFound: IllegalStateException" );
             return R.string.msg_unregognized_device;
+        } finally {
+            ioExecutor.shutdown();
         }
     }
 
-    /*
-     * Find a value string from message line as below. (ex.) "ST: XXXXX-YYYYY-ZZZZZ" ->
-     * "XXXXX-YYYYY-ZZZZZ"
-     */
-    private static String findParameterValue(String ssdpMessage, String paramName) {
-        String name = paramName;
-        if (!name.endsWith(":")) {
-            name = name + ":";
-        }
-        int start = ssdpMessage.indexOf(name) + name.length();
-        int end = ssdpMessage.indexOf("\r\n", start);
-        if (start != -1 && end != -1) {
-            String val = ssdpMessage.substring(start, end);
-            return val.trim();
-        }
-        return null;
-    }
-
-    // Retrieve a list of APIs that are available at present.
-    private void loadAvailableApiList(JSONObject replyJson) {
-        synchronized (availableApiSet) {
-            availableApiSet.clear();
-            try {
-                JSONArray resultArrayJson = replyJson.getJSONArray("result");
-                JSONArray apiListJson = resultArrayJson.getJSONArray(0);
-                for (int i = 0; i < apiListJson.length(); i++) {
-                    availableApiSet.add(apiListJson.getString(i));
-                }
-            } catch (JSONException e) {
-                logger.warn(e, "loadAvailableApiList: JSON format error.");
-            }
-        }
-    }
-
-    // Check if the indicated API is available at present.
-    private boolean isApiAvailable(String apiName) {
-        boolean isAvailable;
-        synchronized (availableApiSet) {
-            isAvailable = availableApiSet.contains(apiName);
-        }
-        return isAvailable;
-    }
-
     // Check if the version of the server is supported in this application.
     private boolean isSupportedServerVersion(JSONObject replyJson) {
         try {
@@ -0,0 +1,163 @@
+package com.trudovak.simplytimelapse.service;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+
+import android.content.Context;
+import android.net.wifi.WifiManager;
+
+import com.trudovak.simplytimelapse.camera.CameraRegistry;
+import com.trudovak.simplytimelapse.camera.DeviceCache;
+import com.trudovak.simplytimelapse.camera.utils.SsdpParser;
+import com.trudovak.simplytimelapse.camera.utils.SsdpParser.Header;
+import com.trudovak.simplytimelapse.utils.Logger;
+
+/**
+ * Passive SSDP listener. Joins the SSDP multicast group and feeds the
+ * ssdp:alive and ssdp:byebye announcements of Camera Remote API devices into
+ * a {@link CameraRegistry}, so cameras coming back are noticed without active
+ * searches. Holds a Wi-Fi multicast lock while running, as many devices
+ * filter multicast otherwise.
+ */
+public class SsdpNotifyListener implements Runnable {
+    private static final Logger logger = new Logger(SsdpNotifyListener.class);
+
+    private final static int PACKET_BUFFER_SIZE = 1024;
+    private final static int SSDP_PORT = 1900;
+    private final static String SSDP_ADDR = "239.255.255.250";
+    private final static String SSDP_NT = "urn:schemas-sony-com:service:ScalarWebAPI:1";
+    // How often expired leases are checked when nothing is received
+    private final static int EXPIRY_CHECK_INTERVAL = 30000; // msec
+
+    private static final String THREAD_NAME = "ssdp-notify";
+    private static final String LOCK_TAG = "SimplyTimelapse SSDP";
+
+    private final CameraRegistry registry;
+    private final DeviceCache deviceCache;
+    private final WifiManager.MulticastLock multicastLock;
+
+    private volatile Thread thread;
+    private volatile MulticastSocket socket;
+    // Only used on the listener thread
+    private final SsdpParser parser = new SsdpParser();
+
+    /**
+     * Constructor.
+     *
+     * @param context context to get the Wi-Fi service from
+     * @param registry receives the announcements
+     * @param deviceCache drops cameras that left or moved, may be null
+     */
+    public SsdpNotifyListener(Context context, CameraRegistry registry, DeviceCache deviceCache) {
+        this.registry = registry;
+        this.deviceCache = deviceCache;
+        WifiManager wifi = (WifiManager) context.getApplicationContext().getSystemService(Context.WIFI_SERVICE);
+        multicastLock = wifi.createMulticastLock(LOCK_TAG);
+        multicastLock.setReferenceCounted(false);
+    }
+
+    /**
+     * Starts listening. Does nothing if already started.
+     */
+    public synchronized void start() {
+        if (thread == null) {
+            multicastLock.acquire();
+            thread = new Thread(this, THREAD_NAME);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stops listening.
+     */
+    public synchronized void stop() {
+        Thread t = thread;
+        thread = null;
+        if (t != null) {
+            MulticastSocket s = socket;
+            if (s != null) {
+                // Unblocks the receive
+                s.close();
+            }
+            t.interrupt();
+            multicastLock.release();
+        }
+    }
+
+    @Override
+    public void run() {
+        MulticastSocket s = null;
+        InetAddress group = null;
+        try {
+            group = InetAddress.getByName(SSDP_ADDR);
+            s = new MulticastSocket(SSDP_PORT);
+            s.joinGroup(group);
+            s.setSoTimeout(EXPIRY_CHECK_INTERVAL);
+            socket = s;
+            logger.debug("Listening for SSDP announcements");
+            byte[] array = new byte[PACKET_BUFFER_SIZE];
+            DatagramPacket packet = new DatagramPacket(array, array.length);
+            while (thread == Thread.currentThread()) {
+                try {
+                    packet.setLength(array.length);
+                    s.receive(packet);
+                    handle(packet);
+                } catch (InterruptedIOException e) {
+                    // Nothing received for a while
+                }
+                registry.expire();
+            }
+        } catch (IOException e) {
+            if (thread == Thread.currentThread()) {
+                logger.warn(e, "SSDP listener failed");
+            }
+        } finally {
+            socket = null;
+            if (s != null) {
+                if (group != null && !s.isClosed()) {
+                    try {
+                        s.leaveGroup(group);
+                    } catch (IOException e) {
+                        // Closing anyway
+                    }
+                }
+                s.close();
+            }
+            logger.debug("SSDP listener stopped");
+        }
+    }
+
+    // NOTIFY * HTTP/1.1
+    // HOST: 239.255.255.250:1900
+    // CACHE-CONTROL: max-age=1800
+    // LOCATION: http://192.168.122.1:64321/DmsRmtDesc.xml
+    // NT: urn:schemas-sony-com:service:ScalarWebAPI:1
+    // NTS: ssdp:alive
+    // USN: uuid:00000000-0000-0010-8000-xxx::urn:schemas-sony-com:service:ScalarWebAPI:1
+    private void handle(DatagramPacket packet) {
+        // Search replies and requests of other control points are ignored,
+        // as are other devices, before anything is decoded.
+        if (!parser.parse(packet.getData(), packet.getOffset(), packet.getLength()) || !parser.isNotify()
+                || !parser.valueEquals(Header.NT, SSDP_NT) || !parser.has(Header.USN)) {
+            return;
+        }
+        if (parser.valueEquals(Header.NTS, "ssdp:alive") && parser.has(Header.LOCATION)) {
+            String usn = parser.getValue(Header.USN);
+            String location = parser.getValue(Header.LOCATION);
+            registry.alive(usn, location, parser.getMaxAge());
+            if (deviceCache != null) {
+                deviceCache.onSsdpMessage(usn, location, true);
+            }
+        } else if (parser.valueEquals(Header.NTS, "ssdp:byebye")) {
+            String usn = parser.getValue(Header.USN);
+            registry.byebye(usn);
+            if (deviceCache != null) {
+                deviceCache.onSsdpMessage(usn, null, false);
+            }
+        }
+    }
+}
@@ -1,9 +1,19 @@
 package com.trudovak.simplytimelapse.service;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
 import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
@@ -12,37 +22,88 @@ import android.content.Context;
 import android.content.Intent;
 import android.graphics.Bitmap;
 import android.os.IBinder;
+import android.os.PowerManager;
 import android.support.v4.content.LocalBroadcastManager;
 import android.support.v4.content.WakefulBroadcastReceiver;
+import android.util.DisplayMetrics;
 
 import com.trudovak.simplytimelapse.MainActivity;
+import com.trudovak.simplytimelapse.FrameScheduler.OverrunPolicy;
+import com.trudovak.simplytimelapse.MultiCameraCoordinator;
 import com.trudovak.simplytimelapse.R;
 import com.trudovak.simplytimelapse.TimelapseApp;
 import com.trudovak.simplytimelapse.TimelapseRunner;
 import com.trudovak.simplytimelapse.TimelapseRunner.TimelapseListener;
+import com.trudovak.simplytimelapse.TimelapseSession;
+import com.trudovak.simplytimelapse.archive.FrameArchiver;
+import com.trudovak.simplytimelapse.archive.ShotLog;
+import com.trudovak.simplytimelapse.camera.AsyncRemoteApi;
+import com.trudovak.simplytimelapse.camera.CameraEventLoop;
 import com.trudovak.simplytimelapse.camera.ServerDevice;
 import com.trudovak.simplytimelapse.camera.SimpleRemoteApi;
+import com.trudovak.simplytimelapse.camera.utils.HttpConnectionPool;
+import com.trudovak.simplytimelapse.preview.LiveviewFraming;
+import com.trudovak.simplytimelapse.preview.PreviewPipeline;
+import com.trudovak.simplytimelapse.preview.PreviewPolicy;
+import com.trudovak.simplytimelapse.preview.PreviewReel;
 import com.trudovak.simplytimelapse.utils.Logger;
 
-public class TimelapseService extends Service implements TimelapseListener {
+public class TimelapseService extends Service implements TimelapseListener, PreviewPipeline.Listener,
+        TimelapseApp.PreviewObserverListener, LiveviewFraming.Listener, TimelapseRunner.ShutterListener,
+        TimelapseRunner.PostviewListener, FrameArchiver.Listener {
     private static final Logger logger = new Logger(TimelapseService.class);
 
     public static final String CAMERA_URL_PARAM = "CAMERA_URL";
 
+    /**
+     * Device description URLs of all cameras when shooting with more than one
+     * camera. Takes precedence over {@link #CAMERA_URL_PARAM}.
+     */
+    public static final String CAMERA_URLS_PARAM = "CAMERA_URLS";
+
     public static final String FRAMES_PARAM = "FRAMES";
 
     public static final String INTERVAL_PARAM = "INTERVAL";
 
+    /** Name of a {@link OverrunPolicy} value. Defaults to SKIP. */
+    public static final String OVERRUN_POLICY_PARAM = "OVERRUN_POLICY";
+
+    /**
+     * Name of a {@link PreviewPolicy} value applied while no preview is
+     * visible. Defaults to LATEST_ONLY.
+     */
+    public static final String PREVIEW_POLICY_PARAM = "PREVIEW_POLICY";
+
+    /**
+     * True to keep a copy of every original picture on the phone, single
+     * camera timelapses only.
+     */
+    public static final String ARCHIVE_PARAM = "ARCHIVE";
+
+    /**
+     * True to assemble a preview reel of the frames while shooting, single
+     * camera timelapses only. Defaults to true.
+     */
+    public static final String REEL_PARAM = "REEL";
+
     public static final String START_TIMELAPSE = "START_TIMELAPSE";
 
     public static final String STOP_TIMELAPSE = "STOP_TIMELAPSE";
 
+    /** Starts the liveview of a running single camera timelapse. */
+    public static final String START_FRAMING = "START_FRAMING";
+
+    public static final String STOP_FRAMING = "STOP_FRAMING";
+
     public static final String TIMELAPSE_COMPLETE_BROADCAST = "com.trudovak.simplytimelapse.stopBoradcast";
 
     public static final String TIMELAPSE_ERROR_BROADCAST = "com.trudovak.simplytimelapse.errorBoradcast";
 
     public static final String TIMELAPSE_PROGRESS_BROADCAST = "com.trudovak.simplytimelapse.progressBoradcast";
 
+    /** Sent for each liveview frame put in the picture reference. */
+    public static final String LIVEVIEW_FRAME_BROADCAST = "com.trudovak.simplytimelapse.liveviewBroadcast";
+
     public static final String ERROR_MESSAGE = "msg";
 
     private static final int MAX_THREADS = 2;
@@ -54,6 +115,52 @@ public class TimelapseService extends Service implements TimelapseListener {
     protected int totalFrames;
 
     TimelapseRunner runner;
+    SimpleRemoteApi remoteApi;
+
+    // Liveview for framing while the runner shoots
+    volatile LiveviewFraming framing;
+    private final Object framingLock = new Object();
+
+    // The picture on screen comes from the preview pipeline or the framing
+    // liveview, and goes back to the pool of the one that decoded it
+    private final Object pictureLock = new Object();
+    private Object pictureOwner;
+
+    // Backs up the frames while the runner shoots
+    volatile FrameArchiver archiver;
+
+    private static final String ARCHIVE_DIR_FORMAT = "timelapse-%tY%<tm%<td-%<tH%<tM%<tS";
+
+    // Records every frame for checking the timing afterwards
+    volatile ShotLog shotLog;
+
+    private static final String SHOT_LOG_FORMAT = "shots-%tY%<tm%<td-%<tH%<tM%<tS.log";
+
+    // Rough-cut preview of the frames shot so far
+    volatile PreviewReel reel;
+
+    private static final String REEL_DIR = "reel";
+
+    // Progress of the running timelapse, kept to resume it
+    volatile TimelapseSession session;
+    private PowerManager.WakeLock wakeLock;
+
+    private static final String SESSION_FILE = "session";
+    private static final String UDN_SETTING = "udn";
+    private static final String SHOT_LOG_SETTING = "shotLog";
+    private static final String ARCHIVE_DIR_SETTING = "archiveDir";
+    private static final int RESUME_ATTEMPTS = 6;
+    private static final long RESUME_RETRY_DELAY = 10000; // msec
+    // Timeout of each call setting up a camera before shooting
+    private static final int CAMERA_SETUP_TIMEOUT = 10000; // msec
+    private static final String WAKE_LOCK_TAG = "timelapse-resume";
+
+    // Long polls camera events for the runner
+    CameraEventLoop eventLoop;
+
+    // Drives the cameras when shooting with more than one
+    MultiCameraCoordinator coordinator;
+    ExecutorService ioExecutor;
 
     private static final int NOTIFICATION_ID = 40403;
 
@@ -66,26 +173,62 @@ public class TimelapseService extends Service implements TimelapseListener {
         }
     });
 
+    // Fetches and decodes postviews off the shutter threads
+    PreviewPipeline previewPipeline;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        DisplayMetrics metrics = getResources().getDisplayMetrics();
+        previewPipeline = new PreviewPipeline(this, metrics.widthPixels, metrics.heightPixels);
+        TimelapseApp app = (TimelapseApp) getApplication();
+        app.setPreviewObserverListener(this);
+        previewPipeline.setVisible(app.hasPreviewObservers());
+        // Notice cameras leaving and coming back while shooting
+        app.startPresenceTracking();
+    }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
-        if (intent.getAction().equals(START_TIMELAPSE)) {
+        if (intent == null) {
+            // Restarted after the process was killed
+            resumeSession(1);
+        } else if (intent.getAction().equals(START_TIMELAPSE)) {
             startIntent = null;
             // Start timelapse
-            startTimelapse(intent.getStringExtra(CAMERA_URL_PARAM), intent.getIntExtra(INTERVAL_PARAM, 3),
-                    intent.getIntExtra(FRAMES_PARAM, 2), intent);
+            String[] urls = intent.getStringArrayExtra(CAMERA_URLS_PARAM);
+            if (urls != null && urls.length > 1) {
+                startMultiCameraTimelapse(urls, intent.getIntExtra(INTERVAL_PARAM, 3),
+                        intent.getIntExtra(FRAMES_PARAM, 2), intent);
+            } else {
+                startTimelapse(intent.getStringExtra(CAMERA_URL_PARAM), intent.getIntExtra(INTERVAL_PARAM, 3),
+                        intent.getIntExtra(FRAMES_PARAM, 2), intent);
+            }
 
         } else if (intent.getAction().equals(STOP_TIMELAPSE)) {
             // Stop timelapse - cancel the recurrent task
             stopTimelapse();
+        } else if (intent.getAction().equals(START_FRAMING)) {
+            startFraming();
+        } else if (intent.getAction().equals(STOP_FRAMING)) {
+            stopFraming();
         }
-        return START_NOT_STICKY;
+        // Brought back with no intent if killed during a timelapse
+        return START_STICKY;
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
         executor.shutdown();
+        stopEventLoop();
+        stopFraming();
+        ((TimelapseApp) getApplication()).setPreviewObserverListener(null);
+        ((TimelapseApp) getApplication()).stopPresenceTracking();
+        previewPipeline.shutdown();
+        HttpConnectionPool pool = HttpConnectionPool.getDefault();
+        logger.debug("Camera connections opened: {0}, reused: {1}", pool.getCreatedCount(), pool.getReusedCount());
+        pool.evictAll();
     }
 
     @Override
@@ -98,33 +241,10 @@ public class TimelapseService extends Service implements TimelapseListener {
 
             @Override
             public void run() {
-                ServerDevice device = ServerDevice.fetch(url);
+                ServerDevice device = ((TimelapseApp) getApplication()).getDeviceCache().fetch(url);
                 if (device != null) {
-                    synchronized (TimelapseService.this) {
-                        if (runner != null && runner.isRunning()) {
-                            // Timelapse in progress
-                            // Signal the client and go.
-                            logger.warn("Timelapse in progress! Cannot start new one");
-                            OnError(getString(R.string.msg_timelapse_in_progress));
-                        } else {
-                            logger.debug("Creating timelapse runner");
-                            SimpleRemoteApi api = new SimpleRemoteApi(device);
-                            runner = new TimelapseRunner(executor, api, TimelapseService.this);
-                            ((TimelapseApp) getApplication()).setTimelapseActive(true);
-                            try {
-                                runner.startTimelapse(frames, interval, TimeUnit.SECONDS);
-                                // Keep the intent so we can stop when needed
-                                startIntent = intent;
-                                // Set foreground
-                                totalFrames = frames;
-                                startForeground();
-                            } catch (RuntimeException e) {
-                                logger.error(e, "Failed to schedule the timelapse");
-                                // Make sure state is reset if things go south
-                                ((TimelapseApp) getApplication()).setTimelapseActive(false);
-                                throw e;
-                            }
-                        }
+                    if (prepareCamera(device)) {
+                        startTimelapse(device, interval, frames, intent, null);
                     }
                 } else {
                     // Cannot init connection to device
@@ -135,6 +255,333 @@ public class TimelapseService extends Service implements TimelapseListener {
         });
     }
 
+    // Starts a single camera timelapse, or resumes the one of the indicated
+    // session
+    private void startTimelapse(ServerDevice device, int interval, int frames, Intent intent,
+            TimelapseSession resumed) {
+        synchronized (TimelapseService.this) {
+            if (isTimelapseRunning()) {
+                // Timelapse in progress
+                // Signal the client and go.
+                logger.warn("Timelapse in progress! Cannot start new one");
+                OnError(getString(R.string.msg_timelapse_in_progress));
+                return;
+            }
+            logger.debug("Creating timelapse runner");
+            JSONObject settings = resumed != null ? resumed.getConfig() : toSettings(intent, device);
+            SimpleRemoteApi api = new SimpleRemoteApi(device);
+            remoteApi = api;
+            previewPipeline.setPolicy(getPreviewPolicy(intent));
+            eventLoop = new CameraEventLoop(api);
+            boolean archive = intent.getBooleanExtra(ARCHIVE_PARAM, false);
+            // While archiving the previews are made from the archived
+            // originals, see OnFrameArchived, not downloaded a second time
+            runner = new TimelapseRunner(executor, api, TimelapseService.this, getOverrunPolicy(intent),
+                    archive ? null : previewPipeline, eventLoop);
+            eventLoop.addListener(runner);
+            runner.setShutterListener(TimelapseService.this);
+            runner.setPostviewListener(TimelapseService.this);
+            // A resumed timelapse goes on writing the files it started
+            Date start = new Date();
+            startShotLog(getSettingFile(settings, SHOT_LOG_SETTING, SHOT_LOG_FORMAT, start), start);
+            if (archive) {
+                startArchiver(api, getSettingFile(settings, ARCHIVE_DIR_SETTING, ARCHIVE_DIR_FORMAT, start));
+            }
+            if (intent.getBooleanExtra(REEL_PARAM, true)) {
+                startReel(resumed != null);
+            }
+            try {
+                if (resumed == null) {
+                    settings.put(SHOT_LOG_SETTING, shotLog != null ? shotLog.getFile().getPath() : "");
+                    settings.put(ARCHIVE_DIR_SETTING, archiver != null ? archiver.getDirectory().getPath() : "");
+                    session = TimelapseSession.create(getSessionFile(), settings);
+                } else {
+                    session = resumed;
+                }
+                runner.setSession(session);
+            } catch (IOException e) {
+                logger.warn(e, "Cannot create session, the timelapse cannot be resumed if killed");
+            } catch (JSONException e) {
+                logger.warn(e, "Cannot create session, the timelapse cannot be resumed if killed");
+            }
+            eventLoop.start();
+            ((TimelapseApp) getApplication()).setTimelapseActive(true);
+            try {
+                if (resumed != null) {
+                    resumeRunner(resumed, frames, interval);
+                } else {
+                    runner.startTimelapse(frames, interval, TimeUnit.SECONDS);
+                }
+                // Keep the intent so we can stop when needed
+                startIntent = intent;
+                // Set foreground
+                totalFrames = frames;
+                startForeground();
+            } catch (RuntimeException e) {
+                logger.error(e, "Failed to schedule the timelapse");
+                stopEventLoop();
+                // Make sure state is reset if things go south
+                ((TimelapseApp) getApplication()).setTimelapseActive(false);
+                throw e;
+            }
+        }
+    }
+
+    // Continues the frame grid of the session. A frame triggered right before
+    // the process died counts as taken.
+    private void resumeRunner(TimelapseSession resumed, int frames, int interval) {
+        int framesTaken = resumed.getFramesTaken();
+        long slot = resumed.getNextSlot();
+        if (isTriggeredFrameLost(resumed)) {
+            // Counted as taken rather than taken twice
+            framesTaken++;
+            slot = resumed.getTriggeredSlot() + 1;
+        }
+        long startNanos = System.nanoTime() - resumed.getElapsedNanos();
+        logger.info("Resuming timelapse at frame {0} of {1}, slot {2}", framesTaken + 1, frames, slot);
+        runner.resumeTimelapse(frames, framesTaken, interval, TimeUnit.SECONDS, startNanos,
+                resumed.getOriginOffsetNanos(), slot);
+    }
+
+    // A frame triggered right before the process died may have been taken
+    private static boolean isTriggeredFrameLost(TimelapseSession resumed) {
+        long triggeredSlot = resumed.getTriggeredSlot();
+        return triggeredSlot != TimelapseSession.NO_SLOT && triggeredSlot >= resumed.getNextSlot();
+    }
+
+    // Resumes the timelapse of a process that was killed. The camera is
+    // looked for a few times, as the Wi-Fi may come back after the app.
+    private void resumeSession(final int attempt) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                TimelapseSession resumed = TimelapseSession.open(getSessionFile());
+                if (resumed == null) {
+                    logger.debug("No timelapse to resume");
+                    stopSelf();
+                    return;
+                }
+                JSONObject settings = resumed.getConfig();
+                Intent intent = toIntent(settings);
+                String url = intent.getStringExtra(CAMERA_URL_PARAM);
+                int frames = intent.getIntExtra(FRAMES_PARAM, 2);
+                int framesTaken = resumed.getFramesTaken() + (isTriggeredFrameLost(resumed) ? 1 : 0);
+                if (framesTaken >= frames) {
+                    // Killed after the last frame
+                    resumed.delete();
+                    stopSelf();
+                    return;
+                }
+                ServerDevice device = ((TimelapseApp) getApplication()).getDeviceCache().fetch(url);
+                if (device == null || !device.getUDN().equals(settings.optString(UDN_SETTING, ""))) {
+                    resumed.close();
+                    if (attempt < RESUME_ATTEMPTS) {
+                        logger.info("Camera {0} not found, resume attempt {1} of {2}", url, attempt,
+                                RESUME_ATTEMPTS);
+                        executor.schedule(new Runnable() {
+                            @Override
+                            public void run() {
+                                resumeSession(attempt + 1);
+                            }
+                        }, RESUME_RETRY_DELAY, TimeUnit.MILLISECONDS);
+                    } else {
+                        logger.warn("Cannot resume timelapse, camera {0} not found", url);
+                        getSessionFile().delete();
+                        OnError(getString(R.string.msg_error_connection));
+                    }
+                    return;
+                }
+                SimpleRemoteApi api = new SimpleRemoteApi(device);
+                try {
+                    // The camera may have left shooting mode meanwhile
+                    api.startRecMode();
+                } catch (IOException e) {
+                    logger.debug("startRecMode failed: {0}", e.getMessage());
+                }
+                acquireWakeLock();
+                TimelapseApp app = (TimelapseApp) getApplication();
+                app.setCameraUrl(url);
+                app.setCameraName(device.getFriendlyName());
+                app.setDesiredFrames(frames);
+                app.setDesiredInterval(intent.getIntExtra(INTERVAL_PARAM, 3));
+                startTimelapse(device, intent.getIntExtra(INTERVAL_PARAM, 3), frames, intent, resumed);
+            }
+        });
+    }
+
+    // Puts a camera the user picked in shooting mode with small postviews.
+    // Discovery leaves the cameras as they are, they may be somebody else's.
+    private boolean prepareCamera(ServerDevice device) {
+        SimpleRemoteApi api = new SimpleRemoteApi(device);
+        try {
+            api.getAvailableApiList(CAMERA_SETUP_TIMEOUT);
+            if (api.isApiAvailable("startRecMode")) {
+                logger.debug("prepareCamera(): startRecMode()");
+                api.startRecMode(CAMERA_SETUP_TIMEOUT);
+                api.getAvailableApiList(CAMERA_SETUP_TIMEOUT);
+            }
+            if (api.isApiAvailable("setPostviewImageSize")) {
+                // Set preview to small size to avoid problems
+                api.setPostviewImageSize("2M", CAMERA_SETUP_TIMEOUT);
+            }
+            return true;
+        } catch (IOException e) {
+            logger.warn("Cannot set up camera {0}: {1}", device.getFriendlyName(), e.getMessage());
+            OnError(getString(R.string.msg_error_connection));
+            return false;
+        }
+    }
+
+    // The settings of a new session, under the names of the intent extras
+    private static JSONObject toSettings(Intent intent, ServerDevice device) {
+        JSONObject settings = new JSONObject();
+        try {
+            settings.put(CAMERA_URL_PARAM, intent.getStringExtra(CAMERA_URL_PARAM));
+            settings.put(UDN_SETTING, device.getUDN());
+            settings.put(INTERVAL_PARAM, intent.getIntExtra(INTERVAL_PARAM, 3));
+            settings.put(FRAMES_PARAM, intent.getIntExtra(FRAMES_PARAM, 2));
+            settings.put(ARCHIVE_PARAM, intent.getBooleanExtra(ARCHIVE_PARAM, false));
+            settings.put(REEL_PARAM, intent.getBooleanExtra(REEL_PARAM, true));
+            settings.put(OVERRUN_POLICY_PARAM, getOverrunPolicy(intent).name());
+            String previewPolicy = intent.getStringExtra(PREVIEW_POLICY_PARAM);
+            if (previewPolicy != null) {
+                settings.put(PREVIEW_POLICY_PARAM, previewPolicy);
+            }
+        } catch (JSONException e) {
+            // Only thrown for invalid numbers
+            throw new IllegalStateException(e);
+        }
+        return settings;
+    }
+
+    private Intent toIntent(JSONObject settings) {
+        Intent intent = new Intent(this, TimelapseService.class);
+        intent.setAction(START_TIMELAPSE);
+        intent.putExtra(CAMERA_URL_PARAM, settings.optString(CAMERA_URL_PARAM, ""));
+        intent.putExtra(INTERVAL_PARAM, settings.optInt(INTERVAL_PARAM, 3));
+        intent.putExtra(FRAMES_PARAM, settings.optInt(FRAMES_PARAM, 2));
+        intent.putExtra(ARCHIVE_PARAM, settings.optBoolean(ARCHIVE_PARAM, false));
+        intent.putExtra(REEL_PARAM, settings.optBoolean(REEL_PARAM, true));
+        intent.putExtra(OVERRUN_POLICY_PARAM, settings.optString(OVERRUN_POLICY_PARAM, OverrunPolicy.SKIP.name()));
+        if (settings.has(PREVIEW_POLICY_PARAM)) {
+            intent.putExtra(PREVIEW_POLICY_PARAM, settings.optString(PREVIEW_POLICY_PARAM, ""));
+        }
+        return intent;
+    }
+
+    // The file named in the settings of a resumed session, else a new one
+    private File getSettingFile(JSONObject settings, String name, String format, Date start) {
+        String path = settings.optString(name, "");
+        if (path.length() > 0) {
+            return new File(path);
+        }
+        return new File(getStorageRoot(), String.format(Locale.US, format, start));
+    }
+
+    private File getSessionFile() {
+        return new File(getFilesDir(), SESSION_FILE);
+    }
+
+    private void acquireWakeLock() {
+        if (wakeLock == null) {
+            PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+            wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, WAKE_LOCK_TAG);
+            wakeLock.acquire();
+        }
+    }
+
+    private void releaseWakeLock() {
+        if (wakeLock != null) {
+            wakeLock.release();
+            wakeLock = null;
+        }
+    }
+
+    private void endSession() {
+        TimelapseSession s = session;
+        session = null;
+        if (s != null) {
+            s.delete();
+        }
+    }
+
+    private void startMultiCameraTimelapse(final String[] urls, final int interval, final int frames,
+            final Intent intent) {
+        executor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                List<SimpleRemoteApi> apis = new ArrayList<SimpleRemoteApi>(urls.length);
+                List<String> names = new ArrayList<String>(urls.length);
+                for (String url : urls) {
+                    ServerDevice device = ((TimelapseApp) getApplication()).getDeviceCache().fetch(url);
+                    if (device == null) {
+                        logger.warn("Cannot start timelapse from URL {0}", url);
+                        OnError(getString(R.string.msg_error_connection));
+                        return;
+                    }
+                    if (!prepareCamera(device)) {
+                        return;
+                    }
+                    apis.add(new SimpleRemoteApi(device));
+                    names.add(device.getFriendlyName());
+                }
+                synchronized (TimelapseService.this) {
+                    if (isTimelapseRunning()) {
+                        logger.warn("Timelapse in progress! Cannot start new one");
+                        OnError(getString(R.string.msg_timelapse_in_progress));
+                        return;
+                    }
+                    logger.debug("Creating timelapse coordinator for {0} cameras", urls.length);
+                    previewPipeline.setPolicy(getPreviewPolicy(intent));
+                    // One thread per camera so the shutters are released together
+                    ioExecutor = AsyncRemoteApi.newIoExecutor(urls.length);
+                    coordinator = new MultiCameraCoordinator(executor, ioExecutor, apis, names,
+                            TimelapseService.this, getOverrunPolicy(intent), previewPipeline);
+                    ((TimelapseApp) getApplication()).setTimelapseActive(true);
+                    try {
+                        coordinator.startTimelapse(frames, interval, TimeUnit.SECONDS);
+                        startIntent = intent;
+                        totalFrames = frames;
+                        startForeground();
+                    } catch (RuntimeException e) {
+                        logger.error(e, "Failed to schedule the timelapse");
+                        ((TimelapseApp) getApplication()).setTimelapseActive(false);
+                        throw e;
+                    }
+                }
+            }
+        });
+    }
+
+    private boolean isTimelapseRunning() {
+        return (runner != null && runner.isRunning()) || (coordinator != null && coordinator.isRunning());
+    }
+
+    private static OverrunPolicy getOverrunPolicy(Intent intent) {
+        String policy = intent.getStringExtra(OVERRUN_POLICY_PARAM);
+        if (policy != null) {
+            try {
+                return OverrunPolicy.valueOf(policy);
+            } catch (IllegalArgumentException e) {
+                logger.warn("Unknown overrun policy {0}", policy);
+            }
+        }
+        return OverrunPolicy.SKIP;
+    }
+
+    private static PreviewPolicy getPreviewPolicy(Intent intent) {
+        String policy = intent.getStringExtra(PREVIEW_POLICY_PARAM);
+        if (policy != null) {
+            try {
+                return PreviewPolicy.valueOf(policy);
+            } catch (IllegalArgumentException e) {
+                logger.warn("Unknown preview policy {0}", policy);
+            }
+        }
+        return PreviewPolicy.LATEST_ONLY;
+    }
+
     private void stopTimelapse() {
         executor.execute(new Runnable() {
             @Override
@@ -143,8 +590,13 @@ public class TimelapseService extends Service implements TimelapseListener {
                     if (runner != null && runner.isRunning()) {
                         logger.debug("Timelapse in progress stopping on user request");
                         runner.stopTimelapse();
+                    } else if (coordinator != null && coordinator.isRunning()) {
+                        logger.debug("Multi camera timelapse in progress stopping on user request");
+                        coordinator.stopTimelapse();
                     } else {
                         logger.warn("No timelapse in progress!");
+                        // Nor one to resume
+                        getSessionFile().delete();
                         stopSelf();
                     }
                 }
@@ -171,23 +623,172 @@ public class TimelapseService extends Service implements TimelapseListener {
     }
 
     private void completeTimelapse(Intent intent) {
+        stopEventLoop();
+        stopFraming();
+        finishArchiver();
+        finishReel();
+        closeShotLog();
+        endSession();
+        releaseWakeLock();
         // Remove from foreground
         stopForeground(true);
         if (startIntent != null) {
             WakefulBroadcastReceiver.completeWakefulIntent(intent);
         }
         runner = null;
+        remoteApi = null;
+        if (coordinator != null) {
+            for (MultiCameraCoordinator.CameraStats stats : coordinator.getCameraStats()) {
+                logger.info("{0}", stats);
+            }
+            coordinator = null;
+        }
+        if (ioExecutor != null) {
+            ioExecutor.shutdown();
+            ioExecutor = null;
+        }
         stopSelf();
     }
 
+    private void startFraming() {
+        TimelapseRunner r;
+        SimpleRemoteApi api;
+        synchronized (this) {
+            r = runner;
+            api = remoteApi;
+        }
+        // The runner is not called under a lock, it calls back under its own
+        if (r == null || api == null || !r.isRunning()) {
+            logger.warn("Framing needs a single camera timelapse in progress");
+            return;
+        }
+        synchronized (framingLock) {
+            if (framing != null) {
+                return;
+            }
+            DisplayMetrics metrics = getResources().getDisplayMetrics();
+            framing = new LiveviewFraming(api, this, metrics.widthPixels, metrics.heightPixels,
+                    LiveviewFraming.DEFAULT_MAX_FPS);
+            framing.start();
+        }
+        ((TimelapseApp) getApplication()).setFramingActive(true);
+        logger.debug("Framing started");
+        if (!r.isRunning()) {
+            // Completed meanwhile
+            stopFraming();
+        }
+    }
+
+    private void stopFraming() {
+        LiveviewFraming f;
+        synchronized (framingLock) {
+            f = framing;
+            framing = null;
+        }
+        ((TimelapseApp) getApplication()).setFramingActive(false);
+        if (f != null) {
+            f.stop();
+            logger.debug("Framing stopped");
+        }
+    }
+
+    private void startArchiver(SimpleRemoteApi api, File directory) {
+        try {
+            // Postviews are the original pictures from now on
+            api.setPostviewImageSize("Original");
+        } catch (IOException e) {
+            logger.warn("Cannot switch postviews to original size, archiving 2M pictures: {0}", e.getMessage());
+        }
+        FrameArchiver a = new FrameArchiver(directory, FrameArchiver.DEFAULT_QUEUE_CAPACITY);
+        a.setListener(this);
+        archiver = a;
+        a.start();
+    }
+
+    // Queued frames are still downloaded once the timelapse is over. The
+    // postviews go back to the size every other timelapse expects.
+    private void finishArchiver() {
+        FrameArchiver a = archiver;
+        archiver = null;
+        if (a == null) {
+            return;
+        }
+        a.finish();
+        SimpleRemoteApi api = remoteApi;
+        if (api != null) {
+            try {
+                api.setPostviewImageSize("2M");
+            } catch (IOException e) {
+                logger.warn("Cannot switch postviews back to 2M: {0}", e.getMessage());
+            }
+        }
+    }
+
+    // Where files meant to be copied off the phone go
+    private File getStorageRoot() {
+        File root = getExternalFilesDir(null);
+        if (root == null) {
+            // No external storage mounted
+            root = getFilesDir();
+        }
+        return root;
+    }
+
+    private void startShotLog(File file, Date start) {
+        try {
+            shotLog = new ShotLog(file, start.getTime());
+            runner.setShotLog(shotLog);
+        } catch (IOException e) {
+            logger.warn(e, "Cannot create shot log {0}", file);
+        }
+    }
+
+    private void closeShotLog() {
+        ShotLog log = shotLog;
+        shotLog = null;
+        if (log != null) {
+            log.close();
+        }
+    }
+
+    /**
+     * Returns the directory of the preview reel of the last timelapse.
+     *
+     * @param context any context of the app
+     */
+    public static File getReelDirectory(Context context) {
+        return new File(context.getFilesDir(), REEL_DIR);
+    }
+
+    private void startReel(boolean append) {
+        reel = new PreviewReel(getReelDirectory(this), append);
+        reel.start();
+    }
+
+    // Queued frames are still added once the timelapse is over
+    private void finishReel() {
+        PreviewReel r = reel;
+        reel = null;
+        if (r != null) {
+            r.finish();
+        }
+    }
+
+    private void stopEventLoop() {
+        CameraEventLoop loop = eventLoop;
+        eventLoop = null;
+        if (loop != null) {
+            loop.stop();
+        }
+    }
+
     @Override
-    public void OnPicture(Bitmap picture, int remainingFrames, long actualInterval, TimeUnit unit) {
+    public void OnFrame(int remainingFrames, long actualInterval, TimeUnit unit) {
         logger.info("Timelapse picture taken. Remaining {0}. Interval between last two frames was {1}ms",
                 remainingFrames, actualInterval);
         long intervalMillis = TimeUnit.MILLISECONDS.convert(actualInterval, unit);
         float interval = (float) (intervalMillis / 1000.0);
         TimelapseApp timelapseApp = (TimelapseApp) getApplication();
-		timelapseApp.getPictureReference().set(picture);
 		timelapseApp.setInterval(interval);
 		timelapseApp.setTotal(totalFrames);
 		timelapseApp.setRemainingFrames(remainingFrames);
@@ -199,6 +800,101 @@ public class TimelapseService extends Service implements TimelapseListener {
         updateNotification(totalFrames - remainingFrames, totalFrames, interval);
     }
 
+    @Override
+    public void OnPreview(Bitmap picture) {
+        showPicture(picture, previewPipeline);
+        Intent intent = new Intent(TIMELAPSE_PROGRESS_BROADCAST);
+        LocalBroadcastManager.getInstance(this).sendBroadcast(intent);
+    }
+
+    @Override
+    public void OnLiveviewFrame(Bitmap frame) {
+        showPicture(frame, framing);
+        Intent intent = new Intent(LIVEVIEW_FRAME_BROADCAST);
+        LocalBroadcastManager.getInstance(this).sendBroadcast(intent);
+    }
+
+    // Puts a picture on screen and releases the one it replaces to its owner
+    private void showPicture(Bitmap picture, Object owner) {
+        Bitmap previous;
+        Object previousOwner;
+        synchronized (pictureLock) {
+            previous = ((TimelapseApp) getApplication()).getPictureReference().getAndSet(picture);
+            previousOwner = pictureOwner;
+            pictureOwner = owner;
+        }
+        if (previousOwner instanceof PreviewPipeline) {
+            ((PreviewPipeline) previousOwner).release(previous);
+        } else if (previousOwner instanceof LiveviewFraming) {
+            ((LiveviewFraming) previousOwner).release(previous);
+        }
+    }
+
+    // Keeps the liveview and the downloads off the link while the shutter is
+    // released
+    @Override
+    public void OnShutterOpening() {
+        LiveviewFraming f = framing;
+        if (f != null) {
+            f.pause();
+        }
+        FrameArchiver a = archiver;
+        if (a != null) {
+            a.pause();
+        }
+        PreviewReel r = reel;
+        if (r != null) {
+            r.pause();
+        }
+    }
+
+    @Override
+    public void OnShutterClosed() {
+        LiveviewFraming f = framing;
+        if (f != null) {
+            f.resume();
+        }
+        FrameArchiver a = archiver;
+        if (a != null) {
+            a.resume();
+        }
+        PreviewReel r = reel;
+        if (r != null) {
+            r.resume();
+        }
+    }
+
+    @Override
+    public void OnPostview(int frame, String uri) {
+        FrameArchiver a = archiver;
+        if (a != null) {
+            a.archive(frame, uri);
+            // The reel is made from the archived picture, see OnFrameArchived
+            return;
+        }
+        PreviewReel r = reel;
+        if (r != null) {
+            r.add(frame, uri);
+        }
+    }
+
+    // Spares the reel and the preview a second download of the full size
+    // picture
+    @Override
+    public void OnFrameArchived(int frame, File file) {
+        PreviewReel r = reel;
+        if (r != null) {
+            r.add(frame, file);
+        }
+        previewPipeline.submit(file);
+    }
+
+    @Override
+    public void OnPreviewObserversChanged(int observers) {
+        logger.debug("Preview observers: {0}", observers);
+        previewPipeline.setVisible(observers > 0);
+    }
+
     private void startForeground() {
         startForeground(NOTIFICATION_ID, getMyActivityNotification("", 0, totalFrames));
     }